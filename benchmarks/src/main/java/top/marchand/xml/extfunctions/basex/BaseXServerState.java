@@ -0,0 +1,55 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import org.basex.BaseXServer;
+import org.basex.examples.api.BaseXClient;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * An in-process BaseX server, started once per fork, as the unit tests do.
+ *
+ * @author Christophe Marchand
+ */
+@State(Scope.Benchmark)
+public class BaseXServerState {
+    public static final String SERVER = "localhost";
+    public static final int PORT = 1984;
+    public static final String USER = "admin";
+    public static final String PASSWORD = "admin";
+    /** The four connection arguments of the extension functions. */
+    public static final String CONNECT_ARGS = "'"+SERVER+"', '"+PORT+"', '"+USER+"', '"+PASSWORD+"'";
+
+    private BaseXServer server;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        server = new BaseXServer();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        server.stop();
+    }
+
+    public ConnectionKey getConnectionKey() {
+        return new ConnectionKey(SERVER, PORT, USER, PASSWORD);
+    }
+
+    /**
+     * @return A new authenticated session
+     * @throws IOException If server can not be reached
+     */
+    public BaseXClient connect() throws IOException {
+        return new BaseXClient(SERVER, PORT, USER, PASSWORD);
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.File;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, with the GC profiler, and writes the results as JSON to
+ * <tt>target/jmh-result.json</tt>, so that two runs can be compared.
+ * Accepts the JMH command line options, which override these defaults.
+ *
+ * @author Christophe Marchand
+ */
+public final class BenchmarkRunner {
+    public static final String DEFAULT_RESULT = "target/jmh-result.json";
+
+    private BenchmarkRunner() {
+        super();
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cli);
+        if(cli.getIncludes().isEmpty()) {
+            options.include(BenchmarkRunner.class.getPackage().getName()+"\\..*Benchmark");
+        }
+        if(cli.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        if(!cli.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if(!cli.getResult().hasValue()) {
+            new File(DEFAULT_RESULT).getAbsoluteFile().getParentFile().mkdirs();
+            options.result(DEFAULT_RESULT);
+        }
+        new Runner(options.build()).run();
+    }
+}
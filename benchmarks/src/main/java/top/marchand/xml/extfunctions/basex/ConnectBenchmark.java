@@ -0,0 +1,62 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.basex.examples.api.BaseXClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of getting a session : connection and authentication of a new session,
+ * and borrowing an idle session from the pool.
+ *
+ * @author Christophe Marchand
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ConnectBenchmark {
+    private BaseXClientPool pool;
+    private ConnectionKey key;
+
+    @Setup(Level.Trial)
+    public void setUp(BaseXServerState server) {
+        pool = new BaseXClientPool();
+        key = server.getConnectionKey();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public void connect(BaseXServerState server) throws IOException {
+        server.connect().close();
+    }
+
+    @Benchmark
+    public void borrowFromPool() throws IOException {
+        BaseXClient session = pool.borrow(key);
+        pool.release(key, session);
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XdmValue;
+import org.basex.examples.api.BaseXClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of a query with a small result : with a session, and through
+ * <tt>efl-ext:basex-query</tt>, which adds the pool and the result conversion.
+ * Reported as a distribution, to show tail latency.
+ *
+ * @author Christophe Marchand
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LatencyBenchmark {
+    private BaseXClient session;
+    private BaseXQuery function;
+    private XPathExecutable xpath;
+
+    @Setup(Level.Trial)
+    public void setUp(BaseXServerState server) throws IOException, SaxonApiException {
+        session = server.connect();
+        function = new BaseXQuery();
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(function);
+        XPathCompiler compiler = new Processor(config).newXPathCompiler();
+        compiler.setLanguageVersion("3.1");
+        compiler.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        xpath = compiler.compile("efl-ext:basex-query('<test>1</test>', "+BaseXServerState.CONNECT_ARGS+")");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        session.close();
+        function.getPool().close();
+    }
+
+    @Benchmark
+    public String session() throws IOException {
+        BaseXClient.Query query = session.query("<test>1</test>");
+        try {
+            return query.execute();
+        } finally {
+            query.close();
+        }
+    }
+
+    @Benchmark
+    public XdmValue function() throws SaxonApiException {
+        return xpath.load().evaluate();
+    }
+}
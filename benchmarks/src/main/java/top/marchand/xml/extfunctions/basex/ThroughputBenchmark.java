@@ -0,0 +1,136 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import org.basex.examples.api.BaseXClient;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of large results, as items and bytes per second (the <tt>items</tt>
+ * and <tt>bytes</tt> secondary results) : read from the protocol only, read and
+ * built as Saxon items, and through <tt>efl-ext:basex-query</tt>.
+ *
+ * @author Christophe Marchand
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ThroughputBenchmark {
+    @Param({"1000", "100000"})
+    public int size;
+
+    private BaseXClient session;
+    private ItemFactory factory;
+    private BaseXQuery function;
+    private XPathExecutable xpath;
+    private String query;
+    private final byte[] buffer = new byte[8192];
+
+    /**
+     * Counted per iteration, and reported per second. Bytes are only counted by {@link #fetch(Counters)}.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long items;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            items = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp(BaseXServerState server) throws IOException, SaxonApiException {
+        query = "for $i in 1 to "+size+" return <record id='{$i}'><name>record {$i}</name><value>{$i * 2}</value></record>";
+        session = server.connect();
+        Configuration config = new Configuration();
+        factory = new ItemFactory(config);
+        function = new BaseXQuery();
+        config.registerExtensionFunction(function);
+        XPathCompiler compiler = new Processor(config).newXPathCompiler();
+        compiler.setLanguageVersion("3.1");
+        compiler.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        xpath = compiler.compile("efl-ext:basex-query(\""+query+"\", "+BaseXServerState.CONNECT_ARGS+")");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        session.close();
+        function.getPool().close();
+    }
+
+    @Benchmark
+    public void fetch(Counters counters) throws IOException {
+        BaseXClient.Query q = session.query(query);
+        try {
+            while(q.more()) {
+                InputStream in = q.stream();
+                for(int read = in.read(buffer); read>=0; read = in.read(buffer)) {
+                    counters.bytes += read;
+                }
+                counters.items++;
+            }
+        } finally {
+            q.close();
+        }
+    }
+
+    @Benchmark
+    public void fetchAndBuild(Counters counters, Blackhole bh) throws IOException, XPathException {
+        BaseXClient.Query q = session.query(query);
+        try {
+            q.full(true);
+            while(q.more()) {
+                bh.consume(factory.build(q));
+                counters.items++;
+            }
+        } finally {
+            q.close();
+        }
+    }
+
+    @Benchmark
+    public void function(Counters counters, Blackhole bh) throws SaxonApiException {
+        XdmSequenceIterator it = xpath.load().evaluate().iterator();
+        while(it.hasNext()) {
+            XdmItem item = it.next();
+            bh.consume(item);
+            counters.items++;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.trans.XPathException;
+import org.basex.examples.api.BaseXClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building the Saxon tree of one result item, without any server.
+ * Run with the GC profiler to see the allocation per item.
+ *
+ * @author Christophe Marchand
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TreeBuildingBenchmark {
+    /** Number of child elements of the item. */
+    @Param({"1", "100", "10000"})
+    public int children;
+
+    private ItemFactory factory;
+    private byte[] item;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        factory = new ItemFactory(new Configuration());
+        StringBuilder sb = new StringBuilder("<record id=\"1\">");
+        for(int i=0;i<children;i++) {
+            sb.append("<field name=\"f").append(i).append("\">value ").append(i).append("</field>");
+        }
+        item = sb.append("</record>").toString().getBytes(BaseXClient.UTF8);
+    }
+
+    @Benchmark
+    public NodeInfo parse() throws XPathException {
+        return factory.parse(new ByteArrayInputStream(item));
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end XSLT transformation, like <tt>test3.xsl</tt> : two calls per
+ * transformation, results copied to the serialized output.
+ *
+ * @author Christophe Marchand
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class XsltBenchmark {
+    /** Number of items returned by each call. */
+    @Param({"10", "10000"})
+    public int count;
+
+    private BaseXQuery function;
+    private Processor processor;
+    private XsltExecutable stylesheet;
+    private final OutputStream nullOutput = new OutputStream() {
+        @Override
+        public void write(int b) { }
+        @Override
+        public void write(byte[] b, int off, int len) { }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp(BaseXServerState server) throws SaxonApiException {
+        function = new BaseXQuery();
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(function);
+        processor = new Processor(config);
+        stylesheet = processor.newXsltCompiler().compile(
+                new StreamSource(XsltBenchmark.class.getResource("/benchmark.xsl").toExternalForm()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        function.getPool().close();
+    }
+
+    @Benchmark
+    public void transform() throws SaxonApiException {
+        XsltTransformer transformer = stylesheet.load();
+        transformer.setInitialTemplate(new QName("main"));
+        transformer.setParameter(new QName("count"), new XdmAtomicValue(count));
+        transformer.setDestination(processor.newSerializer(nullOutput));
+        transformer.transform();
+    }
+}
@@ -2,6 +2,8 @@ package org.basex.examples.api;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.charset.*;
 import java.security.*;
 import java.util.*;
@@ -10,6 +12,12 @@ import java.util.*;
  * Java client for BaseX.
  * Works with BaseX 7.0 and later
  *
+ * The socket is read and written through a {@link SocketChannel} and reusable direct
+ * buffers. Strings are unescaped and escaped a run of bytes at a time, between the
+ * 0x00 and 0xFF delimiters, instead of one byte at a time.
+ * Results that have to be buffered are kept in memory up to a limit, and the rest
+ * is written to a temporary file, mapped in memory to be read back.
+ *
  * Documentation: http://docs.basex.org/wiki/Clients
  *
  * (C) BaseX Team 2005-15, BSD License
@@ -17,15 +25,37 @@ import java.util.*;
 public final class BaseXClient implements Closeable {
   /** UTF-8 charset. */
   public static final Charset UTF8 = Charset.forName("UTF-8");
-  /** Output stream. */
-  private final OutputStream out;
+  /** Maximum number of prepared queries kept open. */
+  private static final int MAX_PREPARED = 32;
+  /** Size of the socket buffers. */
+  private static final int BUFFER_SIZE = 1 << 16;
+  /** Maximum number of commands sent before their replies are read. */
+  private static final int PIPELINE = 64;
+  /** Output stream (buffered). */
+  private final Output out;
   /** Input stream (buffered). */
-  private final BufferedInputStream in;
+  private final Input in;
 
-  /** Socket. */
-  private final Socket socket;
+  /** Socket channel. */
+  private final SocketChannel channel;
   /** Command info. */
   private String info;
+  /** Query whose results are currently being streamed (can be {@code null}). */
+  private Query active;
+  /** Prepared queries that are not in use, by query string (least recently used first). */
+  private final LinkedHashMap<String, Query> prepared = new LinkedHashMap<>(16, 0.75f, true);
+  /** Time spent to connect, in nanoseconds. */
+  private final long connectTime;
+  /** Time spent to authenticate, in nanoseconds. */
+  private final long authTime;
+  /** Indicates if detailed query info is enabled on the server. */
+  private boolean queryInfo;
+  /** Number of bytes of buffered results of a query kept in memory. */
+  private long spillThreshold = Long.MAX_VALUE;
+  /** Indicates that replies to bind commands are read later (see {@link #batch(List, Binder, boolean)}). */
+  private boolean deferring;
+  /** Number of replies to bind commands that have not been read yet. */
+  private int deferred;
 
   /**
    * Constructor.
@@ -37,11 +67,35 @@ public final class BaseXClient implements Closeable {
    */
   public BaseXClient(final String host, final int port, final String username,
       final String password) throws IOException {
+    this(host, port, username, password, 5000);
+  }
 
-    socket = new Socket();
-    socket.connect(new InetSocketAddress(host, port), 5000);
-    in = new BufferedInputStream(socket.getInputStream());
-    out = socket.getOutputStream();
+  /**
+   * Constructor.
+   * @param host server name
+   * @param port server port
+   * @param username user name
+   * @param password password
+   * @param timeout connection timeout, in milliseconds
+   * @throws IOException Exception
+   */
+  public BaseXClient(final String host, final int port, final String username,
+      final String password, final int timeout) throws IOException {
+
+    final long start = System.nanoTime();
+    channel = SocketChannel.open();
+    try {
+      channel.socket().connect(new InetSocketAddress(host, port), timeout);
+      // commands are buffered, and flushed as a whole
+      channel.socket().setTcpNoDelay(true);
+    } catch(final IOException ex) {
+      channel.close();
+      throw ex;
+    }
+    out = new Output(channel);
+    in = new Input(channel, out);
+    final long connected = System.nanoTime();
+    connectTime = connected - start;
 
     // receive server response
     final String[] response = receive().split(":");
@@ -60,7 +114,32 @@ public final class BaseXClient implements Closeable {
     send(md5(md5(code) + nonce));
 
     // receive success flag
-    if(!ok()) throw new IOException("Access denied.");
+    if(!ok()) throw new ServerException("Access denied.");
+    authTime = System.nanoTime() - connected;
+  }
+
+  /**
+   * Returns the time spent to open the connection.
+   * @return time in nanoseconds
+   */
+  public long connectTime() {
+    return connectTime;
+  }
+
+  /**
+   * Returns the time spent to authenticate.
+   * @return time in nanoseconds
+   */
+  public long authTime() {
+    return authTime;
+  }
+
+  /**
+   * Returns the number of bytes received on this session since it has been opened.
+   * @return number of bytes
+   */
+  public long received() {
+    return in.received;
   }
 
   /**
@@ -70,11 +149,12 @@ public final class BaseXClient implements Closeable {
    * @throws IOException Exception
    */
   public void execute(final String command, final OutputStream output) throws IOException {
+    suspend();
     // send {Command}0
     send(command);
     receive(in, output);
     info = receive();
-    if(!ok()) throw new IOException(info);
+    if(!ok()) throw new ServerException(info);
   }
 
   /**
@@ -89,6 +169,28 @@ public final class BaseXClient implements Closeable {
     return new String(os.toByteArray(), UTF8);
   }
 
+  /**
+   * Sets the number of bytes of buffered results of a query that are kept in memory.
+   * Beyond this limit, results are written to a temporary file. By default, all
+   * results are kept in memory.
+   * @param bytes number of bytes
+   */
+  public void spillThreshold(final long bytes) {
+    spillThreshold = bytes;
+  }
+
+  /**
+   * Enables or disables detailed query info : the timings of each phase, returned by
+   * {@link Query#info()}. The option is only sent to the server if it changes.
+   * @param value detailed query info
+   * @throws IOException Exception
+   */
+  public void queryInfo(final boolean value) throws IOException {
+    if(queryInfo == value) return;
+    execute("SET QUERYINFO " + value);
+    queryInfo = value;
+  }
+
   /**
    * Creates a query object.
    * @param query query string
@@ -99,6 +201,155 @@ public final class BaseXClient implements Closeable {
     return new Query(query);
   }
 
+  /**
+   * Returns a query object for the specified query string. If this query has already been
+   * prepared on this session, and released, it is reused without being parsed again.
+   * Variables keep the values they have been bound to by previous executions.
+   * The query must be given back with {@link #release(Query)}, or closed.
+   * @param query query string
+   * @return query
+   * @throws IOException Exception
+   */
+  public Query prepare(final String query) throws IOException {
+    final Query q = prepared.remove(query);
+    return q != null ? q : new Query(query);
+  }
+
+  /**
+   * Gives back a query returned by {@link #prepare(String)}, so that it can be reused.
+   * Results that have not been read are discarded.
+   * @param query query
+   * @throws IOException Exception
+   */
+  public void release(final Query query) throws IOException {
+    query.reset();
+    final Query old = prepared.put(query.text, query);
+    if(old != null && old != query) old.close();
+    if(prepared.size() > MAX_PREPARED) {
+      final Iterator<Query> it = prepared.values().iterator();
+      final Query eldest = it.next();
+      it.remove();
+      eldest.close();
+    }
+  }
+
+  /**
+   * Prepares and runs several queries, without waiting for each reply : queries are
+   * created in one round trip, then their results are received in a second one.
+   * Commands are sent by groups of 64, so that the server never waits for replies to be read.
+   * Queries prepared on this session, and released, are not parsed again.
+   * Results are buffered ; the queries are then iterated as usual, and must be given
+   * back with {@link #release(Query)}, or closed.
+   * @param queries query strings
+   * @param full requests results with their XDM meta data (see {@link Query#full(boolean)})
+   * @return queries, in the same order
+   * @throws IOException I/O exception, or error raised while parsing a query
+   */
+  public List<Query> batch(final List<String> queries, final boolean full) throws IOException {
+    return batch(queries, null, full);
+  }
+
+  /**
+   * Prepares, binds and runs several queries, without waiting for each reply : variables
+   * are bound once all queries have been created, and replies to bind commands are read
+   * by groups of 64, before results are requested.
+   * @param queries query strings
+   * @param binder binds the variables of each query (can be {@code null})
+   * @param full requests results with their XDM meta data (see {@link Query#full(boolean)})
+   * @return queries, in the same order
+   * @throws IOException I/O exception, or error raised while parsing a query or binding a variable
+   */
+  public List<Query> batch(final List<String> queries, final Binder binder, final boolean full)
+      throws IOException {
+    suspend();
+    final int size = queries.size();
+    final Query[] result = new Query[size];
+    final ArrayList<Integer> created = new ArrayList<>();
+    for(int i = 0; i < size; i++) {
+      result[i] = prepared.remove(queries.get(i));
+      if(result[i] == null) created.add(i);
+    }
+    // send {0}{query}0 for each new query, then read ids
+    String error = null;
+    for(int w = 0; w < created.size(); w += PIPELINE) {
+      final int end = Math.min(created.size(), w + PIPELINE);
+      for(int c = w; c < end; c++) {
+        out.write(0);
+        send(queries.get(created.get(c)));
+      }
+      for(int c = w; c < end; c++) {
+        final int i = created.get(c);
+        final String id = receive();
+        if(ok()) {
+          result[i] = new Query(queries.get(i), id);
+        } else {
+          final String msg = receive();
+          if(error == null) error = msg;
+        }
+      }
+    }
+    if(error == null && binder != null) error = bind(result, binder);
+    if(error != null) {
+      for(final Query query : result) {
+        if(query != null) release(query);
+      }
+      throw new ServerException(error);
+    }
+    // send {31 or 4}{id}0 for each query, then read all results
+    for(int w = 0; w < size; w += PIPELINE) {
+      final int end = Math.min(size, w + PIPELINE);
+      for(int i = w; i < end; i++) {
+        result[i].full(full);
+        out.write(full ? 31 : 4);
+        send(result[i].id);
+      }
+      for(int i = w; i < end; i++) result[i].buffer();
+    }
+    return Arrays.asList(result);
+  }
+
+  /**
+   * Binds the variables of the queries of a batch. Bind commands are sent without
+   * waiting for their replies.
+   * @param queries queries, created on the server
+   * @param binder binds the variables of each query
+   * @return first error raised by the server, or {@code null}
+   * @throws IOException I/O exception
+   */
+  private String bind(final Query[] queries, final Binder binder) throws IOException {
+    String error = null;
+    deferring = true;
+    try {
+      for(int i = 0; i < queries.length; i++) {
+        binder.bind(i, queries[i]);
+        if(deferred >= PIPELINE) error = replies(error);
+      }
+    } finally {
+      deferring = false;
+      // replies to the commands that have been sent as a whole
+      error = replies(error);
+    }
+    return error;
+  }
+
+  /**
+   * Reads the replies to deferred bind commands.
+   * @param error first error, or {@code null}
+   * @return first error, or {@code null}
+   * @throws IOException I/O exception
+   */
+  private String replies(final String error) throws IOException {
+    String first = error;
+    for(; deferred > 0; deferred--) {
+      receive();
+      if(!ok()) {
+        final String msg = receive();
+        if(first == null) first = msg;
+      }
+    }
+    return first;
+  }
+
   /**
    * Creates a database.
    * @param name name of database
@@ -119,6 +370,24 @@ public final class BaseXClient implements Closeable {
     send(9, path, input);
   }
 
+  /**
+   * Adds a document to a database. The document is written while it is sent,
+   * without being buffered.
+   * @param path path to resource
+   * @param content xml content
+   * @throws IOException I/O exception
+   */
+  public void add(final String path, final Content content) throws IOException {
+    suspend();
+    out.write(9);
+    send(path);
+    content.write(new EscapedOutput(out));
+    out.write(0);
+    out.flush();
+    info = receive();
+    if(!ok()) throw new ServerException(info);
+  }
+
   /**
    * Replaces a document in a database.
    * @param path path to resource
@@ -149,13 +418,23 @@ public final class BaseXClient implements Closeable {
 
   /**
    * Closes the session.
+   * If a query is still streaming its results, the socket is closed without
+   * reading them, which cancels the query.
    * @throws IOException Exception
    */
   @Override
   public void close() throws IOException {
-    send("exit");
-    out.flush();
-    socket.close();
+    if(active != null) {
+      active = null;
+      channel.close();
+      return;
+    }
+    try {
+      send("exit");
+      out.flush();
+    } finally {
+      channel.close();
+    }
   }
 
   /**
@@ -168,6 +447,19 @@ public final class BaseXClient implements Closeable {
     return in.read() == 0;
   }
 
+  /**
+   * Buffers the remaining results of the query that is currently streamed,
+   * so that a new command can be sent.
+   * @throws IOException I/O exception
+   */
+  private void suspend() throws IOException {
+    if(active != null) {
+      final Query query = active;
+      active = null;
+      query.buffer();
+    }
+  }
+
   /**
    * Returns the next received string.
    * @return String result or info
@@ -194,12 +486,9 @@ public final class BaseXClient implements Closeable {
    * @param output output stream
    * @throws IOException I/O exception
    */
-  private static void receive(final InputStream input, final OutputStream output)
+  private static void receive(final Input input, final OutputStream output)
       throws IOException {
-    for(int b; (b = input.read()) > 0;) {
-      // read next byte if 0xFF is received
-      output.write(b == 0xFF ? input.read() : b);
-    }
+    input.receive(output);
   }
 
   /**
@@ -210,6 +499,7 @@ public final class BaseXClient implements Closeable {
    * @throws IOException I/O exception
    */
   private void send(final int code, final String path, final InputStream input) throws IOException {
+    suspend();
     out.write(code);
     send(path);
     send(input);
@@ -221,17 +511,10 @@ public final class BaseXClient implements Closeable {
    * @throws IOException I/O exception
    */
   private void send(final InputStream input) throws IOException {
-    final BufferedInputStream bis = new BufferedInputStream(input);
-    final BufferedOutputStream bos = new BufferedOutputStream(out);
-    for(int b; (b = bis.read()) != -1;) {
-      // 0x00 and 0xFF will be prefixed by 0xFF
-      if(b == 0x00 || b == 0xFF) bos.write(0xFF);
-      bos.write(b);
-    }
-    bos.write(0);
-    bos.flush();
+    out.send(input);
+    out.flush();
     info = receive();
-    if(!ok()) throw new IOException(info);
+    if(!ok()) throw new ServerException(info);
   }
 
   /**
@@ -258,14 +541,45 @@ public final class BaseXClient implements Closeable {
 
   /**
    * Inner class for iterative query execution.
+   * Results are read from the socket one item at a time. If another command is sent
+   * on the session before all items have been read, the remaining items are buffered.
    */
   public class Query {
     /** Query id. */
     private final String id;
-    /** Cached results. */
-    private ArrayList<byte[]> cache;
+    /** Query string. */
+    private final String text;
+    /** Buffered results (only assigned if iteration has been suspended).
+     * Each entry contains the item type, the item URI if any, and the item bytes. */
+    private Buffer cache;
     /** Cache pointer. */
     private int pos;
+    /** Next buffered item, not returned yet. */
+    private byte[] next;
+    /** Offset of the item bytes in the next buffered item. */
+    private int offset;
+    /** Indicates if results are requested with their XDM meta data. */
+    private boolean full;
+    /** Type of the next item. */
+    private int type;
+    /** URI of the next item (only assigned for some types in full mode). */
+    private String uri;
+    /** Indicates that the next item is available on the socket, but not read yet. */
+    private boolean pending;
+    /** Stream on the socket returned for the current item (can be {@code null}). */
+    private ItemInput current;
+    /** Error received at the end of buffered results. */
+    private String error;
+    /** Indicates if the query is updating (assigned on first request). */
+    private Boolean updating;
+    /** Indicates that the query has been closed on the server, and only buffered results are left. */
+    private boolean detached;
+    /** Indicates that all results have been read : the query is not run again before it is reset. */
+    private boolean finished;
+    /** Time between the request of results and the first byte of reply, in nanoseconds. */
+    private long firstByte = -1;
+    /** Reusable item buffer. */
+    private final ByteArrayOutputStream item = new ByteArrayOutputStream();
 
     /**
      * Standard constructor.
@@ -274,6 +588,17 @@ public final class BaseXClient implements Closeable {
      */
     Query(final String query) throws IOException {
       id = exec(0, query);
+      text = query;
+    }
+
+    /**
+     * Constructor for a query that has already been created on the server.
+     * @param query query string
+     * @param id query id
+     */
+    Query(final String query, final String id) {
+      this.id = id;
+      text = query;
     }
 
     /**
@@ -294,10 +619,23 @@ public final class BaseXClient implements Closeable {
      * @throws IOException I/O exception
      */
     public void bind(final String name, final String value, final String type) throws IOException {
-      cache = null;
+      reset();
       exec(3, id + '\0' + name + '\0' + value + '\0' + type);
     }
 
+    /**
+     * Binds a value with the specified type to an external variable.
+     * The value is written while it is sent, without being buffered.
+     * @param name name of variable
+     * @param value value; it must not contain any 0 byte
+     * @param type type (can be an empty string)
+     * @throws IOException I/O exception
+     */
+    public void bind(final String name, final Content value, final String type) throws IOException {
+      reset();
+      exec(3, id + '\0' + name, value, type);
+    }
+
     /**
      * Binds a value to the context item.
      * @param value value
@@ -314,41 +652,161 @@ public final class BaseXClient implements Closeable {
      * @throws IOException I/O exception
      */
     public void context(final String value, final String type) throws IOException {
-      cache = null;
+      reset();
       exec(14, id + '\0' + value + '\0' + type);
     }
 
+    /**
+     * Binds a value with the specified type to the context item.
+     * The value is written while it is sent, without being buffered.
+     * @param value value; it must not contain any 0 byte
+     * @param type type (can be an empty string)
+     * @throws IOException I/O exception
+     */
+    public void context(final Content value, final String type) throws IOException {
+      reset();
+      exec(14, id, value, type);
+    }
+
+    /**
+     * Requests results with their XDM meta data (FULL command) instead of
+     * plain results (ITER command). Must be set before iterating.
+     * @param value full mode
+     */
+    public void full(final boolean value) {
+      full = value;
+    }
+
     /**
      * Checks for the next item.
      * @return result of check
      * @throws IOException I/O exception
      */
     public boolean more() throws IOException {
-      if(cache == null) {
-        out.write(4);
-        send(id);
-        cache = new ArrayList<>();
-        final ByteArrayOutputStream os = new ByteArrayOutputStream();
-        while(in.read() > 0) {
-          receive(in, os);
-          cache.add(os.toByteArray());
-          os.reset();
+      if(next != null || pending) return true;
+      if(current != null) {
+        current.close();
+        current = null;
+      }
+      if(cache != null) {
+        if(pos < cache.size()) {
+          next = cache.get(pos++);
+          type = next[0] & 0xFF;
+          uri = null;
+          offset = 1;
+          if(full && meta(type)) {
+            while(next[offset] != 0) offset++;
+            uri = new String(next, 1, offset - 1, UTF8);
+            offset++;
+          }
+          return true;
         }
-        if(!ok()) throw new IOException(receive());
-        pos = 0;
+        cache.close();
+        cache = null;
+        finished = true;
+        if(error != null) {
+          final String msg = error;
+          error = null;
+          throw new ServerException(msg);
+        }
+        return false;
+      }
+      if(detached || finished) return false;
+      long start = -1;
+      if(active != this) {
+        suspend();
+        start = System.nanoTime();
+        out.write(full ? 31 : 4);
+        send(id);
+        out.flush();
+        active = this;
       }
-      if(pos < cache.size()) return true;
-      cache = null;
+      final int t = in.read();
+      if(start != -1) firstByte = System.nanoTime() - start;
+      if(t > 0) {
+        type = t;
+        uri = full && meta(t) ? meta() : null;
+        pending = true;
+        return true;
+      }
+      active = null;
+      finished = true;
+      if(!ok()) throw new ServerException(receive());
       return false;
     }
 
+    /**
+     * Checks if results of this query are currently being read from the socket.
+     * @return {@code true} if some results have not been received yet
+     */
+    public boolean isStreaming() {
+      return active == this;
+    }
+
+    /**
+     * Returns the time between the request of results, which runs the query, and the
+     * first byte of reply. Available after the first call to {@link #more()}.
+     * @return time in nanoseconds, or {@code -1} if results have not been requested
+     */
+    public long firstByteTime() {
+      return firstByte;
+    }
+
+    /**
+     * Returns the type of the next item, as defined by the server protocol
+     * (e.g. 11 for element(), 52 for xs:integer). Must be called after {@link #more()}.
+     * @return type id
+     */
+    public int type() {
+      return type;
+    }
+
+    /**
+     * Returns the URI sent with the next item in full mode : base URI of a document,
+     * namespace URI of an attribute or of a QName. Must be called after {@link #more()}.
+     * @return URI, or {@code null}
+     */
+    public String uri() {
+      return uri;
+    }
+
     /**
      * Returns the next item.
      * @return item string
      * @throws IOException I/O Exception
      */
     public String next() throws IOException {
-      return more() ? new String(cache.set(pos++, null), UTF8) : null;
+      if(!more()) return null;
+      final byte[] bytes;
+      if(pending) {
+        pending = false;
+        receive(in, item);
+        bytes = item.toByteArray();
+        item.reset();
+        return new String(bytes, UTF8);
+      }
+      bytes = next;
+      next = null;
+      return new String(bytes, offset, bytes.length - offset, UTF8);
+    }
+
+    /**
+     * Returns the next item as a stream of bytes, that are read from the socket,
+     * and unescaped, while the stream is consumed. The stream must be fully read,
+     * or closed, before using this query again.
+     * @return item stream, or {@code null} if there is no more item
+     * @throws IOException I/O Exception
+     */
+    public InputStream stream() throws IOException {
+      if(!more()) return null;
+      if(pending) {
+        pending = false;
+        current = new ItemInput();
+        return current;
+      }
+      final byte[] bytes = next;
+      next = null;
+      return new ByteArrayInputStream(bytes, offset, bytes.length - offset);
     }
 
     /**
@@ -369,6 +827,16 @@ public final class BaseXClient implements Closeable {
       return exec(6, id);
     }
 
+    /**
+     * Checks if the query may perform updates. The answer is asked once per query.
+     * @return result of check
+     * @throws IOException I/O exception
+     */
+    public boolean updating() throws IOException {
+      if(updating == null) updating = Boolean.valueOf(exec(30, id));
+      return updating;
+    }
+
     /**
      * Returns serialization parameters in a string.
      * @return query info
@@ -383,22 +851,721 @@ public final class BaseXClient implements Closeable {
      * @throws IOException I/O exception
      */
     public void close() throws IOException {
+      reset();
+      if(!detached) exec(2, id);
+    }
+
+    /**
+     * Reads all remaining results, and closes the query on the server. Results are
+     * then read from the buffer, without the session : it may be used by others, or
+     * closed. The query must not be released, but closed once it has been read.
+     * @return number of remaining results
+     * @throws IOException I/O exception
+     */
+    public int detach() throws IOException {
+      if(detached) return remaining();
+      if(more() && active == this) {
+        active = null;
+        buffer();
+      }
       exec(2, id);
+      detached = true;
+      return remaining();
+    }
+
+    /**
+     * Returns the number of buffered results that have not been read yet.
+     * @return number of results
+     */
+    private int remaining() {
+      return (next != null ? 1 : 0) + (cache != null ? cache.size() - pos : 0);
+    }
+
+    /**
+     * Discards remaining results : the ones that are buffered, and the ones that are
+     * still to be read from the socket. The query is run again by the next request of results.
+     * @throws IOException I/O exception
+     */
+    private void reset() throws IOException {
+      firstByte = -1;
+      finished = false;
+      next = null;
+      if(cache != null) {
+        cache.close();
+        cache = null;
+      }
+      error = null;
+      if(active == this) {
+        active = null;
+        if(current != null) current.close();
+        if(pending) in.skipString();
+        while(in.read() > 0) in.skipString();
+        if(!ok()) receive();
+      }
+      current = null;
+      pending = false;
+    }
+
+    /**
+     * Reads all remaining results in the cache.
+     * @throws IOException I/O exception
+     */
+    private void buffer() throws IOException {
+      if(current != null) current.detach();
+      cache = new Buffer(spillThreshold);
+      pos = 0;
+      try {
+        if(pending) {
+          pending = false;
+          item.write(type);
+          if(uri != null) {
+            item.write(uri.getBytes(UTF8));
+            item.write(0);
+          }
+          receive(in, item);
+          cache.add(item.toByteArray());
+          item.reset();
+        }
+        for(int t; (t = in.read()) > 0;) {
+          item.write(t);
+          if(full && meta(t)) {
+            item.write(meta().getBytes(UTF8));
+            item.write(0);
+          }
+          receive(in, item);
+          cache.add(item.toByteArray());
+          item.reset();
+        }
+        cache.finish();
+      } catch(final IOException ex) {
+        cache.close();
+        cache = null;
+        throw ex;
+      }
+      if(!ok()) error = receive();
+    }
+
+    /**
+     * Checks if items of the specified type are preceded by a URI in full mode.
+     * @param t type id
+     * @return result of check
+     */
+    private boolean meta(final int t) {
+      // document-node(), document-node(element()), attribute(), xs:QName
+      return t == 12 || t == 13 || t == 14 || t == 82;
+    }
+
+    /**
+     * Reads the URI that precedes an item in full mode. It is sent inside the escaped
+     * item, and terminated by an escaped 0.
+     * @return URI
+     * @throws IOException I/O exception
+     */
+    private String meta() throws IOException {
+      final ByteArrayOutputStream os = new ByteArrayOutputStream();
+      for(int b; (b = in.read()) > 0;) {
+        if(b == 0xFF && (b = in.read()) == 0) break;
+        os.write(b);
+      }
+      return new String(os.toByteArray(), UTF8);
     }
 
     /**
      * Executes the specified command.
      * @param code command code
      * @param arg argument
-     * @return resulting string
+     * @return resulting string, or {@code null} if the reply is read later
      * @throws IOException I/O exception
      */
     private String exec(final int code, final String arg) throws IOException {
+      suspend();
       out.write(code);
       send(arg);
+      if(deferring) {
+        deferred++;
+        return null;
+      }
       final String s = receive();
-      if(!ok()) throw new IOException(receive());
+      if(!ok()) throw new ServerException(receive());
       return s;
     }
+
+    /**
+     * Executes the specified command, with an argument that is written while it is sent.
+     * @param code command code
+     * @param head arguments before the value
+     * @param value value
+     * @param tail argument after the value
+     * @throws IOException I/O exception
+     */
+    private void exec(final int code, final String head, final Content value, final String tail)
+        throws IOException {
+      suspend();
+      out.write(code);
+      send(head);
+      value.write(new ArgumentOutput(out));
+      out.write(0);
+      send(tail);
+      if(deferring) {
+        deferred++;
+        return;
+      }
+      receive();
+      if(!ok()) throw new ServerException(receive());
+    }
+
+    /**
+     * Unescaped bytes of an item, read from the socket up to the item terminator.
+     */
+    private final class ItemInput extends InputStream {
+      /** Indicates that item terminator has been read. */
+      private boolean done;
+      /** Remaining bytes, read from the socket when the query has been suspended. */
+      private byte[] rest;
+      /** Position in remaining bytes. */
+      private int restPos;
+
+      @Override
+      public int read() throws IOException {
+        if(rest != null) return restPos < rest.length ? rest[restPos++] & 0xFF : -1;
+        if(done) return -1;
+        int b = in.read();
+        if(b == 0xFF) {
+          b = in.read();
+        } else if(b <= 0) {
+          done = true;
+          if(b < 0) throw new EOFException("Connection closed while reading item.");
+          return -1;
+        }
+        return b;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+        if(len == 0) return 0;
+        if(rest != null) {
+          final int n = Math.min(len, rest.length - restPos);
+          if(n <= 0) return -1;
+          System.arraycopy(rest, restPos, b, off, n);
+          restPos += n;
+          return n;
+        }
+        if(done) return -1;
+        final int n = in.readString(b, off, len);
+        if(n < 0) done = true;
+        return n;
+      }
+
+      @Override
+      public void close() throws IOException {
+        if(rest == null && !done) {
+          done = true;
+          in.skipString();
+        }
+      }
+
+      /**
+       * Reads the remaining bytes of the item, so that the socket can be used.
+       * @throws IOException I/O exception
+       */
+      void detach() throws IOException {
+        if(rest != null) return;
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        if(!done) receive(in, os);
+        done = true;
+        rest = os.toByteArray();
+      }
+    }
+  }
+
+  /**
+   * Buffered input of the socket channel. Strings are read and unescaped a run of
+   * bytes at a time. Buffered output is flushed before waiting for the server.
+   */
+  private static final class Input extends InputStream {
+    /** Socket channel. */
+    private final SocketChannel channel;
+    /** Output of the same channel. */
+    private final Output output;
+    /** Buffer the channel is read into. */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /** Bytes read from the buffer. */
+    private final byte[] data = new byte[BUFFER_SIZE];
+    /** Position of the next byte. */
+    private int pos;
+    /** Number of available bytes. */
+    private int limit;
+    /** Number of bytes received. */
+    private long received;
+
+    /**
+     * Constructor.
+     * @param channel socket channel
+     * @param output output of the channel
+     */
+    Input(final SocketChannel channel, final Output output) {
+      this.channel = channel;
+      this.output = output;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if(pos == limit && !fill()) return -1;
+      return data[pos++] & 0xFF;
+    }
+
+    /**
+     * Reads unescaped bytes of the current string. Stops before the string terminator,
+     * which is only consumed by a call that returns {@code -1}.
+     * @param b target array
+     * @param off offset in the array
+     * @param len maximum number of bytes
+     * @return number of bytes, or {@code -1} if the terminator has been read
+     * @throws IOException I/O exception
+     */
+    int readString(final byte[] b, final int off, final int len) throws IOException {
+      int n = 0;
+      while(n < len) {
+        if(pos == limit && !fill()) throw new EOFException("Connection closed while reading item.");
+        final int start = pos;
+        final int end = Math.min(limit, pos + len - n);
+        int p = start;
+        while(p < end && data[p] != 0 && data[p] != (byte) 0xFF) p++;
+        System.arraycopy(data, start, b, off + n, p - start);
+        n += p - start;
+        pos = p;
+        if(p == end) continue;
+        if(data[p] == 0) {
+          if(n > 0) return n;
+          pos++;
+          return -1;
+        }
+        // escaped byte
+        if(++pos == limit && !fill()) throw new EOFException("Connection closed while reading item.");
+        b[off + n++] = data[pos++];
+      }
+      return n;
+    }
+
+    /**
+     * Reads and unescapes a string, up to its terminator.
+     * @param output output stream
+     * @throws IOException I/O exception
+     */
+    void receive(final OutputStream output) throws IOException {
+      while(pos < limit || fill()) {
+        final int start = pos;
+        int p = start;
+        while(p < limit && data[p] != 0 && data[p] != (byte) 0xFF) p++;
+        if(p > start) output.write(data, start, p - start);
+        pos = p;
+        if(p == limit) continue;
+        pos++;
+        if(data[p] == 0) return;
+        // escaped byte
+        if(pos == limit && !fill()) return;
+        output.write(data[pos++]);
+      }
+    }
+
+    /**
+     * Skips a string.
+     * @throws IOException I/O exception
+     */
+    void skipString() throws IOException {
+      while(pos < limit || fill()) {
+        int p = pos;
+        while(p < limit && data[p] != 0 && data[p] != (byte) 0xFF) p++;
+        pos = p;
+        if(p == limit) continue;
+        pos++;
+        if(data[p] == 0) return;
+        // escaped byte
+        if(pos == limit && !fill()) return;
+        pos++;
+      }
+    }
+
+    /**
+     * Reads the next bytes from the channel.
+     * @return {@code false} if the end of stream has been reached
+     * @throws IOException I/O exception
+     */
+    private boolean fill() throws IOException {
+      output.flush();
+      buffer.clear();
+      int n;
+      do {
+        n = channel.read(buffer);
+      } while(n == 0);
+      if(n < 0) return false;
+      buffer.flip();
+      buffer.get(data, 0, n);
+      pos = 0;
+      limit = n;
+      received += n;
+      return true;
+    }
+  }
+
+  /**
+   * Buffered results of a query. Items are kept in memory up to a number of bytes ;
+   * the next ones are written to a temporary file, each one preceded by its length.
+   * The file is then mapped in memory, by regions, to read items back, in any order.
+   * It is deleted as soon as it has been opened, if the file system allows it,
+   * or when the buffer is closed.
+   */
+  private static final class Buffer implements Closeable {
+    /** Size of the file regions mapped at once. */
+    private static final int REGION = 1 << 26;
+    /** Items kept in memory. */
+    private final ArrayList<byte[]> memory = new ArrayList<>();
+    /** Number of bytes that may be kept in memory. */
+    private final long limit;
+    /** Number of bytes kept in memory. */
+    private long size;
+    /** Temporary file (can be {@code null}), and its channel. */
+    private File file;
+    private FileChannel channel;
+    /** Items written to the file, not written to the channel yet. */
+    private ByteBuffer pending;
+    /** Offsets of the items in the file. */
+    private long[] offsets = new long[64];
+    /** Number of items in the file. */
+    private int spilled;
+    /** Length of the file. */
+    private long length;
+    /** Mapped region of the file (can be {@code null}), and its offset. */
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    /**
+     * Constructor.
+     * @param limit number of bytes that may be kept in memory
+     */
+    Buffer(final long limit) {
+      this.limit = limit;
+    }
+
+    /**
+     * Adds an item.
+     * @param item item bytes
+     * @throws IOException I/O exception
+     */
+    void add(final byte[] item) throws IOException {
+      if(channel == null && size + item.length <= limit) {
+        memory.add(item);
+        size += item.length;
+        return;
+      }
+      if(channel == null) open();
+      if(spilled == offsets.length) offsets = Arrays.copyOf(offsets, spilled << 1);
+      offsets[spilled++] = length;
+      length += 4 + item.length;
+      if(pending.remaining() < 4) write();
+      pending.putInt(item.length);
+      for(int o = 0; o < item.length;) {
+        if(!pending.hasRemaining()) write();
+        final int n = Math.min(pending.remaining(), item.length - o);
+        pending.put(item, o, n);
+        o += n;
+      }
+    }
+
+    /**
+     * Writes the last items. Must be called once all items have been added.
+     * @throws IOException I/O exception
+     */
+    void finish() throws IOException {
+      if(pending != null) {
+        write();
+        pending = null;
+      }
+    }
+
+    /**
+     * Returns the number of items.
+     * @return number of items
+     */
+    int size() {
+      return memory.size() + spilled;
+    }
+
+    /**
+     * Returns an item.
+     * @param index index of the item
+     * @return item bytes
+     * @throws IOException I/O exception
+     */
+    byte[] get(final int index) throws IOException {
+      if(index < memory.size()) return memory.get(index);
+      final long offset = offsets[index - memory.size()];
+      map(offset, 4);
+      final int len = region.getInt((int) (offset - regionStart));
+      map(offset, 4 + len);
+      final byte[] item = new byte[len];
+      region.position((int) (offset - regionStart) + 4);
+      region.get(item);
+      return item;
+    }
+
+    /**
+     * Maps the region of the file that contains the specified bytes.
+     * @param offset offset of the first byte
+     * @param len number of bytes
+     * @throws IOException I/O exception
+     */
+    private void map(final long offset, final int len) throws IOException {
+      if(region != null && offset >= regionStart &&
+          offset + len <= regionStart + region.capacity()) return;
+      final long size = Math.min(length - offset, Math.max(REGION, len));
+      region = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+      regionStart = offset;
+    }
+
+    /**
+     * Creates the temporary file.
+     * @throws IOException I/O exception
+     */
+    private void open() throws IOException {
+      file = File.createTempFile("basex-result", ".tmp");
+      channel = new RandomAccessFile(file, "rw").getChannel();
+      if(file.delete()) file = null;
+      pending = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Writes the pending bytes to the file.
+     * @throws IOException I/O exception
+     */
+    private void write() throws IOException {
+      pending.flip();
+      while(pending.hasRemaining()) channel.write(pending);
+      pending.clear();
+    }
+
+    @Override
+    public void close() {
+      memory.clear();
+      region = null;
+      if(channel != null) {
+        try {
+          channel.close();
+        } catch(final IOException ex) {
+          // the file is deleted anyway
+        }
+        channel = null;
+      }
+      if(file != null && !file.delete()) file.deleteOnExit();
+      file = null;
+    }
+  }
+
+  /**
+   * Error reported by the server, e.g. a query error. The server could be
+   * reached : the session is still in a clean state.
+   */
+  public static final class ServerException extends IOException {
+    /** Serial version. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     * @param message error message
+     */
+    public ServerException(final String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Binds the variables of the queries of a batch (see {@link BaseXClient#batch(List, Binder, boolean)}).
+   */
+  public interface Binder {
+    /**
+     * Binds the variables of a query. Errors raised by the server are reported once
+     * all queries have been bound.
+     * @param index position of the query in the batch
+     * @param query query
+     * @throws IOException I/O exception
+     */
+    void bind(int index, Query query) throws IOException;
+  }
+
+  /**
+   * Content of a resource or of a bound value, written while it is sent.
+   */
+  public interface Content {
+    /**
+     * Writes the content.
+     * @param output output; written bytes are escaped if needed, and must not be terminated
+     * @throws IOException I/O exception
+     */
+    void write(OutputStream output) throws IOException;
+  }
+
+  /**
+   * Escapes the bytes of a resource, and writes them to the socket output.
+   */
+  private static final class EscapedOutput extends OutputStream {
+    /** Socket output. */
+    private final Output out;
+
+    /**
+     * Constructor.
+     * @param out socket output
+     */
+    EscapedOutput(final Output out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      // 0x00 and 0xFF will be prefixed by 0xFF
+      if((b & 0xFF) == 0 || (b & 0xFF) == 0xFF) out.write(0xFF);
+      out.write(b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      int start = off;
+      final int end = off + len;
+      for(int p = off; p < end; p++) {
+        if(b[p] == 0 || b[p] == (byte) 0xFF) {
+          out.write(b, start, p - start);
+          out.write(0xFF);
+          start = p;
+        }
+      }
+      out.write(b, start, end - start);
+    }
+
+    @Override
+    public void flush() {
+      // sent when the whole resource has been written
+    }
+
+    @Override
+    public void close() {
+      // terminated by the session
+    }
+  }
+
+  /**
+   * Writes an argument of a command to the socket output. Arguments are terminated by
+   * a 0 byte, and are not escaped.
+   */
+  private static final class ArgumentOutput extends OutputStream {
+    /** Socket output. */
+    private final Output out;
+
+    /**
+     * Constructor.
+     * @param out socket output
+     */
+    ArgumentOutput(final Output out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      if((b & 0xFF) == 0) throw new IOException("Arguments must not contain any 0 byte");
+      out.write(b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      final int end = off + len;
+      for(int p = off; p < end; p++) {
+        if(b[p] == 0) throw new IOException("Arguments must not contain any 0 byte");
+      }
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() {
+      // sent when the whole command has been written
+    }
+
+    @Override
+    public void close() {
+      // terminated by the session
+    }
+  }
+
+  /**
+   * Buffered output of the socket channel. Nothing is sent before {@link #flush()}.
+   */
+  private static final class Output extends OutputStream {
+    /** Socket channel. */
+    private final SocketChannel channel;
+    /** Buffer the channel is written from. */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /** Chunk of input to be escaped (created on demand). */
+    private byte[] chunk;
+
+    /**
+     * Constructor.
+     * @param channel socket channel
+     */
+    Output(final SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      if(!buffer.hasRemaining()) drain();
+      buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      int o = off, l = len;
+      while(l > 0) {
+        if(!buffer.hasRemaining()) drain();
+        final int n = Math.min(l, buffer.remaining());
+        buffer.put(b, o, n);
+        o += n;
+        l -= n;
+      }
+    }
+
+    /**
+     * Writes the contents of an input stream as an escaped string, and its terminator.
+     * @param input input stream
+     * @throws IOException I/O exception
+     */
+    void send(final InputStream input) throws IOException {
+      if(chunk == null) chunk = new byte[BUFFER_SIZE];
+      for(int n; (n = input.read(chunk)) != -1;) {
+        int start = 0;
+        for(int p = 0; p < n; p++) {
+          final byte b = chunk[p];
+          // 0x00 and 0xFF will be prefixed by 0xFF
+          if(b == 0 || b == (byte) 0xFF) {
+            write(chunk, start, p - start);
+            write(0xFF);
+            start = p;
+          }
+        }
+        write(chunk, start, n - start);
+      }
+      write(0);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if(buffer.position() > 0) drain();
+    }
+
+    /**
+     * Writes the buffered bytes to the channel.
+     * @throws IOException I/O exception
+     */
+    private void drain() throws IOException {
+      buffer.flip();
+      while(buffer.hasRemaining()) channel.write(buffer);
+      buffer.clear();
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,264 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.stream.StreamResult;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.StaticContext;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.query.QueryResult;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.value.Int64Value;
+import net.sf.saxon.value.IntegerValue;
+import net.sf.saxon.value.SequenceType;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * Adds documents to a database. Nodes are serialized directly to the session
+ * socket, while they are sent, without any intermediate string or file.
+ *
+ * Use as :
+ * <tt>efl-ext:basex-add("db/path/doc.xml", $doc, $connect)</tt>. The first step of the
+ * path is the database, which must exist. If the path ends with a <tt>/</tt>, it is a
+ * directory, and each document is named after the last step of its URI :
+ * <tt>efl-ext:basex-add("db/docs/", collection("docs"), $connect)</tt>. Documents that
+ * have no URI, or the URI of the calling stylesheet because they have been built by it,
+ * can only be added with their full path.
+ *
+ * Documents and elements are accepted. All documents are added with the same session,
+ * borrowed from the pool and not shared with the queries of the transformation.
+ * A fourth argument may give a number of documents per commit : documents are then
+ * written to disk by the server each time this number of documents has been added,
+ * instead of after each document. Returns the number of documents added.
+ *
+ * @author Christophe Marchand
+ */
+public class BaseXAdd extends ExtensionFunctionDefinition {
+    public static final String FUNCTION_NAME = "basex-add";
+    private static final String CONNECTION_MESSAGE = "third parameter must be an element() or a map(*)";
+
+    private final BaseXClientPool pool;
+
+    /**
+     * Builds the function with the default session pool.
+     * @see BaseXClientPool#getDefault()
+     */
+    public BaseXAdd() {
+        this(BaseXClientPool.getDefault());
+    }
+
+    /**
+     * Builds the function with the given session pool.
+     * @param pool The pool sessions are borrowed from
+     */
+    public BaseXAdd(BaseXClientPool pool) {
+        super();
+        this.pool = pool;
+    }
+
+    /**
+     * @return The pool sessions are borrowed from
+     */
+    public BaseXClientPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public StructuredQName getFunctionQName() {
+        return new StructuredQName(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI, FUNCTION_NAME);
+    }
+
+    @Override
+    public ExtensionFunctionCall makeCallExpression() {
+        return new AddCall();
+    }
+
+    /**
+     * Documents are added even if the result of the call is not used.
+     */
+    @Override
+    public boolean hasSideEffects() {
+        return true;
+    }
+
+    private class AddCall extends ExtensionFunctionCall {
+        /** Base URI of the calling stylesheet or query, also the URI of the nodes it builds. */
+        private String staticBaseURI;
+
+        @Override
+        public void supplyStaticContext(StaticContext context, int locationId, Expression[] arguments) throws XPathException {
+            staticBaseURI = context.getStaticBaseURI();
+        }
+
+        @Override
+        public void copyLocalData(ExtensionFunctionCall destination) {
+            if(destination instanceof AddCall) {
+                ((AddCall)destination).staticBaseURI = staticBaseURI;
+            }
+        }
+
+        @Override
+        public Sequence call(XPathContext xpc, Sequence[] sqncs) throws XPathException {
+            String path = sqncs[0].head().getStringValue();
+            int slash = path.indexOf('/');
+            if(slash<=0) {
+                throw new XPathException("path must start with a database name: "+path);
+            }
+            String database = path.substring(0, slash);
+            String target = path.substring(slash+1);
+            Connection connection = Connection.read(sqncs[2].head(), CONNECTION_MESSAGE);
+            if(connection.getEmbedded()!=null) {
+                throw new XPathException(FUNCTION_NAME+" needs a BaseX server, embedded databases are not supported");
+            }
+            ConnectionKey key = connection.getKey(FUNCTION_NAME);
+            long perCommit = 0;
+            if(sqncs.length==4) {
+                Item item = sqncs[3].head();
+                if(item!=null) perCommit = ((IntegerValue)item).longValue();
+            }
+            // not shared with the queries of the transformation : the session state is changed
+            BaseXClient session;
+            try {
+                session = pool.borrow(key);
+            } catch(IOException ex) {
+                throw new XPathException(ex);
+            }
+            long count = 0;
+            try {
+                session.execute("OPEN "+database);
+                String autoflush = null;
+                if(perCommit>0) {
+                    // restored afterwards : the session goes back to the pool
+                    autoflush = optionValue(session.execute("GET AUTOFLUSH"));
+                    session.execute("SET AUTOFLUSH false");
+                }
+                Properties output = outputProperties();
+                SequenceIterator it = sqncs[1].iterate();
+                for(Item item = it.next(); item!=null; item = it.next()) {
+                    NodeInfo node = checkNode(item);
+                    count++;
+                    session.add(resourcePath(target, node, staticBaseURI), new NodeContent(node, output));
+                    if(perCommit>0 && count%perCommit==0) session.execute("FLUSH");
+                }
+                if(perCommit>0) {
+                    session.execute("FLUSH");
+                    session.execute("SET AUTOFLUSH "+autoflush);
+                }
+                session.execute("CLOSE");
+                pool.release(key, session);
+            } catch(IOException | XPathException ex) {
+                // the database may still be opened, or a document half sent
+                pool.invalidate(key, session);
+                if(ex instanceof XPathException) throw (XPathException)ex;
+                if(ex.getCause() instanceof XPathException) throw (XPathException)ex.getCause();
+                throw new XPathException(ex);
+            }
+            return Int64Value.makeIntegerValue(count);
+        }
+    }
+
+    /**
+     * @param info Output of a <tt>GET</tt> command, i.e. <tt>AUTOFLUSH: true</tt>
+     * @return The value of the option
+     */
+    static String optionValue(String info) {
+        return info.substring(info.indexOf(':')+1).trim();
+    }
+
+    private static NodeInfo checkNode(Item item) throws XPathException {
+        if(item instanceof NodeInfo) {
+            NodeInfo node = (NodeInfo)item;
+            if(node.getNodeKind()==Type.DOCUMENT || node.getNodeKind()==Type.ELEMENT) return node;
+        }
+        throw new XPathException("second parameter must be a sequence of documents or elements");
+    }
+
+    /**
+     * @param target Path in database
+     * @param node The document
+     * @param staticBaseURI Base URI of the caller, may be <tt>null</tt>
+     * @return The resource path of the document
+     * @throws XPathException If the path is a directory, and the document has no URI of its own
+     */
+    static String resourcePath(String target, NodeInfo node, String staticBaseURI) throws XPathException {
+        if(!target.isEmpty() && !target.endsWith("/")) return target;
+        String uri = node.getSystemId();
+        // nodes built by a stylesheet or a query get its URI
+        String name = uri==null || uri.equals(staticBaseURI) ? "" : uri.substring(uri.lastIndexOf('/')+1);
+        if(name.isEmpty()) {
+            throw new XPathException("document has no URI to be named after, its full path must be given instead of "+(target.isEmpty() ? "the database" : target));
+        }
+        return target+name;
+    }
+
+    private static Properties outputProperties() {
+        Properties output = new Properties();
+        output.setProperty(OutputKeys.METHOD, "xml");
+        output.setProperty(OutputKeys.ENCODING, "UTF-8");
+        output.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        output.setProperty(OutputKeys.INDENT, "no");
+        return output;
+    }
+
+    /**
+     * A node, serialized while it is sent.
+     */
+    private static class NodeContent implements BaseXClient.Content {
+        private final NodeInfo node;
+        private final Properties output;
+
+        NodeContent(NodeInfo node, Properties output) {
+            this.node = node;
+            this.output = output;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            try {
+                QueryResult.serialize(node, new StreamResult(out), output);
+            } catch(XPathException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    @Override
+    public SequenceType[] getArgumentTypes() {
+        return new SequenceType[] {
+            SequenceType.SINGLE_STRING,
+            SequenceType.NODE_SEQUENCE,
+            SequenceType.SINGLE_ITEM,
+            SequenceType.OPTIONAL_INTEGER};
+    }
+
+    @Override
+    public SequenceType getResultType(SequenceType[] sts) {
+        return SequenceType.SINGLE_INTEGER;
+    }
+
+    @Override
+    public int getMinimumNumberOfArguments() {
+        return 3;
+    }
+
+    @Override
+    public int getMaximumNumberOfArguments() {
+        return 4;
+    }
+}
@@ -0,0 +1,412 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * A bounded pool of authenticated {@link BaseXClient} sessions, keyed by {@link ConnectionKey}.
+ *
+ * Sessions are borrowed with {@link #borrow(ConnectionKey)}, and must be given back
+ * with {@link #release(ConnectionKey, BaseXClient)} when the protocol is in a clean
+ * state, or with {@link #invalidate(ConnectionKey, BaseXClient)} after an I/O error.
+ * A session that is given back twice is only logged.
+ * New sessions, and the queries run by extension functions on borrowed sessions,
+ * are reported to a {@link QueryListener}, which is {@link BaseXMetrics#getInstance()} by default.
+ * Functions built without a pool share the one returned by {@link #getDefault()}, so that
+ * <tt>maxTotal</tt> bounds all of them, and calls of different functions in a transformation
+ * share their sessions.
+ * This class is thread-safe.
+ *
+ * @author Christophe Marchand
+ */
+public class BaseXClientPool implements SessionSource, AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(BaseXClientPool.class.getName());
+    /** Cheap command used to check an idle session is still alive. */
+    private static final String VALIDATION_COMMAND = "GET QUERYINFO";
+
+    private final PoolConfiguration config;
+    private final Map<ConnectionKey,KeyedPool> pools = new ConcurrentHashMap<>();
+    private final Timer evictor;
+    private final ServerHealth health;
+    private volatile boolean closed = false;
+    private volatile QueryListener listener = BaseXMetrics.getInstance();
+    /** Pool of the functions built without a pool. */
+    private static BaseXClientPool defaultPool;
+
+    public BaseXClientPool() {
+        this(PoolConfiguration.fromSystemProperties());
+    }
+
+    public BaseXClientPool(PoolConfiguration config) {
+        super();
+        this.config = config;
+        this.health = new ServerHealth(config.getEjectionTime());
+        if(config.getEvictionInterval()>0 && config.getMaxIdle()>0) {
+            evictor = new Timer("basex-pool-evictor", true);
+            evictor.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    evict();
+                }
+            }, config.getEvictionInterval(), config.getEvictionInterval());
+        } else {
+            evictor = null;
+        }
+    }
+
+    /**
+     * Returns the pool shared by the functions built without a pool, configured from
+     * system properties. It is created by the first call, and again if it has been closed.
+     * @return The default pool
+     */
+    public static synchronized BaseXClientPool getDefault() {
+        if(defaultPool==null || defaultPool.closed) {
+            defaultPool = new BaseXClientPool();
+        }
+        return defaultPool;
+    }
+
+    public PoolConfiguration getConfiguration() {
+        return config;
+    }
+
+    /**
+     * @return The health of the servers, used to choose among replicas
+     */
+    ServerHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * @return The listener of sessions and queries, or <tt>null</tt>
+     */
+    public QueryListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @param listener The listener of sessions and queries, or <tt>null</tt> to disable metrics
+     */
+    public void setListener(QueryListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns an idle session for this key, or opens a new one.
+     * Blocks up to <tt>borrowTimeout</tt> if <tt>maxTotal</tt> sessions are already open.
+     * @param key The server account
+     * @return An authenticated session
+     * @throws IOException If no session can be obtained
+     * @throws BorrowTimeoutException If all sessions are still in use after <tt>borrowTimeout</tt>
+     */
+    @Override
+    public BaseXClient borrow(ConnectionKey key) throws IOException {
+        if(closed) throw new IOException("BaseX session pool is closed");
+        return getPool(key).borrow();
+    }
+
+    /**
+     * Gives back a session, which must not have any pending result.
+     * @param key The key session has been borrowed with
+     * @param session The session
+     */
+    @Override
+    public void release(ConnectionKey key, BaseXClient session) {
+        getPool(key).release(session);
+    }
+
+    /**
+     * Closes a session whose query is still streaming, which cancels the query on
+     * the server, instead of reading all the remaining items.
+     * @param key The key session has been borrowed with
+     * @param session The session
+     * @param query The query that has not been read to the end
+     */
+    @Override
+    public void abandon(ConnectionKey key, BaseXClient session, BaseXClient.Query query) {
+        invalidate(key, session);
+    }
+
+    /**
+     * Closes a session that must not be reused, and frees its slot.
+     * @param key The key session has been borrowed with
+     * @param session The session
+     */
+    @Override
+    public void invalidate(ConnectionKey key, BaseXClient session) {
+        getPool(key).invalidate(session);
+    }
+
+    /**
+     * @param key The server account
+     * @return The number of idle sessions for this key
+     */
+    public int getIdleCount(ConnectionKey key) {
+        KeyedPool pool = pools.get(key);
+        return pool==null ? 0 : pool.getIdleCount();
+    }
+
+    /**
+     * @param key The server account
+     * @return The number of borrowed sessions for this key
+     */
+    public int getActiveCount(ConnectionKey key) {
+        KeyedPool pool = pools.get(key);
+        return pool==null ? 0 : pool.getActiveCount();
+    }
+
+    /**
+     * Closes all idle sessions and stops evictor. Borrowed sessions are closed when released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if(evictor!=null) evictor.cancel();
+        for(KeyedPool pool: pools.values()) {
+            pool.clear();
+        }
+    }
+
+    /**
+     * Closes sessions idle for too long, keeping <tt>minIdle</tt> of them, then refills to <tt>minIdle</tt>.
+     */
+    void evict() {
+        for(KeyedPool pool: pools.values()) {
+            pool.evict();
+        }
+    }
+
+    private KeyedPool getPool(ConnectionKey key) {
+        KeyedPool pool = pools.get(key);
+        if(pool==null) {
+            synchronized(pools) {
+                pool = pools.get(key);
+                if(pool==null) {
+                    pool = new KeyedPool(key);
+                    pools.put(key, pool);
+                }
+            }
+        }
+        return pool;
+    }
+
+    private static void closeQuietly(BaseXClient session) {
+        try {
+            session.close();
+        } catch(IOException ex) {
+            LOGGER.log(Level.FINE, "while closing BaseX session", ex);
+        }
+    }
+
+    private static class IdleSession {
+        private final BaseXClient session;
+        private final long since;
+        IdleSession(BaseXClient session) {
+            this.session = session;
+            this.since = System.currentTimeMillis();
+        }
+    }
+
+    private class KeyedPool {
+        private final ConnectionKey key;
+        /** Most recently released first. */
+        private final Deque<IdleSession> idle = new ArrayDeque<>();
+        /** Sessions borrowed and not given back yet. */
+        private final Set<BaseXClient> active = Collections.newSetFromMap(new IdentityHashMap<BaseXClient,Boolean>());
+        /** Sessions being opened, counted in <tt>maxTotal</tt>. */
+        private int pending = 0;
+
+        KeyedPool(ConnectionKey key) {
+            this.key = key;
+        }
+
+        BaseXClient borrow() throws IOException {
+            long deadline = System.currentTimeMillis()+config.getBorrowTimeout();
+            while(true) {
+                IdleSession candidate;
+                synchronized(this) {
+                    while(idle.isEmpty() && !canOpen()) {
+                        long wait = deadline-System.currentTimeMillis();
+                        if(wait<=0) {
+                            throw new BorrowTimeoutException("Timeout while waiting for a BaseX session on "+key+
+                                    " ("+config.getMaxTotal()+" sessions already open)");
+                        }
+                        try {
+                            wait(wait);
+                        } catch(InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted while waiting for a BaseX session on "+key, ex);
+                        }
+                    }
+                    candidate = idle.pollFirst();
+                    if(candidate!=null) {
+                        active.add(candidate.session);
+                    } else {
+                        pending++;
+                    }
+                }
+                if(candidate==null) {
+                    return open();
+                }
+                if(!config.isValidateOnBorrow()
+                        || System.currentTimeMillis()-candidate.since<config.getValidationIdleTime()
+                        || isValid(candidate.session)) {
+                    return candidate.session;
+                }
+                closeQuietly(candidate.session);
+                synchronized(this) {
+                    active.remove(candidate.session);
+                    notifyAll();
+                }
+            }
+        }
+
+        void release(BaseXClient session) {
+            boolean keep;
+            synchronized(this) {
+                if(!active.remove(session)) {
+                    LOGGER.log(Level.WARNING, "BaseX session on "+key+" released, but not borrowed", new IllegalStateException());
+                    return;
+                }
+                keep = !closed && idle.size()<config.getMaxIdle();
+                if(keep) idle.addFirst(new IdleSession(session));
+                notifyAll();
+            }
+            if(!keep) closeQuietly(session);
+        }
+
+        void invalidate(BaseXClient session) {
+            synchronized(this) {
+                if(!active.remove(session)) {
+                    LOGGER.log(Level.WARNING, "BaseX session on "+key+" invalidated, but not borrowed", new IllegalStateException());
+                    return;
+                }
+                notifyAll();
+            }
+            closeQuietly(session);
+        }
+
+        synchronized int getIdleCount() {
+            return idle.size();
+        }
+
+        synchronized int getActiveCount() {
+            return active.size();
+        }
+
+        void evict() {
+            List<BaseXClient> toClose = new ArrayList<>();
+            int missing;
+            synchronized(this) {
+                long limit = System.currentTimeMillis()-config.getIdleTimeout();
+                // oldest are at the end
+                Iterator<IdleSession> it = idle.descendingIterator();
+                while(it.hasNext() && idle.size()>config.getMinIdle()) {
+                    IdleSession is = it.next();
+                    if(is.since>limit) break;
+                    it.remove();
+                    toClose.add(is.session);
+                }
+                missing = closed ? 0 : config.getMinIdle()-idle.size();
+            }
+            for(BaseXClient session: toClose) {
+                closeQuietly(session);
+            }
+            for(int i=0;i<missing;i++) {
+                synchronized(this) {
+                    if(!canOpen()) break;
+                    pending++;
+                }
+                try {
+                    release(open());
+                } catch(IOException ex) {
+                    LOGGER.log(Level.WARNING, "Unable to open idle BaseX session on "+key, ex);
+                    break;
+                }
+            }
+        }
+
+        void clear() {
+            List<IdleSession> toClose;
+            synchronized(this) {
+                toClose = new ArrayList<>(idle);
+                idle.clear();
+                notifyAll();
+            }
+            for(IdleSession is: toClose) {
+                closeQuietly(is.session);
+            }
+        }
+
+        /**
+         * Opens a new session. Caller must have incremented <tt>pending</tt>.
+         */
+        private BaseXClient open() throws IOException {
+            QueryListener l = listener;
+            try {
+                BaseXClient session = key.connect(config.getConnectTimeout());
+                if(config.getSpillThreshold()>=0) session.spillThreshold(config.getSpillThreshold()*1024L*1024L);
+                synchronized(this) {
+                    pending--;
+                    active.add(session);
+                }
+                if(l!=null) l.connected(key, session.connectTime(), session.authTime());
+                return session;
+            } catch(IOException | RuntimeException ex) {
+                synchronized(this) {
+                    pending--;
+                    notifyAll();
+                }
+                if(l!=null) l.failed(key, ex);
+                throw ex;
+            }
+        }
+
+        private boolean canOpen() {
+            return config.getMaxTotal()<0 || active.size()+pending+idle.size()<config.getMaxTotal();
+        }
+
+        private boolean isValid(BaseXClient session) {
+            try {
+                session.execute(VALIDATION_COMMAND);
+                return true;
+            } catch(IOException ex) {
+                LOGGER.log(Level.FINE, "Discarding broken BaseX session on "+key, ex);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * No session has been given back in time, while <tt>maxTotal</tt> sessions are open.
+     * The server has not been reached, and is not at fault.
+     */
+    public static final class BorrowTimeoutException extends IOException {
+        /** Serial version. */
+        private static final long serialVersionUID = 1L;
+
+        BorrowTimeoutException(String message) {
+            super(message);
+        }
+    }
+}
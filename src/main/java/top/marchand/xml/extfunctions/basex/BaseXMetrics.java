@@ -0,0 +1,232 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of each phase, per server : connect, authenticate,
+ * prepare, first byte, parse and close, plus queries, items, bytes and failures.
+ *
+ * Metrics of each server are registered as a {@link ServerMetricsMXBean}, the
+ * first time the server is used. Recording is lock-free : a few atomic increments
+ * per phase, and none per item.
+ *
+ * {@link #getInstance()} is the listener of pools by default, and registers its
+ * MBeans in the platform MBean server.
+ * This class is thread-safe.
+ *
+ * @author Christophe Marchand
+ */
+public class BaseXMetrics implements QueryListener {
+    public static final String DOMAIN = "top.marchand.xml.extfunctions.basex";
+    private static final Logger LOGGER = Logger.getLogger(BaseXMetrics.class.getName());
+    private static BaseXMetrics instance;
+
+    private final MBeanServer mbeanServer;
+    private final ConcurrentHashMap<String,ServerMetrics> servers = new ConcurrentHashMap<>();
+
+    /**
+     * @param mbeanServer Where metrics are registered, or <tt>null</tt> if they are not exposed
+     */
+    public BaseXMetrics(MBeanServer mbeanServer) {
+        super();
+        this.mbeanServer = mbeanServer;
+    }
+
+    /**
+     * @return The metrics registered in the platform MBean server
+     */
+    public static synchronized BaseXMetrics getInstance() {
+        if(instance==null) {
+            instance = new BaseXMetrics(ManagementFactory.getPlatformMBeanServer());
+        }
+        return instance;
+    }
+
+    /**
+     * @param server Server name
+     * @param port Server port
+     * @return The metrics of this server, or <tt>null</tt> if it has not been used
+     */
+    public ServerMetricsMXBean getServer(String server, int port) {
+        return servers.get(server+":"+port);
+    }
+
+    /**
+     * @param server <tt>host:port</tt>
+     * @return The name metrics of this server are registered with
+     * @throws JMException If name is not valid
+     */
+    public static ObjectName getObjectName(String server) throws JMException {
+        return new ObjectName(DOMAIN+":type=ServerMetrics,server="+ObjectName.quote(server));
+    }
+
+    @Override
+    public void connected(ConnectionKey key, long connectTime, long authenticateTime) {
+        ServerMetrics metrics = get(key);
+        metrics.connect.record(connectTime);
+        metrics.authenticate.record(authenticateTime);
+    }
+
+    @Override
+    public void prepared(ConnectionKey key, long prepareTime) {
+        get(key).prepare.record(prepareTime);
+    }
+
+    @Override
+    public void firstByte(ConnectionKey key, long firstByteTime) {
+        get(key).firstByte.record(firstByteTime);
+    }
+
+    @Override
+    public void finished(ConnectionKey key, long items, long bytes, long parseTime, long closeTime) {
+        ServerMetrics metrics = get(key);
+        metrics.queries.incrementAndGet();
+        metrics.items.addAndGet(items);
+        metrics.bytes.addAndGet(bytes);
+        metrics.parse.record(parseTime);
+        metrics.close.record(closeTime);
+    }
+
+    @Override
+    public void failed(ConnectionKey key, Exception ex) {
+        get(key).failures.incrementAndGet();
+    }
+
+    private ServerMetrics get(ConnectionKey key) {
+        String server = key.getServer()+":"+key.getPort();
+        ServerMetrics metrics = servers.get(server);
+        if(metrics==null) {
+            metrics = new ServerMetrics(server);
+            ServerMetrics previous = servers.putIfAbsent(server, metrics);
+            if(previous!=null) return previous;
+            if(mbeanServer!=null) register(metrics);
+        }
+        return metrics;
+    }
+
+    private void register(ServerMetrics metrics) {
+        try {
+            ObjectName name = getObjectName(metrics.server);
+            if(mbeanServer.isRegistered(name)) {
+                // i.e. by another instance
+                mbeanServer.unregisterMBean(name);
+            }
+            mbeanServer.registerMBean(metrics, name);
+        } catch(JMException ex) {
+            LOGGER.log(Level.WARNING, "Unable to register BaseX metrics of "+metrics.server, ex);
+        }
+    }
+
+    /**
+     * Latencies, in buckets of powers of two microseconds.
+     */
+    static class Histogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param nanos A latency, in nanoseconds
+         */
+        void record(long nanos) {
+            long micros = Math.max(0, nanos/1000);
+            buckets.incrementAndGet(Math.min(BUCKETS-1, 63-Long.numberOfLeadingZeros(micros|1)));
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+            long current = max.get();
+            while(micros>current && !max.compareAndSet(current, micros)) {
+                current = max.get();
+            }
+        }
+
+        LatencyStatistics snapshot() {
+            long n = count.get();
+            if(n==0) return new LatencyStatistics(0, 0, 0, 0, 0);
+            long maximum = max.get();
+            return new LatencyStatistics(n, sum.get()/n,
+                    Math.min(maximum, percentile(n, 0.5)),
+                    Math.min(maximum, percentile(n, 0.99)),
+                    maximum);
+        }
+
+        /**
+         * @return Upper bound of the bucket of the percentile
+         */
+        private long percentile(long n, double p) {
+            long rank = (long)Math.ceil(n*p);
+            long seen = 0;
+            for(int i=0;i<BUCKETS;i++) {
+                seen += buckets.get(i);
+                if(seen>=rank) return (2L<<i)-1;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        void reset() {
+            for(int i=0;i<BUCKETS;i++) buckets.set(i, 0);
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+    }
+
+    private static class ServerMetrics implements ServerMetricsMXBean {
+        private final String server;
+        private final Histogram connect = new Histogram();
+        private final Histogram authenticate = new Histogram();
+        private final Histogram prepare = new Histogram();
+        private final Histogram firstByte = new Histogram();
+        private final Histogram parse = new Histogram();
+        private final Histogram close = new Histogram();
+        private final AtomicLong queries = new AtomicLong();
+        private final AtomicLong items = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        ServerMetrics(String server) {
+            this.server = server;
+        }
+
+        @Override public String getServer() { return server; }
+        @Override public LatencyStatistics getConnect() { return connect.snapshot(); }
+        @Override public LatencyStatistics getAuthenticate() { return authenticate.snapshot(); }
+        @Override public LatencyStatistics getPrepare() { return prepare.snapshot(); }
+        @Override public LatencyStatistics getFirstByte() { return firstByte.snapshot(); }
+        @Override public LatencyStatistics getParse() { return parse.snapshot(); }
+        @Override public LatencyStatistics getClose() { return close.snapshot(); }
+        @Override public long getQueryCount() { return queries.get(); }
+        @Override public long getItemCount() { return items.get(); }
+        @Override public long getBytesReceived() { return bytes.get(); }
+        @Override public long getFailureCount() { return failures.get(); }
+
+        @Override
+        public void reset() {
+            connect.reset();
+            authenticate.reset();
+            prepare.reset();
+            firstByte.reset();
+            parse.reset();
+            close.reset();
+            queries.set(0);
+            items.set(0);
+            bytes.set(0);
+            failures.set(0);
+        }
+    }
+}
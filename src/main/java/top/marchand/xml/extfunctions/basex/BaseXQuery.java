@@ -6,29 +6,31 @@
  */
 package top.marchand.xml.extfunctions.basex;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.LastPositionFinder;
+import net.sf.saxon.expr.Literal;
+import net.sf.saxon.expr.StaticContext;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.lib.ExtensionFunctionCall;
 import net.sf.saxon.lib.ExtensionFunctionDefinition;
-import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.ma.map.MapItem;
+import net.sf.saxon.om.GroundedValue;
 import net.sf.saxon.om.Item;
 import net.sf.saxon.om.LazySequence;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.om.Sequence;
 import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.om.StructuredQName;
-import net.sf.saxon.s9api.DocumentBuilder;
-import net.sf.saxon.s9api.Processor;
-import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.trans.XPathException;
-import net.sf.saxon.tree.iter.AxisIterator;
-import net.sf.saxon.tree.tiny.TinyElementImpl;
-import net.sf.saxon.type.Type;
+import net.sf.saxon.tree.iter.GroundedIterator;
+import net.sf.saxon.value.SequenceExtent;
 import net.sf.saxon.value.SequenceType;
 import net.sf.saxon.value.StringValue;
 import org.basex.examples.api.BaseXClient;
@@ -50,14 +52,141 @@ import org.basex.examples.api.BaseXClient;
  *      &lt;password&gt;password&lt;/password&gt;
  *  &lt;/basex&gt;
  * );</tt>
+ * 
+ * The connection may also be given as a map with the same entries :
+ * <tt>map{'server': 'localhost', 'port': 1984, 'user': 'basex', 'password': 'password'}</tt>.
+ * 
+ * External variables of the query may be bound with a map, given as third argument :
+ * <tt>efl-ext:basex-query("declare variable $id external; //*[@id=$id]", $connect, map{'id': 'a12'})</tt>.
+ * Queries are prepared once per session, and only re-bound and re-executed by later calls.
+ * Values may also be documents, elements, maps or arrays, and the <tt>'.'</tt> key binds
+ * the context item : they are serialized while they are sent, see {@link Bindings}.
+ * 
+ * Results keep their XDM type : atomic values are returned as atomic values, documents
+ * and elements as document nodes, and other nodes as parentless nodes.
+ * 
+ * With several <tt>server</tt> elements, the query is run on all servers at the
+ * same time, and their results are merged : see {@link FanOutQuery}. With
+ * <tt>replica</tt> elements, read queries are balanced between the server and its
+ * replicas, and moved to another one if a server can not be reached : see {@link ServerHealth}.
+ * With a <tt>page-size</tt> element, large results are fetched by pages, on demand :
+ * see {@link QueryPages}. Pages are read in advance by <tt>efl-ext:basex-query-async</tt>.
+ * 
+ * With <tt>&lt;basex&gt;&lt;embedded&gt;/data/basex&lt;/embedded&gt;&lt;/basex&gt;</tt>,
+ * queries are run by an in-process BaseX on the databases of this directory,
+ * without any server : see {@link EmbeddedQuery}. This needs BaseX 9.0 in the
+ * classpath, and Java 8.
+ * 
+ * Results of read-only queries may be kept in a {@link ResultCache}, and concurrent
+ * calls of the same read-only query may share one result with a {@link SingleFlight}.
+ * Both are disabled by default. Slow queries may be logged with a {@link SlowQueryLog}.
+ * 
+ * Sessions are borrowed from a {@link BaseXClientPool}, and given back when the
+ * result sequence has been fully read or closed. In an XSLT transformation, calls
+ * to the same server account whose results are read at the same time share one
+ * session, see {@link ControllerSessions}.
  *      
  * @author Christophe Marchand
  */
 public class BaseXQuery extends ExtensionFunctionDefinition {
+    private static final Logger LOGGER = Logger.getLogger(BaseXQuery.class.getName());
     public static final String EXT_NAMESPACE_URI = "top:marchand:xml:extfunctions";
     public static final String FUNCTION_NAME = "basex-query";
     public static final String EXT_NS_COMMON_PREFIX = "efl-ext";
 
+    /** Indicates that an embedded database has been opened. */
+    static volatile boolean embeddedOpened = false;
+
+    private final BaseXClientPool pool;
+    private volatile ResultCache resultCache;
+    private volatile SingleFlight singleFlight;
+    private volatile SlowQueryLog slowQueryLog;
+
+    /**
+     * Builds the function with the default session pool, and a result cache, a registry
+     * of running queries and a slow query log configured from system properties.
+     * @see BaseXClientPool#getDefault()
+     * @see ResultCache
+     * @see SingleFlight
+     * @see SlowQueryLog
+     */
+    public BaseXQuery() {
+        this(BaseXClientPool.getDefault());
+        setResultCache(ResultCache.fromSystemProperties());
+        setSingleFlight(SingleFlight.fromSystemProperties());
+        setSlowQueryLog(SlowQueryLog.fromSystemProperties());
+    }
+
+    /**
+     * Builds the function with the given session pool.
+     * @param pool The pool sessions are borrowed from
+     */
+    public BaseXQuery(BaseXClientPool pool) {
+        super();
+        this.pool = pool;
+    }
+
+    /**
+     * @return The pool sessions are borrowed from
+     */
+    public BaseXClientPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return The cache of query results, or <tt>null</tt> if results are not cached
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Enables caching of the results of read-only queries.
+     * @param resultCache The cache, or <tt>null</tt> to disable caching
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * @return The registry of running queries, or <tt>null</tt> if concurrent calls are not coalesced
+     */
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * Enables sharing the result of a read-only query between the calls that run it at the same time.
+     * @param singleFlight The registry of running queries, or <tt>null</tt> to disable it
+     */
+    public void setSingleFlight(SingleFlight singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * @return The log of slow queries, or <tt>null</tt> if they are not logged
+     */
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    /**
+     * Enables logging of the queries that are slower than a threshold.
+     * @param slowQueryLog The log, or <tt>null</tt> to disable it
+     */
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    /**
+     * Closes the in-process BaseX of embedded databases, which otherwise keeps them
+     * open until the JVM stops. They are opened again by the next query.
+     */
+    public static void closeEmbeddedDatabases() {
+        // EmbeddedQuery can not be loaded without BaseX
+        if(embeddedOpened) EmbeddedQuery.closeAll();
+    }
+
     @Override
     public StructuredQName getFunctionQName() {
         return new StructuredQName(EXT_NS_COMMON_PREFIX, EXT_NAMESPACE_URI, FUNCTION_NAME);
@@ -65,81 +194,348 @@ public class BaseXQuery extends ExtensionFunctionDefinition {
 
     @Override
     public ExtensionFunctionCall makeCallExpression() {
-        return new ExtensionFunctionCall() {
-            @Override
-            public Sequence call(XPathContext xpc, Sequence[] sqncs) throws XPathException {
-                String[] args = checkArgs(xpc, sqncs);
-                String xquery = args[0];
-                String server=args[1];
-                String port=args[2];
-                String user=args[3];
-                String password=args[4];
-                Processor proc = new Processor(xpc.getConfiguration());
-                try {
-                    BaseXClient session = new BaseXClient(server, Integer.parseInt(port), user, password);
-                    DocumentBuilder builder = proc.newDocumentBuilder();
-                    BaseXClient.Query query = session.query(xquery);
-                    BaseXSequenceIterator it = new BaseXSequenceIterator(query, builder, session);
-                    return new LazySequence(it);
-                } catch(IOException ex) {
-                    throw new XPathException(ex);
+        return new QueryCall();
+    }
+
+    /**
+     * A call site of the function. Connection arguments that are constants are
+     * resolved once, when the call is compiled. Otherwise, the last connection
+     * descriptor is kept, and resolved again only if another one is given.
+     */
+    private class QueryCall extends ExtensionFunctionCall {
+        /** Connection resolved at compile time, if arguments are constants. */
+        private Connection staticConnection;
+        private volatile ConnectionMemo lastConnection;
+        private volatile ItemFactory factory;
+
+        @Override
+        public void supplyStaticContext(StaticContext context, int locationId, Expression[] arguments) throws XPathException {
+            staticConnection = resolveStatically(arguments);
+        }
+
+        @Override
+        public Expression rewrite(StaticContext context, Expression[] arguments) throws XPathException {
+            if(staticConnection==null) {
+                // arguments may have been reduced to constants
+                staticConnection = resolveStatically(arguments);
+            }
+            return null;
+        }
+
+        @Override
+        public void copyLocalData(ExtensionFunctionCall destination) {
+            if(destination instanceof QueryCall) {
+                ((QueryCall)destination).staticConnection = staticConnection;
+            }
+        }
+
+        @Override
+        public Sequence call(XPathContext xpc, Sequence[] sqncs) throws XPathException {
+            String xquery = ((StringValue)sqncs[0].head()).getStringValue();
+            Connection connection = staticConnection;
+            if(connection==null) {
+                connection = getConnection(sqncs);
+            }
+            MapItem bindings = sqncs.length==3 ? checkBindings(sqncs[2]) : null;
+            if(connection.getEmbedded()!=null) {
+                return EmbeddedQuery.evaluate(xpc.getConfiguration(), connection.getEmbedded(), xquery, bindings);
+            }
+            if(connection.isFanOut()) {
+                return FanOutQuery.evaluate(pool, slowQueryLog, getFactory(xpc.getConfiguration()), connection, xquery, bindings);
+            }
+            ConnectionKey key = connection.getKeys().get(0);
+            ResultCache cache = resultCache;
+            SingleFlight flights = singleFlight;
+            QueryKey queryKey = null;
+            if(cache!=null || flights!=null) {
+                String bindingsKey = Bindings.key(bindings);
+                if(bindingsKey!=null) {
+                    queryKey = new QueryKey(xpc.getConfiguration(), key, xquery, bindingsKey);
+                }
+            }
+            boolean cached = queryKey!=null && cache!=null;
+            boolean versioned = cached && cache.getInvalidator()!=null;
+            if(cached && !versioned) {
+                Sequence result = cache.get(queryKey, null);
+                if(result!=null) return result;
+            }
+            SingleFlight.Flight flight = null;
+            if(queryKey!=null && flights!=null) {
+                flight = new SingleFlight.Flight();
+                SingleFlight.Flight running = flights.takeOff(queryKey, flight);
+                if(running!=null) {
+                    // the same query is already running, wait for its result
+                    flight = null;
+                    GroundedValue result = flights.await(running);
+                    if(result!=null) return result;
                 }
             }
-            private String[] checkArgs(XPathContext xpc, Sequence[] sqncs) throws XPathException {
-                if(sqncs.length==2) {
-                    String server=null, port=null, user=null, password=null;
-                    try {
-                        TinyElementImpl basexNode = ((TinyElementImpl)sqncs[1].head());
-                        AxisIterator iterator=basexNode.iterateAxis(AxisInfo.CHILD);
-                        for(NodeInfo ni = iterator.next(); ni!=null; ni=iterator.next()) {
-                            if(ni.getNodeKind()==Type.ELEMENT) {
-                                switch (ni.getLocalPart()) {
-                                    case "server":
-                                        server = ni.getStringValue();
-                                        break;
-                                    case "port":
-                                        port = ni.getStringValue();
-                                        break;
-                                    case "user":
-                                        user = ni.getStringValue();
-                                        break;
-                                    case "password":
-                                        password = ni.getStringValue();
-                                        break;
-                                    default:
-                                        throw new XPathException("child elements of basex must be server, port, user and password");
-                                }
-                            }
+            GroundedValue shared = null;
+            long callStart = System.nanoTime();
+            SlowQueryLog slowLog = slowQueryLog;
+            try {
+                SessionSource source = getSessionSource(xpc);
+                String version = null;
+                if(versioned) {
+                    // data may have changed since result has been cached ; checked before the query is sent
+                    // when primary is down, version is unknown : a replica answers, and its result is not cached
+                    cached = !connection.hasReplicas() || !pool.getHealth().isEjected(key);
+                    if(cached) {
+                        try {
+                            version = readVersion(source, key, cache);
+                        } catch(IOException ex) {
+                            if(!connection.hasReplicas()) throw new XPathException(ex);
+                            cached = false;
                         }
-                        return new String[] {
-                            ((StringValue)sqncs[0].head()).getStringValue(),
-                            server,
-                            port,
-                            user,
-                            password
-                        };
-                    } catch(ClassCastException ex) {
-                        throw new XPathException("In two prameters signature, second parameter must be a element()");
                     }
-                } else if(sqncs.length==5) {
-                    try {
-                        return new String[] {
-                            ((StringValue)sqncs[0].head()).getStringValue(),
-                            ((StringValue)sqncs[1].head()).getStringValue(),
-                            ((StringValue)sqncs[2].head()).getStringValue(),
-                            ((StringValue)sqncs[3].head()).getStringValue(),
-                            ((StringValue)sqncs[4].head()).getStringValue()
-                        };
-                    } catch(ClassCastException ex) {
-                        throw new XPathException("in 5 parameters signature, all parameters must be xs:string");
+                    if(cached) {
+                        GroundedValue result = cache.get(queryKey, version);
+                        if(result!=null) {
+                            shared = result;
+                            return result;
+                        }
                     }
-                } else {
-                    throw new XPathException("Illegal number of arguments. "+
-                            "Args are either (xs:string, element(basex)), "+
-                            "or (xs:string, xs:string, xs:string, xs:string, xs:string)");
+                }
+                long pageSize = connection.getPageSize();
+                String text = pageSize>0 ? QueryPages.wrap(xquery) : xquery;
+                PreparedQuery prepared = prepare(source, connection, text, bindings, xpc.getConfiguration(), slowLog);
+                ConnectionKey server = prepared.server;
+                BaseXClient session = prepared.session;
+                BaseXClient.Query query = prepared.query;
+                try {
+                    boolean readOnly = queryKey!=null && !query.updating();
+                    query.full(true);
+                    QueryRecorder recorder = new QueryRecorder(pool.getListener(), server, session, query, getFactory(xpc.getConfiguration()));
+                    recorder.logIfSlow(slowLog, xquery, bindings, System.nanoTime()-callStart);
+                    if(connection.hasReplicas()) recorder.measureLatency(pool.getHealth());
+                    if(pageSize>0) recorder.paginate(pageSize, bindings);
+                    Sequence result = makeResult(query, recorder, source, session, server);
+                    if(flight!=null && readOnly) {
+                        result = flights.readAhead(result);
+                        if(result instanceof GroundedValue) shared = (GroundedValue)result;
+                    }
+                    return cached && readOnly ? cache.cacheWhenRead(result, queryKey, version) : result;
+                } catch(IOException | XPathException ex) {
+                    Sessions.failed(source, server, session, ex, query);
+                    QueryListener listener = pool.getListener();
+                    if(listener!=null) listener.failed(server, ex);
+                    throw ex instanceof XPathException ? (XPathException)ex : new XPathException(ex);
+                }
+            } finally {
+                if(flight!=null) flights.land(queryKey, flight, shared);
+            }
+        }
+        /**
+         * Reads the version of the data on the primary server. The session is given back
+         * at once : the query borrows it again if the result is not cached.
+         * @throws IOException If the primary server can not be reached
+         */
+        private String readVersion(SessionSource source, ConnectionKey key, ResultCache cache) throws IOException, XPathException {
+            BaseXClient session = source.borrow(key);
+            try {
+                String version = cache.getVersion(session);
+                source.release(key, session);
+                return version;
+            } catch(IOException | RuntimeException ex) {
+                Sessions.failed(source, key, session, ex);
+                throw new XPathException(ex);
+            }
+        }
+
+        /**
+         * Borrows a session, and prepares and binds the query. With replicas, the server
+         * is chosen by the health of the servers ; if it can not be reached, it is ejected,
+         * and the query is prepared on another server, as nothing has been run yet. A server
+         * whose sessions are all busy is only skipped.
+         * An updating query is moved to the primary server.
+         */
+        private PreparedQuery prepare(SessionSource source, Connection connection, String xquery, MapItem bindings,
+                Configuration configuration, SlowQueryLog slowLog) throws XPathException {
+            List<ConnectionKey> servers = connection.getServers();
+            ConnectionKey primary = servers.get(0);
+            if(!connection.hasReplicas()) {
+                try {
+                    return prepareOn(source, primary, false, xquery, bindings, configuration, slowLog);
+                } catch(IOException ex) {
+                    throw new XPathException(ex);
+                }
+            }
+            ServerHealth health = pool.getHealth();
+            List<ConnectionKey> failed = new ArrayList<>(servers.size());
+            while(true) {
+                ConnectionKey server = health.choose(servers, failed, connection.isLatencyRouting(), pool);
+                // the server the query is prepared on, to which a failure belongs
+                ConnectionKey target = server;
+                try {
+                    PreparedQuery prepared = prepareOn(source, server, !server.equals(primary), xquery, bindings, configuration, slowLog);
+                    if(prepared!=null) return prepared;
+                    // replicas are read-only
+                    target = primary;
+                    return prepareOn(source, primary, false, xquery, bindings, configuration, slowLog);
+                } catch(BaseXClient.ServerException ex) {
+                    throw new XPathException(ex);
+                } catch(IOException ex) {
+                    // a busy pool does not tell anything about the server
+                    if(!(ex instanceof BaseXClientPool.BorrowTimeoutException)) health.failed(target);
+                    failed.add(target);
+                    // an updating query can not run anywhere else
+                    if(target!=server || failed.size()==servers.size()) throw new XPathException(ex);
+                    LOGGER.log(Level.FINE, "BaseX server "+target+" can not be used, another one is tried", ex);
                 }
             }
-        };
+        }
+
+        /**
+         * @return The prepared query, or <tt>null</tt> if it is updating, and can not run on a replica
+         */
+        private PreparedQuery prepareOn(SessionSource source, ConnectionKey server, boolean replica, String xquery, MapItem bindings,
+                Configuration configuration, SlowQueryLog slowLog) throws IOException, XPathException {
+            BaseXClient session = source.borrow(server);
+            QueryListener listener = pool.getListener();
+            BaseXClient.Query query = null;
+            try {
+                if(slowLog!=null && slowLog.isServerInfo()) {
+                    session.queryInfo(true);
+                }
+                long start = System.nanoTime();
+                query = session.prepare(xquery);
+                if(listener!=null) listener.prepared(server, System.nanoTime()-start);
+                if(bindings!=null) {
+                    Bindings.bind(query, bindings, configuration);
+                }
+                if(replica && query.updating()) {
+                    session.release(query);
+                    source.release(server, session);
+                    return null;
+                }
+                return new PreparedQuery(server, session, query);
+            } catch(IOException | XPathException | RuntimeException ex) {
+                Sessions.failed(source, server, session, ex, query);
+                if(listener!=null) listener.failed(server, ex);
+                throw ex;
+            }
+        }
+
+        /**
+         * @return The connection, or <tt>null</tt> if connection arguments are not all constants,
+         * or are not valid : errors are then raised when the function is called
+         */
+        private Connection resolveStatically(Expression[] arguments) {
+            int last = arguments.length==5 ? 4 : 1;
+            Sequence[] values = new Sequence[arguments.length];
+            for(int i=1;i<=last;i++) {
+                if(!(arguments[i] instanceof Literal)) return null;
+                values[i] = ((Literal)arguments[i]).getValue();
+            }
+            try {
+                return readConnection(values);
+            } catch(XPathException ex) {
+                return null;
+            }
+        }
+
+        private Connection getConnection(Sequence[] sqncs) throws XPathException {
+            if(sqncs.length!=2 && sqncs.length!=3) return readConnection(sqncs);
+            Item connect = sqncs[1].head();
+            ConnectionMemo memo = lastConnection;
+            if(memo!=null && memo.isFor(connect)) return memo.connection;
+            Connection connection = readConnection(connect);
+            lastConnection = new ConnectionMemo(connect, connection);
+            return connection;
+        }
+
+        private ItemFactory getFactory(Configuration configuration) {
+            ItemFactory f = factory;
+            if(f==null || f.getConfiguration()!=configuration) {
+                f = new ItemFactory(configuration);
+                factory = f;
+            }
+            return f;
+        }
+
+        private MapItem checkBindings(Sequence bindings) throws XPathException {
+            Item item = bindings.head();
+            if(item==null) return null;
+            if(item instanceof MapItem) return (MapItem)item;
+            throw new XPathException("In three parameters signature, third parameter must be a map(*)");
+        }
+    }
+
+    /**
+     * Reads the connection arguments.
+     * @param sqncs The arguments of the call; only connection arguments are read
+     * @return The connection
+     * @throws XPathException If arguments are not valid
+     */
+    static Connection readConnection(Sequence[] sqncs) throws XPathException {
+        if(sqncs.length==2 || sqncs.length==3) {
+            return readConnection(sqncs[1].head());
+        } else if(sqncs.length==5) {
+            try {
+                return Connection.of(
+                    ((StringValue)sqncs[1].head()).getStringValue(),
+                    ((StringValue)sqncs[2].head()).getStringValue(),
+                    ((StringValue)sqncs[3].head()).getStringValue(),
+                    ((StringValue)sqncs[4].head()).getStringValue());
+            } catch(ClassCastException | NullPointerException ex) {
+                throw new XPathException("in 5 parameters signature, all parameters must be xs:string");
+            }
+        } else {
+            throw new XPathException("Illegal number of arguments. "+
+                    "Args are either (xs:string, element(basex)), "+
+                    "(xs:string, element(basex), map(*)), "+
+                    "or (xs:string, xs:string, xs:string, xs:string, xs:string)");
+        }
+    }
+
+    /**
+     * Reads the connection descriptor of the two and three parameters signatures.
+     * @param connect The descriptor
+     * @return The connection
+     * @throws XPathException If the descriptor is not valid
+     */
+    static Connection readConnection(Item connect) throws XPathException {
+        return Connection.read(connect, "In two and three parameters signatures, second parameter must be an element() or a map(*)");
+    }
+
+    /**
+     * @param server Server name
+     * @param port Server port
+     * @param user User name
+     * @param password Password
+     * @return The key sessions are borrowed with
+     * @throws XPathException If port is not a number
+     */
+    static ConnectionKey makeConnectionKey(String server, String port, String user, String password) throws XPathException {
+        try {
+            return new ConnectionKey(server, Integer.parseInt(port), user, password);
+        } catch(NumberFormatException ex) {
+            throw new XPathException("port must be an integer: "+port);
+        }
+    }
+
+    /**
+     * Returns where a call borrows its session from.
+     * @param xpc The dynamic context of the call
+     * @return The sessions of the running transformation, or the pool
+     */
+    SessionSource getSessionSource(XPathContext xpc) {
+        return ControllerSessions.get(xpc, pool);
+    }
+
+    /**
+     * Builds the result sequence of a call. The session must be given back to
+     * the source once the query results have been read.
+     * @param query The query, bound and ready to be iterated in full mode
+     * @param recorder Reads the items of the query
+     * @param source Where the session has been borrowed from
+     * @param session The session
+     * @param key The key session has been borrowed with
+     * @return The result sequence
+     * @throws XPathException If the sequence can not be built
+     */
+    Sequence makeResult(BaseXClient.Query query, QueryRecorder recorder, SessionSource source, BaseXClient session, ConnectionKey key) throws XPathException {
+        return new LazySequence(new BaseXSequenceIterator(query, recorder, source, session, key));
     }
 
     @Override
@@ -147,7 +543,7 @@ public class BaseXQuery extends ExtensionFunctionDefinition {
         return new SequenceType[] {
             SequenceType.SINGLE_STRING, 
             SequenceType.SINGLE_ITEM,
-            SequenceType.OPTIONAL_STRING,
+            SequenceType.OPTIONAL_ITEM,
             SequenceType.OPTIONAL_STRING,
             SequenceType.OPTIONAL_STRING};
     }
@@ -169,52 +565,197 @@ public class BaseXQuery extends ExtensionFunctionDefinition {
     
 
     
-    protected class BaseXSequenceIterator implements SequenceIterator, AutoCloseable {
+    /**
+     * A query prepared on a session, and the server it has been borrowed from.
+     */
+    private static final class PreparedQuery {
+        private final ConnectionKey server;
+        private final BaseXClient session;
         private final BaseXClient.Query query;
-        private final DocumentBuilder builder;
+
+        PreparedQuery(ConnectionKey server, BaseXClient session, BaseXClient.Query query) {
+            this.server = server;
+            this.session = session;
+            this.query = query;
+        }
+    }
+
+    /**
+     * A connection descriptor, and the connection it has been resolved to.
+     * Does not keep the descriptor alive.
+     */
+    private static final class ConnectionMemo {
+        private final WeakReference<Item> descriptor;
+        private final Connection connection;
+
+        ConnectionMemo(Item descriptor, Connection connection) {
+            this.descriptor = new WeakReference<>(descriptor);
+            this.connection = connection;
+        }
+
+        boolean isFor(Item connect) {
+            // nodes and maps are immutable ; nodes are equal if they are the same node
+            Item item = descriptor.get();
+            return item!=null && (item==connect || item instanceof NodeInfo && item.equals(connect));
+        }
+    }
+
+    /**
+     * Iterates over the results of a query. The number of items is known without
+     * building them : remaining results are read by the client, the query is closed on
+     * the server, and the session is given back. The remaining items may also be built
+     * at once, and handed to Saxon, which does not copy them again. Items of a paged
+     * query are built to be counted.
+     */
+    protected class BaseXSequenceIterator implements SequenceIterator, LastPositionFinder, GroundedIterator, AutoCloseable {
+        private final BaseXClient.Query query;
+        private final QueryRecorder recorder;
+        private final SessionSource source;
         private final BaseXClient session;
+        private final ConnectionKey key;
         private boolean closed = false;
+        /** Indicates the session has been given back, and only buffered results are left. */
+        private boolean detached = false;
+        /** Number of items returned. */
+        private int position = 0;
+        /** Number of items of the sequence, or -1 if it is not known yet. */
+        private int length = -1;
+        /** Remaining items, once they have been built, and the position they start at. */
+        private List<Item> grounded;
+        private int groundedFrom;
+        private int index;
         
-        public BaseXSequenceIterator(BaseXClient.Query query, DocumentBuilder builder, BaseXClient session) {
+        BaseXSequenceIterator(BaseXClient.Query query, QueryRecorder recorder, SessionSource source, BaseXClient session, ConnectionKey key) {
             super();
             this.query=query;
-            this.builder=builder;
+            this.recorder = recorder;
+            this.source = source;
             this.session = session;
+            this.key = key;
         }
 
         @Override
         public Item next() throws XPathException {
+            Item item;
+            if(grounded!=null) {
+                item = index<grounded.size() ? grounded.get(index++) : null;
+            } else {
+                item = read();
+            }
+            if(item!=null) position++;
+            return item;
+        }
+
+        private Item read() throws XPathException {
             try {
-                if(query.more()) {
-                    StreamSource source = new StreamSource(new ByteArrayInputStream(query.next().getBytes(BaseXClient.UTF8)));
-                    XdmNode node = builder.build(source);
-                    return node.getUnderlyingNode();
+                if(recorder.more()) {
+                    return recorder.build();
                 } else {
                     close();
                     return null;
                 }
-            } catch(IOException | SaxonApiException ex) {
+            } catch(IOException ex) {
+                closeOnError(ex);
                 throw new XPathException(ex);
             }
         }
 
+        @Override
+        public int getLength() throws XPathException {
+            if(length>=0) return length;
+            if(closed) return position;
+            if(recorder.isPaged()) {
+                length = position+ground().size();
+                return length;
+            }
+            try {
+                length = position+recorder.detach();
+            } catch(IOException ex) {
+                closeOnError(ex);
+                throw new XPathException(ex);
+            }
+            detached = true;
+            source.release(key, session);
+            return length;
+        }
+
+        /**
+         * Must only be called if no item has been read before, see {@link #getProperties()}.
+         */
+        @Override
+        public GroundedValue materialize() throws XPathException {
+            return new SequenceExtent(ground());
+        }
+
+        @Override
+        public GroundedValue getResidue() throws XPathException {
+            List<Item> items = ground();
+            return new SequenceExtent(items.subList(index, items.size()));
+        }
+
+        /**
+         * Builds all remaining items, which closes the query.
+         */
+        private List<Item> ground() throws XPathException {
+            if(grounded==null) {
+                List<Item> items = new ArrayList<>();
+                for(Item item = read(); item!=null; item = read()) {
+                    items.add(item);
+                }
+                grounded = items;
+                groundedFrom = position;
+                index = 0;
+                length = position+items.size();
+            }
+            return grounded;
+        }
+
+        /**
+         * Closes the query and gives the session back.
+         * If the iteration has been abandoned before the end, the session source
+         * decides whether the query is cancelled or read to the end.
+         */
         @Override
         public void close() {
             if(closed) return;
+            long start = System.nanoTime();
             try {
-                System.err.println("Closing sequence iterator");
                 closed = true;
-                query.close();
-                session.close();
+                if(detached) {
+                    // only discards buffered results
+                    query.close();
+                } else if(query.isStreaming()) {
+                    source.abandon(key, session, query);
+                } else {
+                    recorder.beforeRelease();
+                    session.release(query);
+                    source.release(key, session);
+                }
+                recorder.finished(start);
             } catch (IOException ex) {
-                Logger.getLogger(BaseXQuery.class.getName()).log(Level.SEVERE, null, ex);
+                LOGGER.log(Level.SEVERE, null, ex);
+                if(!detached) source.invalidate(key, session);
+                recorder.failed(ex);
             }
         }
 
+        /**
+         * Session is given back, or invalidated if it is in an unknown state.
+         */
+        private void closeOnError(Exception ex) {
+            if(closed) return;
+            closed = true;
+            if(!detached) Sessions.failed(source, key, session, ex, query);
+            recorder.failed(ex);
+        }
+
         @Override
         public int getProperties() {
-            return 0;
-        }   
+            int properties = recorder.isPaged() ? 0 : LAST_POSITION_FINDER;
+            // the sequence can only be materialized from its first item
+            if(grounded==null ? position==0 : groundedFrom==0) properties |= GROUNDED;
+            return properties;
+        }
     }    
 
 }
@@ -0,0 +1,333 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.LazySequence;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.trans.XPathException;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * Same function as {@link BaseXQuery}, but results are read and parsed by a
+ * background thread, while the stylesheet processes the previous ones.
+ *
+ * Use as :
+ * <tt>efl-ext:basex-query-async("collection('db')//record", $connect)</tt>, with the
+ * same signatures as <tt>efl-ext:basex-query</tt>.
+ *
+ * Reading starts as soon as the function is called. Items are handed over through a
+ * bounded queue : when it is full, the background thread waits for the stylesheet,
+ * so that memory stays bounded. Each call uses its own session, borrowed from the
+ * pool, even in an XSLT transformation.
+ *
+ * The number of background threads and the size of the queue may be set with
+ * system properties <tt>top.marchand.xml.extfunctions.basex.async.threads</tt>
+ * (defaults to 4) and <tt>top.marchand.xml.extfunctions.basex.async.queueSize</tt>
+ * (defaults to 16). Calls that exceed the number of threads wait for a free one ;
+ * if their results are read before a thread is free, they are read by the calling
+ * thread, as with <tt>efl-ext:basex-query</tt>. A result therefore never waits for a
+ * thread that waits for another result to be read.
+ *
+ * @author Christophe Marchand
+ */
+public class BaseXQueryAsync extends BaseXQuery {
+    public static final String FUNCTION_NAME = "basex-query-async";
+    public static final String PROPERTY_PREFIX = "top.marchand.xml.extfunctions.basex.async.";
+    private static final Logger LOGGER = Logger.getLogger(BaseXQueryAsync.class.getName());
+    /** How long the background thread waits for room in the queue, before checking the result is still used. */
+    private static final long OFFER_TIMEOUT = 1000L;
+    /** Marks the end of results in the queue. */
+    private static final Object END = new Object();
+
+    private final int queueSize;
+    private final ExecutorService executor;
+
+    /**
+     * Builds the function with the default session pool, and a result cache, a registry
+     * of running queries, a slow query log, a thread count and a queue size configured
+     * from system properties.
+     * @see BaseXClientPool#getDefault()
+     */
+    public BaseXQueryAsync() {
+        this(BaseXClientPool.getDefault(),
+                Integer.getInteger(PROPERTY_PREFIX+"threads", 4),
+                Integer.getInteger(PROPERTY_PREFIX+"queueSize", 16));
+        setResultCache(ResultCache.fromSystemProperties());
+        setSingleFlight(SingleFlight.fromSystemProperties());
+        setSlowQueryLog(SlowQueryLog.fromSystemProperties());
+    }
+
+    /**
+     * @param pool The pool sessions are borrowed from
+     * @param threads Maximum number of results read at the same time
+     * @param queueSize Maximum number of items read in advance, per call
+     */
+    public BaseXQueryAsync(BaseXClientPool pool, int threads, int queueSize) {
+        super(pool);
+        this.queueSize = Math.max(1, queueSize);
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(
+                threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "basex-prefetch-"+count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        tpe.allowCoreThreadTimeOut(true);
+        this.executor = tpe;
+    }
+
+    @Override
+    public StructuredQName getFunctionQName() {
+        return new StructuredQName(EXT_NS_COMMON_PREFIX, EXT_NAMESPACE_URI, FUNCTION_NAME);
+    }
+
+    /**
+     * Session is read by another thread, it can not be shared with other calls.
+     */
+    @Override
+    SessionSource getSessionSource(XPathContext xpc) {
+        return getPool();
+    }
+
+    @Override
+    Sequence makeResult(BaseXClient.Query query, QueryRecorder recorder, SessionSource source, BaseXClient session, ConnectionKey key) throws XPathException {
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueSize);
+        PrefetchedSequenceIterator it = new PrefetchedSequenceIterator(queue);
+        Prefetcher prefetcher = new Prefetcher(it, queue, query, recorder, source, session, key);
+        it.prefetcher = prefetcher;
+        try {
+            executor.execute(prefetcher);
+        } catch(RejectedExecutionException ex) {
+            throw new XPathException("Unable to start reading results of BaseX query: "+ex.getMessage());
+        }
+        return new LazySequence(it);
+    }
+
+    /**
+     * An error raised while reading results, thrown when reached by the iterator.
+     */
+    private static class Failure {
+        private final XPathException exception;
+        Failure(XPathException exception) {
+            this.exception = exception;
+        }
+    }
+
+    /**
+     * Reads the results and puts them in the queue. The session is given back when
+     * all results have been read, or when the iterator has been closed or garbage collected.
+     * If the iterator needs an item before a thread has started reading, it reads the
+     * results itself, and the thread does nothing.
+     */
+    private static class Prefetcher implements Runnable {
+        private final WeakReference<PrefetchedSequenceIterator> owner;
+        private final BlockingQueue<Object> queue;
+        private final BaseXClient.Query query;
+        private final QueryRecorder recorder;
+        private final SessionSource source;
+        private final BaseXClient session;
+        private final ConnectionKey key;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile boolean cancelled = false;
+
+        Prefetcher(PrefetchedSequenceIterator owner, BlockingQueue<Object> queue, BaseXClient.Query query,
+                QueryRecorder recorder, SessionSource source, BaseXClient session, ConnectionKey key) {
+            super();
+            this.owner = new WeakReference<>(owner);
+            this.queue = queue;
+            this.query = query;
+            this.recorder = recorder;
+            this.source = source;
+            this.session = session;
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            if(!claim()) return;
+            Object o = null;
+            try {
+                do {
+                    o = produce();
+                    if(!put(o)) {
+                        if(o instanceof Item) abandon();
+                        return;
+                    }
+                } while(o instanceof Item);
+            } catch(InterruptedException ex) {
+                if(o instanceof Item) source.invalidate(key, session);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * @return <tt>true</tt> if results are read by the caller, <tt>false</tt> if
+         * they are already read by another thread
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        /**
+         * Reads the next item. The session is given back at the end of results, or on error.
+         * @return The item, {@link #END} or a {@link Failure}
+         */
+        Object produce() {
+            try {
+                if(recorder.more()) return recorder.build();
+                long start = System.nanoTime();
+                recorder.beforeRelease();
+                session.release(query);
+                source.release(key, session);
+                recorder.finished(start);
+                return END;
+            } catch(IOException | RuntimeException ex) {
+                Sessions.failed(source, key, session, ex, query);
+                recorder.failed(ex);
+                return new Failure(new XPathException(ex));
+            } catch(XPathException ex) {
+                recorder.failed(ex);
+                abandon();
+                return new Failure(ex);
+            }
+        }
+
+        /**
+         * Waits for room in the queue, as long as results are still used.
+         * @return <tt>false</tt> if results are not used anymore
+         */
+        private boolean put(Object o) throws InterruptedException {
+            while(!cancelled) {
+                if(queue.offer(o, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) return true;
+                if(owner.get()==null) {
+                    LOGGER.fine("BaseX query results have been abandoned without being closed on "+key);
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Gives the session back, and cancels the query if it is still streaming.
+         */
+        void abandon() {
+            long start = System.nanoTime();
+            if(query.isStreaming()) {
+                source.abandon(key, session, query);
+                recorder.finished(start);
+                return;
+            }
+            try {
+                session.release(query);
+                source.release(key, session);
+                recorder.finished(start);
+            } catch(IOException ex) {
+                LOGGER.log(Level.FINE, "while releasing BaseX query on "+key, ex);
+                source.invalidate(key, session);
+                recorder.failed(ex);
+            }
+        }
+
+        /**
+         * Stops reading : the session is given back by the thread that reads the results,
+         * or at once if no thread has started.
+         */
+        void cancel() {
+            if(claim()) {
+                abandon();
+                return;
+            }
+            cancelled = true;
+            queue.clear();
+        }
+    }
+
+    protected class PrefetchedSequenceIterator implements SequenceIterator, AutoCloseable {
+        private final BlockingQueue<Object> queue;
+        private Prefetcher prefetcher;
+        private boolean finished = false;
+        /** Indicates that results are read by this iterator, in the calling thread. */
+        private boolean direct = false;
+
+        PrefetchedSequenceIterator(BlockingQueue<Object> queue) {
+            super();
+            this.queue = queue;
+        }
+
+        @Override
+        public Item next() throws XPathException {
+            if(finished) return null;
+            Object o = direct ? prefetcher.produce() : queue.poll();
+            if(o==null) {
+                if(prefetcher.claim()) {
+                    // no thread has been free to read results
+                    direct = true;
+                    o = prefetcher.produce();
+                } else {
+                    try {
+                        o = queue.take();
+                    } catch(InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        close();
+                        throw new XPathException("Interrupted while waiting for BaseX results");
+                    }
+                }
+            }
+            if(o==END) {
+                finished = true;
+                return null;
+            }
+            if(o instanceof Failure) {
+                finished = true;
+                throw ((Failure)o).exception;
+            }
+            return (Item)o;
+        }
+
+        /**
+         * Stops the background thread, which gives the session back.
+         */
+        @Override
+        public void close() {
+            if(finished) return;
+            finished = true;
+            if(direct) {
+                prefetcher.abandon();
+            } else {
+                prefetcher.cancel();
+            }
+        }
+
+        @Override
+        public int getProperties() {
+            return 0;
+        }
+    }
+}
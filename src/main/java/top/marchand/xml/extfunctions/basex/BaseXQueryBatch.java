@@ -0,0 +1,212 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.StaticProperty;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.ma.arrays.ArrayItemType;
+import net.sf.saxon.ma.arrays.SimpleArrayItem;
+import net.sf.saxon.ma.map.MapItem;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.SequenceExtent;
+import net.sf.saxon.value.SequenceType;
+import net.sf.saxon.value.StringValue;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * Runs many queries on the same server, with two network round trips for up to 64
+ * queries, instead of two per query.
+ *
+ * Use as :
+ * <tt>efl-ext:basex-query-batch(for $id in $ids return "//*[@id='"||$id||"']", $connect)</tt>,
+ * or with server, port, user and password as four strings instead of the <tt>basex</tt> element.
+ * External variables are bound with one map per query, in the same order, as with
+ * <tt>basex-query</tt> :
+ * <tt>efl-ext:basex-query-batch(for $id in $ids return 'declare variable $id external; //*[@id=$id]', $connect, for $id in $ids return map{'id': $id})</tt>.
+ * Bind commands are sent without waiting for their replies, between the two round trips.
+ *
+ * Returns an array, with one member per query, in the same order : the sequence
+ * returned by the query. All results are read before the function returns.
+ * With an embedded database, queries are run one after the other, without any server.
+ *
+ * @author Christophe Marchand
+ */
+public class BaseXQueryBatch extends ExtensionFunctionDefinition {
+    public static final String FUNCTION_NAME = "basex-query-batch";
+    private static final String CONNECTION_MESSAGE = "In two or three parameters signature, second parameter must be an element() or a map(*)";
+    private static final String BINDINGS_MESSAGE = "In three parameters signature, third parameter must be a map(*) per query";
+
+    private final BaseXClientPool pool;
+
+    /**
+     * Builds the function with the default session pool.
+     * @see BaseXClientPool#getDefault()
+     */
+    public BaseXQueryBatch() {
+        this(BaseXClientPool.getDefault());
+    }
+
+    /**
+     * Builds the function with the given session pool.
+     * @param pool The pool sessions are borrowed from
+     */
+    public BaseXQueryBatch(BaseXClientPool pool) {
+        super();
+        this.pool = pool;
+    }
+
+    /**
+     * @return The pool sessions are borrowed from
+     */
+    public BaseXClientPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public StructuredQName getFunctionQName() {
+        return new StructuredQName(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI, FUNCTION_NAME);
+    }
+
+    @Override
+    public ExtensionFunctionCall makeCallExpression() {
+        return new ExtensionFunctionCall() {
+            @Override
+            public Sequence call(XPathContext xpc, Sequence[] sqncs) throws XPathException {
+                List<String> queries = new ArrayList<>();
+                SequenceIterator it = sqncs[0].iterate();
+                for(Item item = it.next(); item!=null; item = it.next()) {
+                    queries.add(item.getStringValue());
+                }
+                Connection connection = checkConnection(sqncs);
+                final List<MapItem> bindings = sqncs.length==3 ? checkBindings(sqncs[2], queries.size()) : null;
+                String embedded = connection.getEmbedded();
+                if(embedded!=null) {
+                    List<Sequence> members = new ArrayList<>(queries.size());
+                    for(int i=0;i<queries.size();i++) {
+                        members.add(EmbeddedQuery.evaluate(xpc.getConfiguration(), embedded, queries.get(i), bindings==null ? null : bindings.get(i)));
+                    }
+                    return new SimpleArrayItem(members);
+                }
+                ConnectionKey key = connection.getKey(FUNCTION_NAME);
+                if(queries.isEmpty()) return SimpleArrayItem.EMPTY_ARRAY;
+                SessionSource source = ControllerSessions.get(xpc, pool);
+                BaseXClient session;
+                try {
+                    session = source.borrow(key);
+                } catch(IOException ex) {
+                    throw new XPathException(ex);
+                }
+                QueryListener listener = pool.getListener();
+                List<BaseXClient.Query> batch = Collections.emptyList();
+                int released = 0;
+                try {
+                    final Configuration configuration = xpc.getConfiguration();
+                    ItemFactory factory = new ItemFactory(configuration);
+                    List<Sequence> members = new ArrayList<>(queries.size());
+                    batch = session.batch(queries, bindings==null ? null : new BaseXClient.Binder() {
+                        @Override
+                        public void bind(int index, BaseXClient.Query query) throws IOException {
+                            try {
+                                Bindings.bind(query, bindings.get(index), configuration);
+                            } catch(XPathException ex) {
+                                throw new IOException(ex);
+                            }
+                        }
+                    }, true);
+                    for(BaseXClient.Query query: batch) {
+                        QueryRecorder recorder = new QueryRecorder(listener, key, session, query, factory);
+                        List<Item> items = new ArrayList<>();
+                        while(recorder.more()) {
+                            items.add(recorder.build());
+                        }
+                        long closeStart = System.nanoTime();
+                        session.release(query);
+                        released++;
+                        recorder.finished(closeStart);
+                        members.add(new SequenceExtent(items));
+                    }
+                    source.release(key, session);
+                    return new SimpleArrayItem(members);
+                } catch(IOException | XPathException ex) {
+                    // released queries are kept by the session, to be prepared again
+                    List<BaseXClient.Query> open = batch.subList(released, batch.size());
+                    Sessions.failed(source, key, session, ex, open.toArray(new BaseXClient.Query[open.size()]));
+                    if(listener!=null) listener.failed(key, ex);
+                    if(ex.getCause() instanceof XPathException) throw (XPathException)ex.getCause();
+                    throw ex instanceof XPathException ? (XPathException)ex : new XPathException(ex);
+                }
+            }
+            private List<MapItem> checkBindings(Sequence sqnc, int count) throws XPathException {
+                List<MapItem> bindings = new ArrayList<>(count);
+                SequenceIterator it = sqnc.iterate();
+                for(Item item = it.next(); item!=null; item = it.next()) {
+                    if(!(item instanceof MapItem)) throw new XPathException(BINDINGS_MESSAGE);
+                    bindings.add((MapItem)item);
+                }
+                if(bindings.isEmpty()) return null;
+                if(bindings.size()!=count) throw new XPathException(BINDINGS_MESSAGE+", "+bindings.size()+" maps for "+count+" queries");
+                return bindings;
+            }
+            private Connection checkConnection(Sequence[] sqncs) throws XPathException {
+                if(sqncs.length==2 || sqncs.length==3) {
+                    return Connection.read(sqncs[1].head(), CONNECTION_MESSAGE);
+                } else if(sqncs.length==5) {
+                    try {
+                        return Connection.of(
+                            ((StringValue)sqncs[1].head()).getStringValue(),
+                            // third parameter is also the bindings of the three parameters signature
+                            sqncs[2].head().getStringValue(),
+                            ((StringValue)sqncs[3].head()).getStringValue(),
+                            ((StringValue)sqncs[4].head()).getStringValue());
+                    } catch(ClassCastException | NullPointerException ex) {
+                        throw new XPathException("in 5 parameters signature, parameters 2 to 5 must be xs:string");
+                    }
+                } else {
+                    throw new XPathException("Illegal number of arguments. "+
+                            "Args are either (xs:string*, element(basex)), (xs:string*, element(basex), map(*)*), "+
+                            "or (xs:string*, xs:string, xs:string, xs:string, xs:string)");
+                }
+            }
+        };
+    }
+
+    @Override
+    public SequenceType[] getArgumentTypes() {
+        return new SequenceType[] {
+            SequenceType.STRING_SEQUENCE,
+            SequenceType.SINGLE_ITEM,
+            SequenceType.ANY_SEQUENCE,
+            SequenceType.OPTIONAL_STRING,
+            SequenceType.OPTIONAL_STRING};
+    }
+
+    @Override
+    public SequenceType getResultType(SequenceType[] sts) {
+        return SequenceType.makeSequenceType(ArrayItemType.ANY_ARRAY_TYPE, StaticProperty.EXACTLY_ONE);
+    }
+
+    @Override
+    public int getMinimumNumberOfArguments() {
+        return 2;
+    }
+
+    @Override
+    public int getMaximumNumberOfArguments() {
+        return 5;
+    }
+}
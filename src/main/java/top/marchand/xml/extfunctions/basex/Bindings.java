@@ -0,0 +1,325 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.stream.StreamResult;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.ma.arrays.ArrayItem;
+import net.sf.saxon.ma.map.KeyValuePair;
+import net.sf.saxon.ma.map.MapItem;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.om.SequenceTool;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.query.QueryResult;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.SingletonIterator;
+import net.sf.saxon.type.AtomicType;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.value.AtomicValue;
+import net.sf.saxon.value.QNameValue;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * Binds the entries of a map to the external variables of a query.
+ * Keys are variable names, as <tt>xs:string</tt> or <tt>xs:QName</tt> ; the
+ * <tt>"."</tt> key binds the context item. Values are sequences of :
+ * <ul>
+ * <li>atomic values, sent with their type ;</li>
+ * <li>document, element and text nodes, sent as <tt>document-node()</tt>,
+ * <tt>element()</tt> and <tt>text()</tt> ;</li>
+ * <li>maps and arrays, sent as JSON : numbers are read as <tt>xs:double</tt>, and
+ * nodes as strings.</li>
+ * </ul>
+ * Nodes, maps and arrays are serialized while they are sent to the server, without
+ * being copied in a string.
+ *
+ * @author Christophe Marchand
+ */
+class Bindings {
+    /** Key of the context item. */
+    static final String CONTEXT = ".";
+    /** Separates items of a sequence, in a bound value. */
+    private static final char ITEM_SEPARATOR = '\u0001';
+    /** Separates an item from its type, in a bound value. */
+    private static final char TYPE_SEPARATOR = '\u0002';
+    private static final Properties XML_OUTPUT = output("xml");
+    private static final Properties JSON_OUTPUT = output("json");
+
+    private Bindings() {
+        super();
+    }
+
+    /**
+     * Where variables are bound : a query on a server, or an embedded query.
+     */
+    interface Target {
+        /**
+         * @param name Variable name
+         * @param value Value, in the BaseX binding format
+         * @param type Type name, or an empty string for sequences
+         * @throws XPathException If value can not be bound
+         * @throws IOException If server fails
+         */
+        void bind(String name, String value, String type) throws XPathException, IOException;
+
+        /**
+         * @param name Variable name
+         * @param value Value, in the BaseX binding format, written while it is sent
+         * @param type Type name, or an empty string for sequences
+         * @throws XPathException If value can not be bound
+         * @throws IOException If server fails
+         */
+        void bind(String name, BaseXClient.Content value, String type) throws XPathException, IOException;
+
+        /**
+         * @param value Context item, written while it is sent
+         * @param type Type name
+         * @throws XPathException If value can not be bound
+         * @throws IOException If server fails
+         */
+        void context(BaseXClient.Content value, String type) throws XPathException, IOException;
+    }
+
+    /**
+     * Binds all entries of the map.
+     * @param query The query
+     * @param bindings The variables
+     * @param configuration The configuration nodes, maps and arrays are serialized with
+     * @throws XPathException If a key or a value can not be bound
+     * @throws IOException If server fails
+     */
+    static void bind(final BaseXClient.Query query, MapItem bindings, Configuration configuration) throws XPathException, IOException {
+        bind(new Target() {
+            @Override
+            public void bind(String name, String value, String type) throws IOException {
+                query.bind(name, value, type);
+            }
+
+            @Override
+            public void bind(String name, BaseXClient.Content value, String type) throws IOException {
+                query.bind(name, value, type);
+            }
+
+            @Override
+            public void context(BaseXClient.Content value, String type) throws IOException {
+                query.context(value, type);
+            }
+        }, bindings, configuration);
+    }
+
+    /**
+     * Binds all entries of the map.
+     * @param query Where variables are bound
+     * @param bindings The variables
+     * @param configuration The configuration nodes, maps and arrays are serialized with
+     * @throws XPathException If a key or a value can not be bound
+     * @throws IOException If server fails
+     */
+    static void bind(Target query, MapItem bindings, Configuration configuration) throws XPathException, IOException {
+        for(KeyValuePair entry: bindings) {
+            boolean context = isContext(entry.key);
+            String name = context ? CONTEXT : variableName(entry.key);
+            GroundedValue value = SequenceTool.toGroundedValue(entry.value);
+            int length = value.getLength();
+            if(context && length!=1) {
+                throw new XPathException("the context item must be bound to one item");
+            }
+            if(length==0) {
+                query.bind(name, "", "empty-sequence()");
+            } else if(!context && isAtomic(value)) {
+                if(length==1) {
+                    AtomicValue atomic = (AtomicValue)value.head();
+                    query.bind(name, atomic.getStringValue(), typeName(atomic));
+                } else {
+                    StringBuilder sb = new StringBuilder();
+                    for(int i=0;i<length;i++) {
+                        if(i>0) sb.append(ITEM_SEPARATOR);
+                        append(sb, (AtomicValue)value.itemAt(i));
+                    }
+                    query.bind(name, sb.toString(), "");
+                }
+            } else {
+                // types are checked before anything is sent
+                String type = "";
+                for(int i=0;i<length;i++) {
+                    type = itemType(name, value.itemAt(i));
+                }
+                ItemsContent content = new ItemsContent(value, configuration);
+                try {
+                    if(context) {
+                        query.context(content, type);
+                    } else {
+                        query.bind(name, content, length==1 ? type : "");
+                    }
+                } catch(IOException ex) {
+                    if(ex.getCause() instanceof XPathException) throw (XPathException)ex.getCause();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a canonical form of the bindings, that does not depend on the order of entries.
+     * @param bindings The variables, may be <tt>null</tt>
+     * @return The canonical form, or <tt>null</tt> if a value is not an atomic value
+     * @throws XPathException If a key is not a variable name
+     */
+    static String key(MapItem bindings) throws XPathException {
+        if(bindings==null) return "";
+        Map<String,String> sorted = new TreeMap<>();
+        for(KeyValuePair entry: bindings) {
+            StringBuilder sb = new StringBuilder();
+            SequenceIterator it = entry.value.iterate();
+            for(Item item = it.next(); item!=null; item = it.next()) {
+                if(!(item instanceof AtomicValue)) return null;
+                sb.append(ITEM_SEPARATOR);
+                append(sb, (AtomicValue)item);
+            }
+            sorted.put(variableName(entry.key), sb.toString());
+        }
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String,String> entry: sorted.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the name of a variable, as expected by BaseX.
+     * @param key A map key
+     * @return The name, in <tt>Q{uri}local</tt> notation if it has a namespace
+     * @throws XPathException If key is neither a string nor a QName
+     */
+    static String variableName(AtomicValue key) throws XPathException {
+        if(key instanceof QNameValue) {
+            StructuredQName qn = ((QNameValue)key).getStructuredQName();
+            return qn.hasURI("") ? qn.getLocalPart() : "Q{"+qn.getURI()+"}"+qn.getLocalPart();
+        }
+        String name = key.getStringValue();
+        if(name.isEmpty()) throw new XPathException("binding keys must be variable names");
+        return name;
+    }
+
+    /**
+     * Returns the type name of an atomic value, as expected by BaseX.
+     * Values of user-defined types are sent as their built-in base type.
+     * @param value The value
+     * @return The type name, i.e. <tt>xs:integer</tt>
+     */
+    static String typeName(AtomicValue value) {
+        AtomicType type = value.getItemType();
+        while(!type.isBuiltInType() && type.getBaseType() instanceof AtomicType) {
+            type = (AtomicType)type.getBaseType();
+        }
+        StructuredQName name = type.getTypeName();
+        if(NamespaceConstant.SCHEMA.equals(name.getURI())) {
+            return "xs:"+name.getLocalPart();
+        }
+        return "xs:"+value.getPrimitiveType().getTypeName().getLocalPart();
+    }
+
+    /**
+     * Returns the type an item is sent with.
+     * @param name The variable name
+     * @param item The item
+     * @return The type name, i.e. <tt>xs:integer</tt>, <tt>element()</tt> or <tt>json</tt>
+     * @throws XPathException If the item can not be bound
+     */
+    static String itemType(String name, Item item) throws XPathException {
+        if(item instanceof AtomicValue) return typeName((AtomicValue)item);
+        if(item instanceof NodeInfo) {
+            switch(((NodeInfo)item).getNodeKind()) {
+                case Type.DOCUMENT: return "document-node()";
+                case Type.ELEMENT: return "element()";
+                case Type.TEXT: return "text()";
+                default:
+                    throw new XPathException("value of $"+name+" can not contain attribute, comment, "
+                            + "processing-instruction or namespace nodes");
+            }
+        }
+        if(item instanceof MapItem || item instanceof ArrayItem) return "json";
+        throw new XPathException("value of $"+name+" can not contain functions");
+    }
+
+    private static boolean isContext(AtomicValue key) {
+        return !(key instanceof QNameValue) && CONTEXT.equals(key.getStringValue());
+    }
+
+    private static boolean isAtomic(GroundedValue value) {
+        for(int i=0;i<value.getLength();i++) {
+            if(!(value.itemAt(i) instanceof AtomicValue)) return false;
+        }
+        return true;
+    }
+
+    private static void append(StringBuilder sb, AtomicValue value) {
+        sb.append(value.getStringValueCS()).append(TYPE_SEPARATOR).append(typeName(value));
+    }
+
+    private static Properties output(String method) {
+        Properties output = new Properties();
+        output.setProperty(OutputKeys.METHOD, method);
+        output.setProperty(OutputKeys.ENCODING, "UTF-8");
+        output.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        output.setProperty(OutputKeys.INDENT, "no");
+        return output;
+    }
+
+    /**
+     * A sequence of items, serialized while it is sent. Items of a sequence of more
+     * than one item are followed by their type.
+     */
+    private static class ItemsContent implements BaseXClient.Content {
+        private final GroundedValue value;
+        private final Configuration configuration;
+
+        ItemsContent(GroundedValue value, Configuration configuration) {
+            this.value = value;
+            this.configuration = configuration;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            int length = value.getLength();
+            try {
+                for(int i=0;i<length;i++) {
+                    Item item = value.itemAt(i);
+                    if(i>0) out.write(ITEM_SEPARATOR);
+                    write(item, out);
+                    if(length>1) {
+                        out.write(TYPE_SEPARATOR);
+                        out.write(itemType("", item).getBytes(BaseXClient.UTF8));
+                    }
+                }
+            } catch(XPathException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+
+        private void write(Item item, OutputStream out) throws XPathException, IOException {
+            if(item instanceof NodeInfo && ((NodeInfo)item).getNodeKind()!=Type.TEXT) {
+                QueryResult.serialize((NodeInfo)item, new StreamResult(out), XML_OUTPUT);
+            } else if(item instanceof MapItem || item instanceof ArrayItem) {
+                QueryResult.serializeSequence(SingletonIterator.makeIterator(item), configuration, out, JSON_OUTPUT);
+            } else {
+                // text nodes are read as they are
+                out.write(item.getStringValue().getBytes(BaseXClient.UTF8));
+            }
+        }
+    }
+}
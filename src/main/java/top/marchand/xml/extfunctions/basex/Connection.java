@@ -0,0 +1,269 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import net.sf.saxon.ma.map.KeyValuePair;
+import net.sf.saxon.ma.map.MapItem;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.pattern.NodeKindTest;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.type.Type;
+
+/**
+ * A resolved connection descriptor : one or several server accounts, or an embedded
+ * database directory.
+ *
+ * The descriptor is the <tt>basex</tt> element, from any tree model, or a map with the
+ * same entries, i.e. <tt>map{'server': 'localhost', 'port': 1984, ...}</tt>.
+ * Several <tt>server</tt> entries, each one as <tt>host</tt> or <tt>host:port</tt>, make
+ * a group of shards, queried at the same time. An IPv6 address is given as <tt>::1</tt>,
+ * or with brackets if followed by a port : <tt>[::1]:1984</tt>. <tt>merge</tt> tells how their results
+ * are merged : <tt>shard</tt> (default) returns them in the order of the servers,
+ * <tt>arrival</tt> as soon as they are read.
+ * A single server may have <tt>replica</tt> entries, with the same port, user and password
+ * unless given as <tt>host:port</tt> : read queries are run on the server or one of its replicas,
+ * chosen by <tt>routing</tt>, <tt>least-outstanding</tt> (default) or <tt>latency</tt>.
+ * See {@link ServerHealth}. Updating queries are always run on the server.
+ * With <tt>page-size</tt>, the result of a read query on a single server is fetched by pages of this
+ * number of items, each one requested when the previous one has been read : see {@link QueryPages}.
+ * Instances are immutable.
+ *
+ * @author Christophe Marchand
+ */
+final class Connection {
+    private static final String ENTRIES = "server, replica, port, user, password, merge, routing and page-size, or embedded";
+
+    private final List<ConnectionKey> keys;
+    private final List<ConnectionKey> servers;
+    private final String embedded;
+    private final boolean interleaved;
+    private final boolean latencyRouting;
+    private final long pageSize;
+
+    private Connection(List<ConnectionKey> keys, List<ConnectionKey> servers, String embedded, boolean interleaved, boolean latencyRouting, long pageSize) {
+        super();
+        this.keys = keys;
+        this.servers = servers;
+        this.embedded = embedded;
+        this.interleaved = interleaved;
+        this.latencyRouting = latencyRouting;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param embedded The embedded database directory
+     * @return The connection
+     */
+    static Connection embedded(String embedded) {
+        List<ConnectionKey> none = Collections.emptyList();
+        return new Connection(none, none, embedded, false, false, 0);
+    }
+
+    /**
+     * @param server Server name
+     * @param port Server port
+     * @param user User name
+     * @param password Password
+     * @return The connection to a single server
+     * @throws XPathException If port is not a number
+     */
+    static Connection of(String server, String port, String user, String password) throws XPathException {
+        List<ConnectionKey> keys = Collections.singletonList(BaseXQuery.makeConnectionKey(server, port, user, password));
+        return new Connection(keys, keys, null, false, false, 0);
+    }
+
+    /**
+     * Reads the connection descriptor.
+     * @param connect The descriptor
+     * @param message Error message, if the descriptor is neither an element nor a map
+     * @return The connection
+     * @throws XPathException If the descriptor is not valid
+     */
+    static Connection read(Item connect, String message) throws XPathException {
+        Entries entries = new Entries();
+        if(connect instanceof NodeInfo && ((NodeInfo)connect).getNodeKind()==Type.ELEMENT) {
+            AxisIterator iterator = ((NodeInfo)connect).iterateAxis(AxisInfo.CHILD, NodeKindTest.ELEMENT);
+            for(NodeInfo ni = iterator.next(); ni!=null; ni=iterator.next()) {
+                entries.set(ni.getLocalPart(), ni.getStringValue(),
+                        "child elements of basex must be "+ENTRIES);
+            }
+        } else if(connect instanceof MapItem) {
+            for(KeyValuePair entry: (MapItem)connect) {
+                String name = entry.key.getStringValue();
+                SequenceIterator it = entry.value.iterate();
+                for(Item value = it.next(); value!=null; value = it.next()) {
+                    entries.set(name, value.getStringValue(), "keys of connection map must be "+ENTRIES);
+                }
+            }
+        } else {
+            throw new XPathException(message);
+        }
+        return entries.toConnection();
+    }
+
+    /**
+     * @return The embedded database directory, or <tt>null</tt>
+     */
+    String getEmbedded() { return embedded; }
+
+    /**
+     * @return The server accounts, in the order of the descriptor
+     */
+    List<ConnectionKey> getKeys() { return keys; }
+
+    /**
+     * @return The server, then its replicas ; or the server accounts if there are several
+     */
+    List<ConnectionKey> getServers() { return servers; }
+
+    /**
+     * @return <tt>true</tt> if the server has replicas
+     */
+    boolean hasReplicas() { return servers.size()>1 && keys.size()==1; }
+
+    /**
+     * @return <tt>true</tt> if replicas are chosen by latency, instead of borrowed sessions
+     */
+    boolean isLatencyRouting() { return latencyRouting; }
+
+    /**
+     * @return The number of items per page, or 0 if the result is not read by pages
+     */
+    long getPageSize() { return pageSize; }
+
+    /**
+     * @return <tt>true</tt> if the query must be run on several servers
+     */
+    boolean isFanOut() { return keys.size()>1; }
+
+    /**
+     * @return <tt>true</tt> if results of several servers are merged as soon as they are read
+     */
+    boolean isInterleaved() { return interleaved; }
+
+    /**
+     * @param function The function name, for error messages
+     * @return The only server account
+     * @throws XPathException If there are several servers, or none
+     */
+    ConnectionKey getKey(String function) throws XPathException {
+        if(keys.size()!=1) {
+            throw new XPathException(function+" needs exactly one BaseX server");
+        }
+        return keys.get(0);
+    }
+
+    /**
+     * Entries of a descriptor, as they are read.
+     */
+    private static class Entries {
+        private final List<String> servers = new ArrayList<>(1);
+        private final List<String> replicas = new ArrayList<>(0);
+        private String port, user, password, embedded, merge, routing, pageSize;
+
+        void set(String name, String value, String message) throws XPathException {
+            switch(name) {
+                case "server":
+                    servers.add(value);
+                    break;
+                case "replica":
+                    replicas.add(value);
+                    break;
+                case "port":
+                    port = value;
+                    break;
+                case "user":
+                    user = value;
+                    break;
+                case "password":
+                    password = value;
+                    break;
+                case "embedded":
+                    embedded = value;
+                    break;
+                case "merge":
+                    merge = value;
+                    break;
+                case "routing":
+                    routing = value;
+                    break;
+                case "page-size":
+                    pageSize = value;
+                    break;
+                default:
+                    throw new XPathException(message);
+            }
+        }
+
+        Connection toConnection() throws XPathException {
+            if(embedded!=null) return embedded(embedded);
+            boolean interleaved = "arrival".equals(merge);
+            if(merge!=null && !interleaved && !"shard".equals(merge)) {
+                throw new XPathException("merge must be shard or arrival: "+merge);
+            }
+            boolean latencyRouting = "latency".equals(routing);
+            if(routing!=null && !latencyRouting && !"least-outstanding".equals(routing)) {
+                throw new XPathException("routing must be least-outstanding or latency: "+routing);
+            }
+            long size = 0;
+            if(pageSize!=null) {
+                size = isNumber(pageSize) && !pageSize.isEmpty() && pageSize.length()<19 ? Long.parseLong(pageSize) : 0;
+                if(size<=0) throw new XPathException("page-size must be a positive integer: "+pageSize);
+            }
+            if(servers.isEmpty()) servers.add(null);
+            if(servers.size()>1 && !replicas.isEmpty()) {
+                throw new XPathException("replicas may only be given for a single server");
+            }
+            List<ConnectionKey> keys = Collections.unmodifiableList(toKeys(servers));
+            if(replicas.isEmpty()) return new Connection(keys, keys, null, interleaved, false, size);
+            List<ConnectionKey> all = toKeys(servers);
+            all.addAll(toKeys(replicas));
+            return new Connection(keys, Collections.unmodifiableList(all), null, interleaved, latencyRouting, size);
+        }
+
+        private List<ConnectionKey> toKeys(List<String> names) throws XPathException {
+            List<ConnectionKey> keys = new ArrayList<>(names.size());
+            for(String server: names) {
+                String host = server;
+                String hostPort = port;
+                if(server!=null && server.startsWith("[")) {
+                    // IPv6 address
+                    int end = server.indexOf(']');
+                    String rest = end<0 ? "" : server.substring(end+1);
+                    if(end<0 || !rest.isEmpty() && (rest.length()<2 || rest.charAt(0)!=':' || !isNumber(rest.substring(1)))) {
+                        throw new XPathException("IPv6 server must be given as [address] or [address]:port: "+server);
+                    }
+                    host = server.substring(1, end);
+                    if(!rest.isEmpty()) hostPort = rest.substring(1);
+                } else if(server!=null) {
+                    // a port only follows a name or an IPv4 address, which have no colon
+                    int colon = server.indexOf(':');
+                    if(colon>0 && colon==server.lastIndexOf(':') && colon<server.length()-1 && isNumber(server.substring(colon+1))) {
+                        host = server.substring(0, colon);
+                        hostPort = server.substring(colon+1);
+                    }
+                }
+                keys.add(BaseXQuery.makeConnectionKey(host, hostPort, user, password));
+            }
+            return keys;
+        }
+
+        private static boolean isNumber(String s) {
+            for(int i=0;i<s.length();i++) {
+                if(!Character.isDigit(s.charAt(i))) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * Identifies a BaseX server account : server, port and user.
+ * Password is part of equality, so that two descriptors that only differ
+ * by password never share an authenticated session.
+ * Instances are immutable, and may be used as keys in maps.
+ *
+ * @author Christophe Marchand
+ */
+public final class ConnectionKey {
+    private final String server;
+    private final int port;
+    private final String user;
+    private final String password;
+    private final int hash;
+
+    public ConnectionKey(String server, int port, String user, String password) {
+        super();
+        this.server = server;
+        this.port = port;
+        this.user = user;
+        this.password = password;
+        int h = 17;
+        h = 31*h + (server==null ? 0 : server.hashCode());
+        h = 31*h + port;
+        h = 31*h + (user==null ? 0 : user.hashCode());
+        h = 31*h + (password==null ? 0 : password.hashCode());
+        this.hash = h;
+    }
+
+    public String getServer() { return server; }
+    public int getPort() { return port; }
+    public String getUser() { return user; }
+    public String getPassword() { return password; }
+
+    /**
+     * Opens and authenticates a new session on this server.
+     * @return A new session
+     * @throws IOException If connection or authentication fails
+     */
+    public BaseXClient connect() throws IOException {
+        return new BaseXClient(server, port, user, password);
+    }
+
+    /**
+     * Opens and authenticates a new session on this server.
+     * @param timeout Connection timeout, in milliseconds
+     * @return A new session
+     * @throws IOException If connection or authentication fails
+     */
+    public BaseXClient connect(int timeout) throws IOException {
+        return new BaseXClient(server, port, user, password, timeout);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(this==obj) return true;
+        if(!(obj instanceof ConnectionKey)) return false;
+        ConnectionKey other = (ConnectionKey)obj;
+        return hash==other.hash
+                && port==other.port
+                && equals(server, other.server)
+                && equals(user, other.user)
+                && equals(password, other.password);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Never displays password.
+     * @return <tt>user@server:port</tt>
+     */
+    @Override
+    public String toString() {
+        return user+"@"+server+":"+port;
+    }
+
+    private static boolean equals(String s1, String s2) {
+        return s1==null ? s2==null : s1.equals(s2);
+    }
+}
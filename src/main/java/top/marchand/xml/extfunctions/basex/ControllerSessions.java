@@ -0,0 +1,153 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.instruct.Executable;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * The sessions of an XSLT transformation : all calls to the same server account,
+ * in the same transformation, whose results are read at the same time, share one
+ * session. It is borrowed from the pool by the first call, and given back when
+ * no result of the transformation is read from it anymore. As the pool gives back
+ * the most recently released session first, later calls usually get the same one.
+ *
+ * It is stored in the controller user data. Saxon has no notification of the end
+ * of a transformation but the trace listeners, which would turn tracing on : sessions
+ * are counted instead, and nothing is kept once all results have been read or closed,
+ * so that a controller may run several transformations. Results that are neither
+ * read to the end nor closed keep their session.
+ *
+ * Results of a query are buffered by the session when another query is sent,
+ * so that many result sequences of the same transformation may be read at the same time.
+ *
+ * @author Christophe Marchand
+ */
+class ControllerSessions implements SessionSource {
+    private static final Logger LOGGER = Logger.getLogger(ControllerSessions.class.getName());
+    private static final String USER_DATA_NAME = "basex-sessions";
+
+    private final BaseXClientPool pool;
+    /** Sessions new calls share. */
+    private final Map<ConnectionKey,Shared> sessions = new HashMap<>();
+    /** All borrowed sessions, including the invalidated ones that are still used by some results. */
+    private final Map<BaseXClient,Shared> borrowed = new IdentityHashMap<>();
+
+    private ControllerSessions(BaseXClientPool pool) {
+        super();
+        this.pool = pool;
+    }
+
+    /**
+     * Returns where the call must borrow its session from.
+     * @param context The dynamic context of the call
+     * @param pool The pool sessions are borrowed from
+     * @return The sessions of the running transformation, or the pool if the
+     * call is not part of an XSLT transformation
+     */
+    static SessionSource get(XPathContext context, BaseXClientPool pool) {
+        Controller controller = context.getController();
+        if(controller==null) return pool;
+        Executable executable = controller.getExecutable();
+        if(executable==null || executable.getHostLanguage()!=Configuration.XSLT) return pool;
+        synchronized(controller) {
+            ControllerSessions sessions = (ControllerSessions)controller.getUserData(pool, USER_DATA_NAME);
+            if(sessions==null) {
+                sessions = new ControllerSessions(pool);
+                controller.setUserData(pool, USER_DATA_NAME, sessions);
+            }
+            return sessions;
+        }
+    }
+
+    @Override
+    public synchronized BaseXClient borrow(ConnectionKey key) throws IOException {
+        Shared shared = sessions.get(key);
+        if(shared==null) {
+            shared = new Shared(pool.borrow(key));
+            sessions.put(key, shared);
+            borrowed.put(shared.session, shared);
+        }
+        shared.users++;
+        return shared.session;
+    }
+
+    @Override
+    public synchronized void release(ConnectionKey key, BaseXClient session) {
+        Shared shared = borrowed.get(session);
+        if(shared==null) {
+            pool.release(key, session);
+        } else if(--shared.users==0) {
+            borrowed.remove(session);
+            if(!shared.invalid) {
+                sessions.remove(key);
+                pool.release(key, session);
+            }
+        }
+    }
+
+    /**
+     * Cancels the query by closing the session if no other result of the
+     * transformation is read from it, or reads the remaining items otherwise.
+     */
+    @Override
+    public synchronized void abandon(ConnectionKey key, BaseXClient session, BaseXClient.Query query) {
+        Shared shared = borrowed.get(session);
+        if(shared==null) {
+            pool.abandon(key, session, query);
+            return;
+        }
+        if(shared.users>1 && !shared.invalid) {
+            try {
+                session.release(query);
+                shared.users--;
+                return;
+            } catch(IOException ex) {
+                LOGGER.log(Level.FINE, "while draining BaseX query on "+key, ex);
+            }
+        }
+        invalidate(key, session);
+    }
+
+    /**
+     * Closes the session : other results still read from it will fail.
+     */
+    @Override
+    public synchronized void invalidate(ConnectionKey key, BaseXClient session) {
+        Shared shared = borrowed.get(session);
+        if(shared==null) {
+            pool.invalidate(key, session);
+            return;
+        }
+        if(!shared.invalid) {
+            shared.invalid = true;
+            sessions.remove(key);
+            pool.invalidate(key, session);
+        }
+        if(--shared.users==0) borrowed.remove(session);
+    }
+
+    private static class Shared {
+        private final BaseXClient session;
+        /** Result sequences that are still being read. */
+        private int users = 0;
+        /** Session has been closed, it is not shared any more. */
+        private boolean invalid = false;
+        Shared(BaseXClient session) {
+            this.session = session;
+        }
+    }
+}
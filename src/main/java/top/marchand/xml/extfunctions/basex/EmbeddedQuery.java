@@ -0,0 +1,285 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.NamespaceReducer;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.expr.parser.ExplicitLocation;
+import net.sf.saxon.ma.map.MapItem;
+import net.sf.saxon.om.FingerprintedQName;
+import net.sf.saxon.om.NamespaceBinding;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.TinyBuilder;
+import net.sf.saxon.tree.util.Orphan;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.type.Untyped;
+import net.sf.saxon.value.SequenceExtent;
+import org.basex.core.Context;
+import org.basex.core.StaticOptions;
+import org.basex.examples.api.BaseXClient;
+import org.basex.query.QueryException;
+import org.basex.query.QueryProcessor;
+import org.basex.query.value.Value;
+import org.basex.query.value.item.FItem;
+import org.basex.query.value.item.Item;
+import org.basex.query.value.item.QNm;
+import org.basex.query.value.node.ANode;
+import org.basex.query.value.type.NodeType;
+import org.basex.util.Atts;
+import org.basex.util.Token;
+
+/**
+ * Runs queries with an in-process BaseX, on the databases of a local directory,
+ * without any server. Selected by an <tt>embedded</tt> child of the <tt>basex</tt>
+ * element, which contains the database directory :
+ * <tt>&lt;basex&gt;&lt;embedded&gt;/data/basex&lt;/embedded&gt;&lt;/basex&gt;</tt>.
+ *
+ * Result nodes are not serialized : they are copied from the BaseX tree into a
+ * Saxon tiny tree. Results are copied while the query holds its database locks,
+ * so the whole result is built before the function returns.
+ *
+ * There is one BaseX context per directory, closed when the JVM stops, or by
+ * {@link BaseXQuery#closeEmbeddedDatabases()}. The BaseX jar, version 9.0 or later,
+ * must be in the classpath, and needs Java 8 ; this class is only loaded when embedded
+ * mode is used, so that server mode still runs with Java 7.
+ * A directory must not be used at the same time by a BaseX server, since they
+ * would not share their locks.
+ *
+ * @author Christophe Marchand
+ */
+final class EmbeddedQuery {
+    private static final Map<String,Context> CONTEXTS = new HashMap<>();
+
+    private final ItemFactory factory;
+    private final Configuration configuration;
+    private final PipelineConfiguration pipe;
+
+    private EmbeddedQuery(Configuration configuration) {
+        super();
+        this.configuration = configuration;
+        this.factory = new ItemFactory(configuration);
+        this.pipe = configuration.makePipelineConfiguration();
+    }
+
+    /**
+     * Runs a query.
+     * @param configuration The configuration result items are built for
+     * @param dbPath The database directory
+     * @param xquery The query
+     * @param bindings The external variables, or <tt>null</tt>
+     * @return The whole result
+     * @throws XPathException If query fails
+     */
+    static SequenceExtent evaluate(Configuration configuration, String dbPath, String xquery, MapItem bindings) throws XPathException {
+        Context context = getContext(dbPath);
+        final QueryProcessor qp = new QueryProcessor(xquery, context);
+        try {
+            if(bindings!=null) {
+                Bindings.bind(new Bindings.Target() {
+                    @Override
+                    public void bind(String name, String value, String type) throws XPathException {
+                        try {
+                            qp.bind(name, value, type);
+                        } catch(QueryException ex) {
+                            throw new XPathException(ex.getMessage());
+                        }
+                    }
+
+                    @Override
+                    public void bind(String name, BaseXClient.Content value, String type) throws XPathException, IOException {
+                        bind(name, serialize(value), type);
+                    }
+
+                    @Override
+                    public void context(BaseXClient.Content value, String type) throws XPathException, IOException {
+                        try {
+                            qp.context(serialize(value), type);
+                        } catch(QueryException ex) {
+                            throw new XPathException(ex.getMessage());
+                        }
+                    }
+                }, bindings, configuration);
+            }
+            qp.parse();
+            qp.register(context);
+            try {
+                return new EmbeddedQuery(configuration).copy(qp.value());
+            } finally {
+                qp.unregister(context);
+            }
+        } catch(QueryException ex) {
+            throw new XPathException(ex.getMessage());
+        } catch(IOException ex) {
+            throw new XPathException(ex);
+        } finally {
+            qp.close();
+        }
+    }
+
+    /**
+     * @return The serialized value ; in-process queries are bound with strings
+     */
+    private static String serialize(BaseXClient.Content value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        value.write(out);
+        return new String(out.toByteArray(), BaseXClient.UTF8);
+    }
+
+    private static synchronized Context getContext(String dbPath) throws XPathException {
+        String path;
+        try {
+            path = new File(dbPath).getCanonicalPath();
+        } catch(IOException ex) {
+            throw new XPathException("invalid embedded database directory: "+dbPath);
+        }
+        Context context = CONTEXTS.get(path);
+        if(context==null) {
+            if(!BaseXQuery.embeddedOpened) {
+                Runtime.getRuntime().addShutdownHook(new Thread("basex-embedded-close") {
+                    @Override
+                    public void run() {
+                        closeAll();
+                    }
+                });
+                BaseXQuery.embeddedOpened = true;
+            }
+            context = new Context(false);
+            context.soptions.set(StaticOptions.DBPATH, path);
+            CONTEXTS.put(path, context);
+        }
+        return context;
+    }
+
+    /**
+     * Closes the contexts of all directories. Next queries open them again.
+     */
+    static synchronized void closeAll() {
+        for(Context context: CONTEXTS.values()) {
+            context.close();
+        }
+        CONTEXTS.clear();
+    }
+
+    private SequenceExtent copy(Value value) throws XPathException, QueryException {
+        List<net.sf.saxon.om.Item> items = new ArrayList<>((int)Math.min(value.size(), 1024));
+        for(Item item: value) {
+            items.add(copy(item));
+        }
+        return new SequenceExtent(items);
+    }
+
+    private net.sf.saxon.om.Item copy(Item item) throws XPathException, QueryException {
+        if(item instanceof ANode) {
+            ANode node = (ANode)item;
+            NodeType type = node.nodeType();
+            if(type==NodeType.DOC || type==NodeType.ELM) return document(node);
+            return orphan(node);
+        }
+        if(item instanceof FItem) {
+            // functions, maps and arrays
+            return factory.atomic(-1, item.toString(), null);
+        }
+        String uri = item instanceof QNm ? string(((QNm)item).uri()) : null;
+        return factory.atomic(item.typeId().asByte(), string(item.string(null)), uri);
+    }
+
+    /**
+     * Copies a document or an element into a tiny tree.
+     * @return The document node
+     */
+    private NodeInfo document(ANode node) throws XPathException {
+        TinyBuilder builder = new TinyBuilder(pipe);
+        Receiver out = new NamespaceReducer(builder);
+        out.open();
+        out.startDocument(0);
+        if(node.nodeType()==NodeType.DOC) {
+            children(node, out);
+        } else {
+            element(node, out);
+        }
+        out.endDocument();
+        out.close();
+        return builder.getCurrentRoot();
+    }
+
+    private void element(ANode node, Receiver out) throws XPathException {
+        out.startElement(name(node.qname()), Untyped.getInstance(), ExplicitLocation.UNKNOWN_LOCATION, 0);
+        Atts namespaces = node.namespaces();
+        if(namespaces!=null) {
+            for(int i=0;i<namespaces.size();i++) {
+                out.namespace(new NamespaceBinding(string(namespaces.name(i)), string(namespaces.value(i))), 0);
+            }
+        }
+        for(ANode attribute: node.attributes()) {
+            out.attribute(name(attribute.qname()), BuiltInAtomicType.UNTYPED_ATOMIC,
+                    string(attribute.string()), ExplicitLocation.UNKNOWN_LOCATION, 0);
+        }
+        out.startContent();
+        children(node, out);
+        out.endElement();
+    }
+
+    private void children(ANode node, Receiver out) throws XPathException {
+        for(ANode child: node.children()) {
+            NodeType type = child.nodeType();
+            if(type==NodeType.ELM) {
+                element(child, out);
+            } else if(type==NodeType.TXT) {
+                out.characters(string(child.string()), ExplicitLocation.UNKNOWN_LOCATION, 0);
+            } else if(type==NodeType.COM) {
+                out.comment(string(child.string()), ExplicitLocation.UNKNOWN_LOCATION, 0);
+            } else if(type==NodeType.PI) {
+                out.processingInstruction(string(child.name()), string(child.string()),
+                        ExplicitLocation.UNKNOWN_LOCATION, 0);
+            }
+        }
+    }
+
+    /**
+     * Copies a node that is not a document into a parentless node.
+     */
+    private NodeInfo orphan(ANode node) {
+        Orphan orphan = new Orphan(configuration);
+        NodeType type = node.nodeType();
+        if(type==NodeType.ATT) {
+            orphan.setNodeKind(Type.ATTRIBUTE);
+            orphan.setNodeName(name(node.qname()));
+        } else if(type==NodeType.PI) {
+            orphan.setNodeKind(Type.PROCESSING_INSTRUCTION);
+            orphan.setNodeName(name(node.qname()));
+        } else if(type==NodeType.COM) {
+            orphan.setNodeKind(Type.COMMENT);
+        } else if(type==NodeType.NSP) {
+            orphan.setNodeKind(Type.NAMESPACE);
+            orphan.setNodeName(name(node.qname()));
+        } else {
+            orphan.setNodeKind(Type.TEXT);
+        }
+        orphan.setStringValue(string(node.string()));
+        return orphan;
+    }
+
+    private static String string(byte[] token) {
+        return token==null ? "" : Token.string(token);
+    }
+
+    private static NodeName name(QNm name) {
+        return new FingerprintedQName(string(name.prefix()), string(name.uri()), string(name.local()));
+    }
+}
@@ -0,0 +1,439 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sf.saxon.ma.map.MapItem;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.LazySequence;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * Runs a query on several servers at the same time, and merges their results into
+ * one sequence : in the order of the servers, or as soon as items are read.
+ * The call takes about as long as the slowest server, instead of the sum of all.
+ *
+ * Each server is read by a background thread, with a session borrowed from the pool.
+ * Items are handed over through a bounded queue per server : when it is full, the
+ * thread waits for the stylesheet. If results of a server are needed while it still
+ * waits for a free thread, they are read by the calling thread. When the sequence is closed before
+ * its end, the queries are stopped and the sessions given back. An error of a
+ * server is thrown, with the server name, when its results are reached.
+ * Results are not cached, nor shared between concurrent calls.
+ *
+ * The number of background threads and the size of the queues may be set with system
+ * properties <tt>top.marchand.xml.extfunctions.basex.fanOut.threads</tt> (defaults to 16)
+ * and <tt>top.marchand.xml.extfunctions.basex.fanOut.queueSize</tt> (defaults to 16).
+ *
+ * @author Christophe Marchand
+ */
+final class FanOutQuery {
+    public static final String PROPERTY_PREFIX = "top.marchand.xml.extfunctions.basex.fanOut.";
+    private static final Logger LOGGER = Logger.getLogger(FanOutQuery.class.getName());
+    private static final ThreadPoolExecutor EXECUTOR;
+    private static final int QUEUE_SIZE = Math.max(1, Integer.getInteger(PROPERTY_PREFIX+"queueSize", 16));
+    static {
+        int threads = Integer.getInteger(PROPERTY_PREFIX+"threads", 16);
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(
+                threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "basex-fan-out-"+count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        tpe.allowCoreThreadTimeOut(true);
+        EXECUTOR = tpe;
+    }
+    /** How long a background thread waits for room in the queue, before checking the results are still used. */
+    private static final long OFFER_TIMEOUT = 1000L;
+    /** Marks the end of the results of a server. */
+    private static final Object END = new Object();
+
+    private FanOutQuery() {
+        super();
+    }
+
+    /**
+     * Starts the query on all servers.
+     * @param pool The pool sessions are borrowed from
+     * @param slowLog The log of slow queries, may be <tt>null</tt>
+     * @param factory Builds the items
+     * @param connection The servers
+     * @param xquery The query
+     * @param bindings The external variables, or <tt>null</tt>
+     * @return The merged results
+     * @throws XPathException If query can not be started
+     */
+    static Sequence evaluate(BaseXClientPool pool, SlowQueryLog slowLog, ItemFactory factory,
+            Connection connection, String xquery, MapItem bindings) throws XPathException {
+        List<ConnectionKey> keys = connection.getKeys();
+        BlockingQueue<Object> shared = connection.isInterleaved() ? new ArrayBlockingQueue<>(QUEUE_SIZE*keys.size()) : null;
+        List<Shard> shards = new ArrayList<>(keys.size());
+        for(ConnectionKey key: keys) {
+            BlockingQueue<Object> queue = shared!=null ? shared : new ArrayBlockingQueue<>(QUEUE_SIZE);
+            shards.add(new Shard(pool, slowLog, factory, key, xquery, bindings, queue));
+        }
+        MergeIterator it = shared==null ? new ShardOrderIterator(shards) : new ArrivalOrderIterator(shards, shared);
+        try {
+            for(Shard shard: shards) {
+                shard.start(it);
+            }
+        } catch(RejectedExecutionException ex) {
+            it.close();
+            throw new XPathException("Unable to start BaseX query on all servers: "+ex.getMessage());
+        }
+        return new LazySequence(it);
+    }
+
+    /**
+     * An error raised while reading results of a server, thrown when reached by the iterator.
+     */
+    private static class Failure {
+        private final XPathException exception;
+        Failure(XPathException exception) {
+            this.exception = exception;
+        }
+    }
+
+    /**
+     * Runs the query on one server, and puts the items in its queue. The session is
+     * given back when all results have been read, or when the iterator has been closed
+     * or garbage collected. If the iterator needs an item while no thread has been free
+     * to read results, it reads them itself.
+     */
+    private static class Shard implements Runnable {
+        private final BaseXClientPool pool;
+        private final SlowQueryLog slowLog;
+        private final ItemFactory factory;
+        private final ConnectionKey key;
+        private final String xquery;
+        private final MapItem bindings;
+        private final BlockingQueue<Object> queue;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile boolean cancelled = false;
+        private WeakReference<MergeIterator> owner;
+        private Future<?> future;
+        private BaseXClient session;
+        private BaseXClient.Query query;
+        private QueryRecorder recorder;
+        /** Indicates that the session has been given back. */
+        private boolean done = false;
+
+        Shard(BaseXClientPool pool, SlowQueryLog slowLog, ItemFactory factory, ConnectionKey key,
+                String xquery, MapItem bindings, BlockingQueue<Object> queue) {
+            this.pool = pool;
+            this.slowLog = slowLog;
+            this.factory = factory;
+            this.key = key;
+            this.xquery = xquery;
+            this.bindings = bindings;
+            this.queue = queue;
+        }
+
+        void start(MergeIterator it) {
+            owner = new WeakReference<>(it);
+            future = EXECUTOR.submit(this);
+        }
+
+        @Override
+        public void run() {
+            if(!claim()) return;
+            Object o = null;
+            try {
+                do {
+                    o = produce();
+                    if(!put(o)) {
+                        if(o instanceof Item) abandon();
+                        return;
+                    }
+                } while(o instanceof Item);
+            } catch(InterruptedException ex) {
+                if(o instanceof Item) pool.invalidate(key, session);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * @return <tt>true</tt> if results are read by the caller, <tt>false</tt> if
+         * they are already read by another thread
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        /**
+         * Takes the results over from the executor, if no thread has been free to read them.
+         * @return <tt>true</tt> if results are read by the caller
+         */
+        boolean claimQueued() {
+            return future!=null && EXECUTOR.remove((Runnable)future) && claim();
+        }
+
+        /**
+         * Reads the next item, and starts the query first. The session is given back at
+         * the end of results, or on error.
+         * @return The item, {@link #END} or a {@link Failure}
+         */
+        Object produce() {
+            QueryListener listener = pool.getListener();
+            try {
+                if(session==null) open(listener);
+                if(recorder.more()) return recorder.build();
+                done = true;
+                long closeStart = System.nanoTime();
+                recorder.beforeRelease();
+                session.release(query);
+                pool.release(key, session);
+                recorder.finished(closeStart);
+                return END;
+            } catch(IOException | XPathException | RuntimeException ex) {
+                if(recorder!=null) {
+                    recorder.failed(ex);
+                } else if(listener!=null) {
+                    listener.failed(key, ex);
+                }
+                if(recorder!=null && ex instanceof XPathException) {
+                    // an item could not be built, the query may still be running
+                    abandon();
+                } else if(session!=null) {
+                    done = true;
+                    Sessions.failed(pool, key, session, ex, query);
+                }
+                return new Failure(failure(ex));
+            }
+        }
+
+        private void open(QueryListener listener) throws IOException, XPathException {
+            long callStart = System.nanoTime();
+            session = pool.borrow(key);
+            if(slowLog!=null && slowLog.isServerInfo()) {
+                session.queryInfo(true);
+            }
+            long start = System.nanoTime();
+            query = session.prepare(xquery);
+            if(listener!=null) listener.prepared(key, System.nanoTime()-start);
+            if(bindings!=null) {
+                Bindings.bind(query, bindings, factory.getConfiguration());
+            }
+            query.full(true);
+            recorder = new QueryRecorder(listener, key, session, query, factory);
+            recorder.logIfSlow(slowLog, xquery, bindings, System.nanoTime()-callStart);
+        }
+
+        /**
+         * Waits for room in the queue, as long as results are still used.
+         * @return <tt>false</tt> if results are not used anymore
+         */
+        private boolean put(Object o) throws InterruptedException {
+            while(!cancelled) {
+                if(queue.offer(o, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) return true;
+                if(owner.get()==null) {
+                    LOGGER.fine("BaseX query results have been abandoned without being closed on "+key);
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Gives the session back, and cancels the query if it is still streaming.
+         */
+        void abandon() {
+            if(session==null || done) return;
+            done = true;
+            long start = System.nanoTime();
+            if(query.isStreaming()) {
+                pool.abandon(key, session, query);
+                recorder.finished(start);
+                return;
+            }
+            try {
+                session.release(query);
+                pool.release(key, session);
+                recorder.finished(start);
+            } catch(IOException ex) {
+                LOGGER.log(Level.FINE, "while releasing BaseX query on "+key, ex);
+                pool.invalidate(key, session);
+                recorder.failed(ex);
+            }
+        }
+
+        /**
+         * Stops reading : the session is given back by the thread that reads the results,
+         * and nothing is run if no thread has started.
+         */
+        void cancel() {
+            if(future!=null) future.cancel(false);
+            if(claim()) return;
+            cancelled = true;
+            queue.clear();
+        }
+
+        private XPathException failure(Exception ex) {
+            XPathException failure = new XPathException("BaseX query failed on "+key.getServer()+":"+key.getPort()+": "+ex.getMessage());
+            failure.initCause(ex);
+            return failure;
+        }
+    }
+
+    /**
+     * Merges the results of the servers. Closing it stops all servers.
+     */
+    private abstract static class MergeIterator implements SequenceIterator {
+        final List<Shard> shards;
+        /** Shard whose results are read by this iterator, in the calling thread. */
+        Shard direct;
+        boolean finished = false;
+
+        MergeIterator(List<Shard> shards) {
+            this.shards = shards;
+        }
+
+        /**
+         * @return The item, or <tt>null</tt> at the end of the results
+         */
+        Item check(Object o) throws XPathException {
+            if(o instanceof Failure) {
+                close();
+                throw ((Failure)o).exception;
+            }
+            return (Item)o;
+        }
+
+        Object take(BlockingQueue<Object> queue) throws XPathException {
+            try {
+                return queue.take();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new XPathException("Interrupted while waiting for BaseX results");
+            }
+        }
+
+        @Override
+        public void close() {
+            if(finished) return;
+            finished = true;
+            for(Shard shard: shards) {
+                if(shard==direct) {
+                    shard.abandon();
+                } else {
+                    shard.cancel();
+                }
+            }
+        }
+
+        @Override
+        public int getProperties() {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the results of each server, in the order of servers.
+     */
+    private static class ShardOrderIterator extends MergeIterator {
+        private int shard = 0;
+
+        ShardOrderIterator(List<Shard> shards) {
+            super(shards);
+        }
+
+        @Override
+        public Item next() throws XPathException {
+            while(!finished && shard<shards.size()) {
+                Shard current = shards.get(shard);
+                Object o = current==direct ? current.produce() : current.queue.poll();
+                if(o==null) {
+                    if(current.claimQueued()) {
+                        // no thread has been free to read results
+                        direct = current;
+                        o = current.produce();
+                    } else {
+                        o = take(current.queue);
+                    }
+                }
+                if(o==END) {
+                    shard++;
+                    direct = null;
+                } else {
+                    return check(o);
+                }
+            }
+            finished = true;
+            return null;
+        }
+    }
+
+    /**
+     * Returns the results of all servers, as soon as they are read.
+     */
+    private static class ArrivalOrderIterator extends MergeIterator {
+        private final BlockingQueue<Object> queue;
+        private int running;
+
+        ArrivalOrderIterator(List<Shard> shards, BlockingQueue<Object> queue) {
+            super(shards);
+            this.queue = queue;
+            this.running = shards.size();
+        }
+
+        @Override
+        public Item next() throws XPathException {
+            while(!finished && running>0) {
+                Object o = direct!=null ? direct.produce() : queue.poll();
+                if(o==null) {
+                    // no thread has been free to read results of a server
+                    direct = claimQueued();
+                    if(direct!=null) continue;
+                    o = take(queue);
+                }
+                if(o==END) {
+                    running--;
+                    direct = null;
+                } else {
+                    return check(o);
+                }
+            }
+            finished = true;
+            return null;
+        }
+
+        /**
+         * @return A server that waits for a thread, or <tt>null</tt>
+         */
+        private Shard claimQueued() {
+            for(Shard shard: shards) {
+                if(shard.claimQueued()) return shard;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.Sender;
+import net.sf.saxon.lib.ConversionRules;
+import net.sf.saxon.lib.ParseOptions;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NameOfNode;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.NoNamespaceName;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.Statistics;
+import net.sf.saxon.tree.tiny.TinyBuilder;
+import net.sf.saxon.tree.util.Orphan;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.type.ValidationException;
+import net.sf.saxon.value.QNameValue;
+import net.sf.saxon.value.StringValue;
+import net.sf.saxon.value.UntypedAtomicValue;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * Builds Saxon items from typed BaseX results.
+ *
+ * Atomic values are converted from their lexical form to the matching
+ * {@link net.sf.saxon.value.AtomicValue}, without any parsing. Documents and
+ * elements are parsed into a tiny tree, and returned as a document node.
+ * Other nodes are returned as parentless nodes.
+ *
+ * Each tree is sized from the average size of the previous items of the factory,
+ * instead of the statistics Saxon shares between all its temporary trees, which
+ * are sized for large documents, and updated by all threads.
+ *
+ * A factory may be shared by the calls of a call site, and by threads.
+ *
+ * @author Christophe Marchand
+ */
+class ItemFactory {
+    // type ids of the BaseX server protocol
+    static final int TEXT = 9;
+    static final int PROCESSING_INSTRUCTION = 10;
+    static final int ELEMENT = 11;
+    static final int DOCUMENT = 12;
+    static final int DOCUMENT_ELEMENT = 13;
+    static final int ATTRIBUTE = 14;
+    static final int COMMENT = 15;
+    static final int UNTYPED_ATOMIC = 37;
+    static final int STRING = 38;
+    static final int QNAME = 82;
+
+    private static final BuiltInAtomicType[] ATOMIC_TYPES = new BuiltInAtomicType[87];
+    static {
+        ATOMIC_TYPES[39] = BuiltInAtomicType.NORMALIZED_STRING;
+        ATOMIC_TYPES[40] = BuiltInAtomicType.TOKEN;
+        ATOMIC_TYPES[41] = BuiltInAtomicType.LANGUAGE;
+        ATOMIC_TYPES[42] = BuiltInAtomicType.NMTOKEN;
+        ATOMIC_TYPES[43] = BuiltInAtomicType.NAME;
+        ATOMIC_TYPES[44] = BuiltInAtomicType.NCNAME;
+        ATOMIC_TYPES[45] = BuiltInAtomicType.ID;
+        ATOMIC_TYPES[46] = BuiltInAtomicType.IDREF;
+        ATOMIC_TYPES[47] = BuiltInAtomicType.ENTITY;
+        ATOMIC_TYPES[48] = BuiltInAtomicType.FLOAT;
+        ATOMIC_TYPES[49] = BuiltInAtomicType.DOUBLE;
+        ATOMIC_TYPES[50] = BuiltInAtomicType.DECIMAL;
+        ATOMIC_TYPES[52] = BuiltInAtomicType.INTEGER;
+        ATOMIC_TYPES[53] = BuiltInAtomicType.NON_POSITIVE_INTEGER;
+        ATOMIC_TYPES[54] = BuiltInAtomicType.NEGATIVE_INTEGER;
+        ATOMIC_TYPES[55] = BuiltInAtomicType.LONG;
+        ATOMIC_TYPES[56] = BuiltInAtomicType.INT;
+        ATOMIC_TYPES[57] = BuiltInAtomicType.SHORT;
+        ATOMIC_TYPES[58] = BuiltInAtomicType.BYTE;
+        ATOMIC_TYPES[59] = BuiltInAtomicType.NON_NEGATIVE_INTEGER;
+        ATOMIC_TYPES[60] = BuiltInAtomicType.UNSIGNED_LONG;
+        ATOMIC_TYPES[61] = BuiltInAtomicType.UNSIGNED_INT;
+        ATOMIC_TYPES[62] = BuiltInAtomicType.UNSIGNED_SHORT;
+        ATOMIC_TYPES[63] = BuiltInAtomicType.UNSIGNED_BYTE;
+        ATOMIC_TYPES[64] = BuiltInAtomicType.POSITIVE_INTEGER;
+        ATOMIC_TYPES[65] = BuiltInAtomicType.DURATION;
+        ATOMIC_TYPES[66] = BuiltInAtomicType.YEAR_MONTH_DURATION;
+        ATOMIC_TYPES[67] = BuiltInAtomicType.DAY_TIME_DURATION;
+        ATOMIC_TYPES[68] = BuiltInAtomicType.DATE_TIME;
+        ATOMIC_TYPES[69] = BuiltInAtomicType.DATE_TIME_STAMP;
+        ATOMIC_TYPES[70] = BuiltInAtomicType.DATE;
+        ATOMIC_TYPES[71] = BuiltInAtomicType.TIME;
+        ATOMIC_TYPES[72] = BuiltInAtomicType.G_YEAR_MONTH;
+        ATOMIC_TYPES[73] = BuiltInAtomicType.G_YEAR;
+        ATOMIC_TYPES[74] = BuiltInAtomicType.G_MONTH_DAY;
+        ATOMIC_TYPES[75] = BuiltInAtomicType.G_DAY;
+        ATOMIC_TYPES[76] = BuiltInAtomicType.G_MONTH;
+        ATOMIC_TYPES[77] = BuiltInAtomicType.BOOLEAN;
+        ATOMIC_TYPES[79] = BuiltInAtomicType.BASE64_BINARY;
+        ATOMIC_TYPES[80] = BuiltInAtomicType.HEX_BINARY;
+        ATOMIC_TYPES[81] = BuiltInAtomicType.ANY_URI;
+    }
+    private static final byte[] WRAPPER_START = "<wrapper>".getBytes(BaseXClient.UTF8);
+    private static final byte[] WRAPPER_END = "</wrapper>".getBytes(BaseXClient.UTF8);
+
+    private final Configuration configuration;
+    private final ParseOptions parseOptions;
+    private final ConversionRules rules;
+    /** Average size of the trees built, learnt from each tree ; initially a small element. */
+    private final Statistics statistics = new Statistics(16, 4, 2, 256);
+
+    ItemFactory(Configuration configuration) {
+        super();
+        this.configuration = configuration;
+        this.parseOptions = new ParseOptions(configuration.getParseOptions());
+        this.rules = configuration.getConversionRules();
+    }
+
+    Configuration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @return The average size of the trees built by this factory
+     */
+    Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Builds the next item of the query. {@link BaseXClient.Query#more()} must have returned <tt>true</tt>.
+     * @param query The query, iterated in full mode
+     * @return The item
+     * @throws IOException If item can not be read
+     * @throws XPathException If item can not be converted
+     */
+    Item build(BaseXClient.Query query) throws IOException, XPathException {
+        int type = query.type();
+        switch(type) {
+            case ELEMENT:
+            case DOCUMENT:
+            case DOCUMENT_ELEMENT:
+                return parse(query.stream());
+            case TEXT:
+            case COMMENT:
+            case PROCESSING_INSTRUCTION:
+                return orphan(parseWrapped(query.stream()).iterateAxis(AxisInfo.CHILD).next());
+            case ATTRIBUTE:
+                return orphan(parseAttribute(query.next(), query.uri()));
+            case QNAME:
+                return atomic(type, query.next(), query.uri());
+            default:
+                return atomic(type, query.next(), null);
+        }
+    }
+
+    /**
+     * Builds an atomic value from its lexical form.
+     * @param type The BaseX type id
+     * @param value The lexical form
+     * @param uri Namespace URI of a QName
+     * @return The value. Functions, maps, arrays, and types Saxon does not know,
+     * are returned as strings.
+     * @throws XPathException If value is not valid
+     */
+    Item atomic(int type, String value, String uri) throws XPathException {
+        switch(type) {
+            case STRING:
+                return new StringValue(value);
+            case UNTYPED_ATOMIC:
+                return new UntypedAtomicValue(value);
+            case QNAME:
+                return qname(value, uri);
+            default:
+                BuiltInAtomicType atomicType = type>=0 && type<ATOMIC_TYPES.length ? ATOMIC_TYPES[type] : null;
+                if(atomicType==null) {
+                    return new StringValue(value);
+                }
+                try {
+                    return atomicType.getStringConverter(rules).convertString(value).asAtomic();
+                } catch(ValidationException ex) {
+                    throw new XPathException(ex);
+                }
+        }
+    }
+
+    /**
+     * Parses an item, while it is read, into a tiny tree.
+     * @param input The item bytes
+     * @return The document node
+     * @throws XPathException If item is not well-formed
+     */
+    NodeInfo parse(InputStream input) throws XPathException {
+        // parse options are copied by Sender, pipeline configuration is not
+        TinyBuilder builder = new TinyBuilder(configuration.makePipelineConfiguration());
+        builder.setStatistics(statistics);
+        Sender.send(new StreamSource(input), builder, parseOptions);
+        return builder.getCurrentRoot();
+    }
+
+    /**
+     * Parses a node that is not a document into a wrapper element.
+     * @param input Node bytes
+     * @return The wrapper element
+     */
+    private NodeInfo parseWrapped(InputStream input) throws XPathException {
+        InputStream wrapped = new SequenceInputStream(
+                new SequenceInputStream(new ByteArrayInputStream(WRAPPER_START), input),
+                new ByteArrayInputStream(WRAPPER_END));
+        return parse(wrapped).iterateAxis(AxisInfo.CHILD).next();
+    }
+
+    /**
+     * Parses a serialized attribute, i.e. <tt>name="value"</tt>.
+     * @param serialized The serialized attribute
+     * @param uri Namespace URI of attribute
+     * @return The attribute node
+     */
+    private NodeInfo parseAttribute(String serialized, String uri) throws XPathException {
+        StringBuilder sb = new StringBuilder("<wrapper ");
+        int colon = serialized.indexOf(':');
+        int equals = serialized.indexOf('=');
+        if(uri!=null && !uri.isEmpty() && colon>0 && colon<equals) {
+            String prefix = serialized.substring(0, colon);
+            if(!"xml".equals(prefix)) {
+                sb.append("xmlns:").append(prefix).append("=\"").append(uri.replace("\"", "&quot;")).append("\" ");
+            }
+        }
+        sb.append(serialized).append("/>");
+        NodeInfo wrapper = parse(new ByteArrayInputStream(sb.toString().getBytes(BaseXClient.UTF8)))
+                .iterateAxis(AxisInfo.CHILD).next();
+        return wrapper.iterateAxis(AxisInfo.ATTRIBUTE).next();
+    }
+
+    /**
+     * Copies a node into a parentless node.
+     */
+    private NodeInfo orphan(NodeInfo node) {
+        Orphan orphan = new Orphan(configuration);
+        if(node==null) {
+            // empty text node has been serialized as an empty string
+            orphan.setNodeKind(Type.TEXT);
+            orphan.setStringValue("");
+            return orphan;
+        }
+        orphan.setNodeKind((short)node.getNodeKind());
+        switch(node.getNodeKind()) {
+            case Type.ATTRIBUTE:
+                orphan.setNodeName(NameOfNode.makeName(node));
+                break;
+            case Type.PROCESSING_INSTRUCTION:
+                orphan.setNodeName(new NoNamespaceName(node.getLocalPart()));
+                break;
+            default:
+        }
+        orphan.setStringValue(node.getStringValueCS());
+        return orphan;
+    }
+
+    private QNameValue qname(String lexical, String uri) {
+        int colon = lexical.indexOf(':');
+        String prefix = colon<0 ? "" : lexical.substring(0, colon);
+        String local = colon<0 ? lexical : lexical.substring(colon+1);
+        return new QNameValue(prefix, uri==null ? "" : uri, local);
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of the latencies of a phase, in microseconds.
+ * Percentiles are upper bounds, exact to a power of two.
+ *
+ * @author Christophe Marchand
+ */
+public class LatencyStatistics {
+    private final long count;
+    private final long mean;
+    private final long median;
+    private final long percentile99;
+    private final long max;
+
+    @ConstructorProperties({"count", "mean", "median", "percentile99", "max"})
+    public LatencyStatistics(long count, long mean, long median, long percentile99, long max) {
+        super();
+        this.count = count;
+        this.mean = mean;
+        this.median = median;
+        this.percentile99 = percentile99;
+        this.max = max;
+    }
+
+    public long getCount() { return count; }
+    public long getMean() { return mean; }
+    public long getMedian() { return median; }
+    public long getPercentile99() { return percentile99; }
+    public long getMax() { return max; }
+
+    @Override
+    public String toString() {
+        return "count="+count+", mean="+mean+"us, median="+median+"us, 99%="+percentile99+"us, max="+max+"us";
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+/**
+ * Settings of a {@link BaseXClientPool}. All limits are per {@link ConnectionKey}.
+ *
+ * Defaults may be overridden with system properties, prefixed by
+ * <tt>top.marchand.xml.extfunctions.basex.pool.</tt> : <tt>minIdle</tt>,
+ * <tt>maxIdle</tt>, <tt>maxTotal</tt>, <tt>idleTimeout</tt> (ms),
+ * <tt>evictionInterval</tt> (ms), <tt>borrowTimeout</tt> (ms),
+ * <tt>validateOnBorrow</tt>, <tt>validationIdleTime</tt> (ms), <tt>connectTimeout</tt> (ms), <tt>ejectionTime</tt> (ms) and
+ * <tt>spillThreshold</tt> (MB).
+ *
+ * @author Christophe Marchand
+ */
+public class PoolConfiguration {
+    public static final String PROPERTY_PREFIX = "top.marchand.xml.extfunctions.basex.pool.";
+
+    private int minIdle = 0;
+    private int maxIdle = 8;
+    private int maxTotal = 16;
+    private long idleTimeout = 60000L;
+    private long evictionInterval = 30000L;
+    private long borrowTimeout = 10000L;
+    private boolean validateOnBorrow = true;
+    private long validationIdleTime = 30000L;
+    private int connectTimeout = 5000;
+    private long ejectionTime = 30000L;
+    private int spillThreshold = 64;
+
+    /**
+     * Minimum number of idle sessions the evictor keeps open.
+     * @return Minimum idle sessions
+     */
+    public int getMinIdle() { return minIdle; }
+    public void setMinIdle(int minIdle) { this.minIdle = minIdle; }
+
+    /**
+     * Maximum number of idle sessions kept. When 0, sessions are closed
+     * as soon as they are released, i.e. pooling is disabled.
+     * @return Maximum idle sessions
+     */
+    public int getMaxIdle() { return maxIdle; }
+    public void setMaxIdle(int maxIdle) { this.maxIdle = maxIdle; }
+
+    /**
+     * Maximum number of sessions, borrowed or idle. A negative value means no limit.
+     * @return Maximum sessions
+     */
+    public int getMaxTotal() { return maxTotal; }
+    public void setMaxTotal(int maxTotal) { this.maxTotal = maxTotal; }
+
+    /**
+     * Time, in milliseconds, after which an idle session may be evicted.
+     * @return Idle timeout
+     */
+    public long getIdleTimeout() { return idleTimeout; }
+    public void setIdleTimeout(long idleTimeout) { this.idleTimeout = idleTimeout; }
+
+    /**
+     * Period, in milliseconds, of the evictor. When 0 or less, no eviction thread is started.
+     * @return Eviction interval
+     */
+    public long getEvictionInterval() { return evictionInterval; }
+    public void setEvictionInterval(long evictionInterval) { this.evictionInterval = evictionInterval; }
+
+    /**
+     * Time, in milliseconds, a borrower waits for a session when <tt>maxTotal</tt> is reached.
+     * @return Borrow timeout
+     */
+    public long getBorrowTimeout() { return borrowTimeout; }
+    public void setBorrowTimeout(long borrowTimeout) { this.borrowTimeout = borrowTimeout; }
+
+    /**
+     * If <tt>true</tt>, a session idle for at least <tt>validationIdleTime</tt> is checked
+     * with a round-trip before being borrowed.
+     * @return Validation flag
+     */
+    public boolean isValidateOnBorrow() { return validateOnBorrow; }
+    public void setValidateOnBorrow(boolean validateOnBorrow) { this.validateOnBorrow = validateOnBorrow; }
+
+    /**
+     * Time, in milliseconds, a session must have been idle to be checked before being
+     * borrowed. Sessions released more recently are borrowed without a round-trip.
+     * @return Validation idle time
+     */
+    public long getValidationIdleTime() { return validationIdleTime; }
+    public void setValidationIdleTime(long validationIdleTime) { this.validationIdleTime = validationIdleTime; }
+
+    /**
+     * Time, in milliseconds, to wait for the server when a session is opened.
+     * @return Connection timeout
+     */
+    public int getConnectTimeout() { return connectTimeout; }
+    public void setConnectTimeout(int connectTimeout) { this.connectTimeout = connectTimeout; }
+
+    /**
+     * Time, in milliseconds, a replica that could not be reached is not chosen
+     * any more, unless all others are also out of use.
+     * @return Ejection time
+     */
+    public long getEjectionTime() { return ejectionTime; }
+    public void setEjectionTime(long ejectionTime) { this.ejectionTime = ejectionTime; }
+
+    /**
+     * Size, in megabytes, of the buffered results of a query kept in memory ; the rest is
+     * written to a temporary file. Results are buffered when a session runs another command
+     * before they have been read. When negative, all results are kept in memory.
+     * @return Spill threshold
+     */
+    public int getSpillThreshold() { return spillThreshold; }
+    public void setSpillThreshold(int spillThreshold) { this.spillThreshold = spillThreshold; }
+
+    /**
+     * Builds a configuration from defaults, overriden by system properties.
+     * @return A new configuration
+     */
+    public static PoolConfiguration fromSystemProperties() {
+        PoolConfiguration config = new PoolConfiguration();
+        config.setMinIdle(Integer.getInteger(PROPERTY_PREFIX+"minIdle", config.getMinIdle()));
+        config.setMaxIdle(Integer.getInteger(PROPERTY_PREFIX+"maxIdle", config.getMaxIdle()));
+        config.setMaxTotal(Integer.getInteger(PROPERTY_PREFIX+"maxTotal", config.getMaxTotal()));
+        config.setIdleTimeout(Long.getLong(PROPERTY_PREFIX+"idleTimeout", config.getIdleTimeout()));
+        config.setEvictionInterval(Long.getLong(PROPERTY_PREFIX+"evictionInterval", config.getEvictionInterval()));
+        config.setBorrowTimeout(Long.getLong(PROPERTY_PREFIX+"borrowTimeout", config.getBorrowTimeout()));
+        config.setValidationIdleTime(Long.getLong(PROPERTY_PREFIX+"validationIdleTime", config.getValidationIdleTime()));
+        config.setConnectTimeout(Integer.getInteger(PROPERTY_PREFIX+"connectTimeout", config.getConnectTimeout()));
+        config.setEjectionTime(Long.getLong(PROPERTY_PREFIX+"ejectionTime", config.getEjectionTime()));
+        config.setSpillThreshold(Integer.getInteger(PROPERTY_PREFIX+"spillThreshold", config.getSpillThreshold()));
+        String validate = System.getProperty(PROPERTY_PREFIX+"validateOnBorrow");
+        if(validate!=null) config.setValidateOnBorrow(Boolean.parseBoolean(validate));
+        return config;
+    }
+}
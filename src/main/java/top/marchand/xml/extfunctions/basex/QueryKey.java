@@ -0,0 +1,59 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.util.Objects;
+import net.sf.saxon.Configuration;
+
+/**
+ * Identifies the result of a query call : calls with equal keys return the same result.
+ * Configuration is compared by identity, since nodes can only be shared by
+ * transformations of the same configuration.
+ *
+ * @author Christophe Marchand
+ */
+final class QueryKey {
+    private final Configuration configuration;
+    private final ConnectionKey connection;
+    private final String query;
+    private final String bindings;
+    private final int hash;
+
+    /**
+     * @param configuration The configuration result items are built for
+     * @param connection The server account
+     * @param query The query text
+     * @param bindings Canonical form of the bound variables
+     * @see Bindings#key(net.sf.saxon.ma.map.MapItem)
+     */
+    QueryKey(Configuration configuration, ConnectionKey connection, String query, String bindings) {
+        this.configuration = configuration;
+        this.connection = connection;
+        this.query = query;
+        this.bindings = bindings;
+        this.hash = Objects.hash(System.identityHashCode(configuration), connection, query, bindings);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this==o) return true;
+        if(!(o instanceof QueryKey)) return false;
+        QueryKey other = (QueryKey)o;
+        return configuration==other.configuration && hash==other.hash && connection.equals(other.connection)
+                && query.equals(other.query) && bindings.equals(other.bindings);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return connection+": "+query;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+/**
+ * Notified of the phases of sessions and queries, with their duration.
+ * Calls are made by the threads that run the queries : implementations must be
+ * thread-safe, and fast. Times are in nanoseconds.
+ *
+ * @see BaseXMetrics
+ * @see BaseXClientPool#setListener(QueryListener)
+ * @author Christophe Marchand
+ */
+public interface QueryListener {
+
+    /**
+     * A new session has been opened.
+     * @param key The server account
+     * @param connectTime Time to open the connection
+     * @param authenticateTime Time to authenticate
+     */
+    void connected(ConnectionKey key, long connectTime, long authenticateTime);
+
+    /**
+     * A query has been prepared : parsed by the server, or taken from the prepared queries of the session.
+     * @param key The server account
+     * @param prepareTime Time to prepare the query
+     */
+    void prepared(ConnectionKey key, long prepareTime);
+
+    /**
+     * The first byte of results has been received. It includes the time the server spent
+     * to compile the query and compute the first item.
+     * @param key The server account
+     * @param firstByteTime Time between the request of results and the first byte
+     */
+    void firstByte(ConnectionKey key, long firstByteTime);
+
+    /**
+     * Results have been read to the end, or abandoned, and the session has been given back.
+     * @param key The server account
+     * @param items Number of items built
+     * @param bytes Number of bytes received while items were read
+     * @param parseTime Time spent to read and build the items
+     * @param closeTime Time spent to close the query and give the session back
+     */
+    void finished(ConnectionKey key, long items, long bytes, long parseTime, long closeTime);
+
+    /**
+     * A session could not be opened, or a query failed.
+     * @param key The server account
+     * @param ex The error
+     */
+    void failed(ConnectionKey key, Exception ex);
+}
@@ -0,0 +1,155 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * Rewrites a query so that its result is read by pages : the body of the query is
+ * wrapped in <tt>subsequence(..., $start, $length)</tt>, and the query is run again,
+ * with the next start, each time a full page has been read.
+ *
+ * The body is found after the declarations of the prolog. A semicolon in the content
+ * of an element constructor of the prolog, i.e. <tt>&lt;a&gt;;&lt;/a&gt;</tt>, can not
+ * be told from the end of a declaration. Only read queries may be paged.
+ *
+ * @author Christophe Marchand
+ */
+final class QueryPages {
+    /** Variable bound to the position of the first item of a page. */
+    static final String START = "Q{"+BaseXQuery.EXT_NAMESPACE_URI+"}page-start";
+    /** Variable bound to the size of a page. */
+    static final String LENGTH = "Q{"+BaseXQuery.EXT_NAMESPACE_URI+"}page-length";
+
+    private QueryPages() {
+        super();
+    }
+
+    /**
+     * @param query The query
+     * @return The query that returns a page of the result
+     * @throws XPathException If the query is a library module, or its prolog is not terminated
+     */
+    static String wrap(String query) throws XPathException {
+        int body = bodyStart(query);
+        StringBuilder sb = new StringBuilder(query.length()+200);
+        sb.append(query, 0, body)
+                .append("\ndeclare variable $").append(START).append(" as xs:integer external;")
+                .append("\ndeclare variable $").append(LENGTH).append(" as xs:integer external;")
+                .append("\nsubsequence((\n").append(query, body, query.length())
+                .append("\n), $").append(START).append(", $").append(LENGTH).append(")");
+        return sb.toString();
+    }
+
+    /**
+     * @param query The query
+     * @return The position of the body of the query, after the prolog
+     * @throws XPathException If the query is a library module, or its prolog is not terminated
+     */
+    static int bodyStart(String query) throws XPathException {
+        int pos = 0;
+        while(true) {
+            pos = skipSpaces(query, pos);
+            if(startsWith(query, pos, "module", "namespace")) {
+                throw new XPathException("a library module can not be paged");
+            }
+            if(!startsWith(query, pos, "xquery", "version", "encoding")
+                    && !startsWith(query, pos, "import", "module", "schema")
+                    && !startsWith(query, pos, "declare", "default", "boundary-space", "base-uri",
+                            "construction", "ordering", "copy-namespaces", "decimal-format", "namespace",
+                            "option", "context", "variable", "function", "updating", "%", "revalidation", "ft-option")) {
+                return pos;
+            }
+            pos = declarationEnd(query, pos);
+        }
+    }
+
+    /**
+     * @return The position after the semicolon that ends the declaration
+     */
+    private static int declarationEnd(String query, int pos) throws XPathException {
+        int depth = 0;
+        while(pos<query.length()) {
+            char c = query.charAt(pos);
+            if(c=='(' && pos+1<query.length() && query.charAt(pos+1)==':') {
+                pos = commentEnd(query, pos);
+                continue;
+            }
+            if(c=='"' || c=='\'') {
+                // doubled delimiters are escaped delimiters, read as two literals
+                int end = query.indexOf(c, pos+1);
+                if(end<0) break;
+                pos = end+1;
+                continue;
+            }
+            if(c=='(' || c=='{' || c=='[') {
+                depth++;
+            } else if(c==')' || c=='}' || c==']') {
+                depth--;
+            } else if(c==';' && depth==0) {
+                return pos+1;
+            }
+            pos++;
+        }
+        throw new XPathException("query can not be paged, the end of its prolog is not found");
+    }
+
+    private static int skipSpaces(String query, int pos) throws XPathException {
+        while(pos<query.length()) {
+            char c = query.charAt(pos);
+            if(Character.isWhitespace(c)) {
+                pos++;
+            } else if(c=='(' && pos+1<query.length() && query.charAt(pos+1)==':') {
+                pos = commentEnd(query, pos);
+            } else {
+                break;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * @return The position after the comment, which may contain other comments
+     */
+    private static int commentEnd(String query, int pos) throws XPathException {
+        int depth = 0;
+        while(pos+1<query.length()) {
+            if(query.charAt(pos)=='(' && query.charAt(pos+1)==':') {
+                depth++;
+                pos += 2;
+            } else if(query.charAt(pos)==':' && query.charAt(pos+1)==')') {
+                depth--;
+                pos += 2;
+                if(depth==0) return pos;
+            } else {
+                pos++;
+            }
+        }
+        throw new XPathException("query can not be paged, a comment is not terminated");
+    }
+
+    /**
+     * @return <tt>true</tt> if the query has the keyword at this position, followed by one of the next keywords
+     */
+    private static boolean startsWith(String query, int pos, String keyword, String... next) throws XPathException {
+        if(!query.startsWith(keyword, pos)) return false;
+        int after = pos+keyword.length();
+        if(after==query.length() || !Character.isWhitespace(query.charAt(after)) && query.charAt(after)!='(') return false;
+        after = skipSpaces(query, after);
+        for(String n: next) {
+            if(query.startsWith(n, after)) {
+                int end = after+n.length();
+                if(n.equals("%") || end==query.length() || !isNameChar(query.charAt(end))) return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c=='-' || c=='_' || c=='.' || c==':';
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sf.saxon.ma.map.MapItem;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.trans.XPathException;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * Reads the items of a query, and counts and times them for a {@link QueryListener}
+ * and a {@link SlowQueryLog}, and the latency of the server for a {@link ServerHealth}. Phases are reported once per query, not once per item.
+ * Does nothing more than reading if there is no listener and no log.
+ * A query rewritten by {@link QueryPages} is read by pages : the next page is only
+ * requested when all items of the previous one have been read.
+ *
+ * @author Christophe Marchand
+ */
+class QueryRecorder {
+    private final QueryListener listener;
+    private final ConnectionKey key;
+    private final BaseXClient session;
+    private final BaseXClient.Query query;
+    private final ItemFactory factory;
+    private final long received;
+    private boolean measuring;
+    private boolean started = false;
+    private boolean reported = false;
+    private long items = 0;
+    private long parseTime = 0;
+    private long itemStart;
+    private SlowQueryLog slowLog;
+    private String text;
+    private MapItem bindings;
+    /** Time spent in the call, then until the first item, in nanoseconds. */
+    private long callTime;
+    private String info;
+    private ServerHealth health;
+    private long pageSize = 0;
+    private long pageStart = 1;
+    private long pageItems = 0;
+    private MapItem pageBindings;
+    /** Bytes received when the query has been detached from the session, or -1. */
+    private long detachedBytes = -1;
+
+    /**
+     * @param listener The listener, may be <tt>null</tt>
+     * @param key The server account
+     * @param session The session
+     * @param query The query
+     * @param factory Builds the items
+     */
+    QueryRecorder(QueryListener listener, ConnectionKey key, BaseXClient session, BaseXClient.Query query, ItemFactory factory) {
+        super();
+        this.listener = listener;
+        this.key = key;
+        this.session = session;
+        this.query = query;
+        this.factory = factory;
+        this.received = session.received();
+        this.measuring = listener!=null;
+    }
+
+    /**
+     * Logs the query if it is slow. Must be called before reading the first item.
+     * @param slowLog The log, may be <tt>null</tt>
+     * @param text The query text
+     * @param bindings The bound variables, may be <tt>null</tt>
+     * @param callTime Time spent in the function call, in nanoseconds
+     */
+    void logIfSlow(SlowQueryLog slowLog, String text, MapItem bindings, long callTime) {
+        if(slowLog==null) return;
+        this.slowLog = slowLog;
+        this.text = text;
+        this.bindings = bindings;
+        this.callTime = callTime;
+        this.measuring = true;
+    }
+
+    /**
+     * Records the time to the first item as the latency of the server.
+     * Must be called before reading the first item.
+     * @param health The health of the servers
+     */
+    void measureLatency(ServerHealth health) {
+        this.health = health;
+        this.measuring = true;
+    }
+
+    /**
+     * Reads the query by pages, and binds the first page. The server forgets bound
+     * variables once a query has run : they are bound again for each page.
+     * Must be called before reading the first item.
+     * @param pageSize Number of items per page
+     * @param bindings The variables of the query, may be <tt>null</tt>
+     * @throws IOException If server fails
+     * @see QueryPages#wrap(String)
+     */
+    void paginate(long pageSize, MapItem bindings) throws IOException {
+        this.pageSize = pageSize;
+        this.pageBindings = bindings;
+        query.bind(QueryPages.LENGTH, Long.toString(pageSize), "xs:integer");
+        query.bind(QueryPages.START, "1", "xs:integer");
+    }
+
+    /**
+     * @return <tt>true</tt> if there is another item
+     * @throws IOException If server fails
+     * @see BaseXClient.Query#more()
+     */
+    boolean more() throws IOException {
+        if(!measuring) return pageSize>0 ? nextPage() : query.more();
+        long start = System.nanoTime();
+        boolean more = pageSize>0 ? nextPage() : query.more();
+        itemStart = System.nanoTime();
+        if(started) {
+            parseTime += itemStart-start;
+        } else {
+            started = true;
+            callTime += itemStart-start;
+            long firstByte = query.firstByteTime();
+            if(firstByte>=0 && listener!=null) listener.firstByte(key, firstByte);
+            if(firstByte>=0 && health!=null) health.latency(key, firstByte);
+        }
+        return more;
+    }
+
+    /**
+     * @return <tt>true</tt> if the query is read by pages
+     */
+    boolean isPaged() {
+        return pageSize>0;
+    }
+
+    /**
+     * Reads all remaining results in the buffer of the query, and closes it on the server.
+     * The query must not be paged.
+     * @return The number of remaining items
+     * @throws IOException If server fails
+     * @see BaseXClient.Query#detach()
+     */
+    int detach() throws IOException {
+        int remaining = query.detach();
+        detachedBytes = session.received()-received;
+        return remaining;
+    }
+
+    private boolean nextPage() throws IOException {
+        if(query.more()) return true;
+        if(pageItems<pageSize) return false;
+        pageStart += pageSize;
+        pageItems = 0;
+        if(pageBindings!=null) {
+            try {
+                Bindings.bind(query, pageBindings, factory.getConfiguration());
+            } catch(XPathException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+        query.bind(QueryPages.LENGTH, Long.toString(pageSize), "xs:integer");
+        query.bind(QueryPages.START, Long.toString(pageStart), "xs:integer");
+        return query.more();
+    }
+
+    /**
+     * Builds the next item. {@link #more()} must have returned <tt>true</tt>.
+     * @return The item
+     * @throws IOException If item can not be read
+     * @throws XPathException If item can not be converted
+     */
+    Item build() throws IOException, XPathException {
+        pageItems++;
+        if(!measuring) return factory.build(query);
+        Item item = factory.build(query);
+        parseTime += System.nanoTime()-itemStart;
+        items++;
+        return item;
+    }
+
+    /**
+     * Asks the server how long a slow query took. Must be called after the last item
+     * has been read, and before the query is released.
+     */
+    void beforeRelease() {
+        if(slowLog==null || !slowLog.isSlow(callTime+parseTime) || query.isStreaming() || detachedBytes>=0) return;
+        try {
+            info = query.info();
+        } catch(IOException ex) {
+            Logger.getLogger(QueryRecorder.class.getName()).log(Level.FINE, "while reading query info on "+key, ex);
+        }
+    }
+
+    /**
+     * Reports the end of the query.
+     * @param closeStart When closing started, as given by {@link System#nanoTime()}
+     */
+    void finished(long closeStart) {
+        if(!measuring || reported) return;
+        reported = true;
+        long bytes = detachedBytes>=0 ? detachedBytes : session.received()-received;
+        if(listener!=null) {
+            listener.finished(key, items, bytes, parseTime, System.nanoTime()-closeStart);
+        }
+        if(slowLog!=null && slowLog.isSlow(callTime+parseTime)) {
+            slowLog.log(key, text, bindings, callTime+parseTime, items, bytes, info);
+        }
+    }
+
+    /**
+     * Reports a failure of the query.
+     * @param ex The error
+     */
+    void failed(Exception ex) {
+        if(listener==null || reported) return;
+        reported = true;
+        listener.failed(key, ex);
+    }
+}
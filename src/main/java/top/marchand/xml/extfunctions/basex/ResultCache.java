@@ -0,0 +1,310 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import net.sf.saxon.expr.LastPositionFinder;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.LazySequence;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.GroundedIterator;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+import net.sf.saxon.value.SequenceExtent;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * An in-process cache of query results, for read-only queries that are run again
+ * and again with the same bindings, i.e. lookups in code lists or reference data.
+ *
+ * Results are keyed by Saxon configuration, server account, query text and bound
+ * variables. Documents are kept as the tiny trees built for the first call, and
+ * shared by all transformations of the same configuration. Updating queries, and
+ * results that are not read to the end, are never cached.
+ *
+ * The cache is bounded by an estimated weight, in bytes : least recently used results
+ * are evicted first. Results expire after a time to live. An {@link Invalidator} may
+ * also be set, which tells, with one round trip, if data has changed since a result
+ * has been cached, i.e. {@link #databaseTimestamps(String...)} : it is asked before
+ * the query is prepared, so that a cached result costs nothing else.
+ *
+ * It may be configured with system properties, prefixed by
+ * <tt>top.marchand.xml.extfunctions.basex.cache.</tt> : <tt>maxWeight</tt> (bytes,
+ * cache is disabled if not set), <tt>ttl</tt> (ms, defaults to 5 minutes), and
+ * <tt>databases</tt>, a comma-separated list of databases whose modification
+ * timestamps invalidate the cache.
+ * This class is thread-safe.
+ *
+ * @author Christophe Marchand
+ */
+public class ResultCache {
+    public static final String PROPERTY_PREFIX = "top.marchand.xml.extfunctions.basex.cache.";
+
+    private final long maxWeight;
+    private final long ttl;
+    private volatile Invalidator invalidator;
+    /** Least recently used first. */
+    private final LinkedHashMap<QueryKey,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxWeight Maximum estimated weight of cached results, in bytes
+     * @param ttl Time to live of a result, in milliseconds. When 0 or less, results do not expire.
+     */
+    public ResultCache(long maxWeight, long ttl) {
+        super();
+        this.maxWeight = maxWeight;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Tells if data has changed on a server.
+     */
+    public interface Invalidator {
+        /**
+         * Returns a token that changes each time data used by cached queries changes.
+         * @param session A session on the server
+         * @return The version of data
+         * @throws IOException If server fails
+         */
+        String getVersion(BaseXClient session) throws IOException;
+    }
+
+    /**
+     * Builds an invalidator based on the last modification time of some databases.
+     * @param databases Database names
+     * @return The invalidator
+     */
+    public static Invalidator databaseTimestamps(String... databases) {
+        final StringBuilder sb = new StringBuilder("string-join((");
+        for(int i=0;i<databases.length;i++) {
+            if(i>0) sb.append(", ");
+            sb.append("db:property('").append(databases[i].trim().replace("'", "''")).append("', 'timestamp')");
+        }
+        sb.append("), ' ')");
+        final String query = sb.toString();
+        return new Invalidator() {
+            @Override
+            public String getVersion(BaseXClient session) throws IOException {
+                // a single command, instead of preparing, reading and closing a query
+                return session.execute("XQUERY "+query);
+            }
+        };
+    }
+
+    /**
+     * Builds a cache from system properties.
+     * @return The cache, or <tt>null</tt> if no <tt>maxWeight</tt> is set
+     */
+    public static ResultCache fromSystemProperties() {
+        long maxWeight = Long.getLong(PROPERTY_PREFIX+"maxWeight", 0L);
+        if(maxWeight<=0) return null;
+        ResultCache cache = new ResultCache(maxWeight, Long.getLong(PROPERTY_PREFIX+"ttl", 300000L));
+        String databases = System.getProperty(PROPERTY_PREFIX+"databases");
+        if(databases!=null && !databases.trim().isEmpty()) {
+            cache.setInvalidator(databaseTimestamps(databases.split(",")));
+        }
+        return cache;
+    }
+
+    public Invalidator getInvalidator() { return invalidator; }
+    public void setInvalidator(Invalidator invalidator) { this.invalidator = invalidator; }
+
+    public long getMaxWeight() { return maxWeight; }
+    public long getTtl() { return ttl; }
+
+    public synchronized long getWeight() { return weight; }
+    public synchronized int size() { return entries.size(); }
+    public synchronized long getHitCount() { return hits; }
+    public synchronized long getMissCount() { return misses; }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * Returns the current version of data, if an invalidator is set.
+     * @param session A session on the server
+     * @return The version, or <tt>null</tt>
+     * @throws IOException If server fails
+     */
+    String getVersion(BaseXClient session) throws IOException {
+        Invalidator inv = invalidator;
+        return inv==null ? null : inv.getVersion(session);
+    }
+
+    /**
+     * @param key The result key
+     * @param version The current version of data
+     * @return The cached result, or <tt>null</tt>
+     */
+    synchronized GroundedValue get(QueryKey key, String version) {
+        Entry entry = entries.get(key);
+        if(entry!=null && (entry.expires<System.currentTimeMillis() || !Objects.equals(entry.version, version))) {
+            entries.remove(key);
+            weight -= entry.weight;
+            entry = null;
+        }
+        if(entry==null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    synchronized void put(QueryKey key, GroundedValue value, long valueWeight, String version) {
+        if(valueWeight>maxWeight) return;
+        long expires = ttl>0 ? System.currentTimeMillis()+ttl : Long.MAX_VALUE;
+        Entry old = entries.put(key, new Entry(value, valueWeight, version, expires));
+        if(old!=null) weight -= old.weight;
+        weight += valueWeight;
+        Iterator<Entry> it = entries.values().iterator();
+        while(weight>maxWeight && it.hasNext()) {
+            weight -= it.next().weight;
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns a sequence that puts the result in the cache once it has been read to the end.
+     * @param result The result, as read from the server
+     * @param key The result key
+     * @param version The version of data, before query has been run
+     * @return The sequence to return to the caller
+     * @throws XPathException If the result can not be read
+     */
+    Sequence cacheWhenRead(Sequence result, QueryKey key, String version) throws XPathException {
+        return new LazySequence(new CachingIterator(result.iterate(), key, version));
+    }
+
+    /**
+     * Estimates the memory used by an item, in bytes.
+     * @param item The item
+     * @return Estimated weight
+     */
+    static long weight(Item item) {
+        if(item instanceof TinyNodeImpl) {
+            TinyTree tree = ((TinyNodeImpl)item).getTree();
+            // node arrays, and characters
+            return 32L*(tree.getNumberOfNodes()+tree.getNumberOfAttributes())+2L*tree.getCharacterBuffer().length();
+        }
+        try {
+            return 16L+2L*item.getStringValueCS().length();
+        } catch(RuntimeException ex) {
+            // i.e. functions
+            return 64L;
+        }
+    }
+
+    private static final class Entry {
+        private final GroundedValue value;
+        private final long weight;
+        private final String version;
+        private final long expires;
+
+        Entry(GroundedValue value, long weight, String version, long expires) {
+            this.value = value;
+            this.weight = weight;
+            this.version = version;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Keeps the items while they are read, up to the maximum weight, and caches them
+     * when the end is reached. The length and grounding properties of the wrapped
+     * iterator are kept, so that <tt>count()</tt> or <tt>last()</tt> do not build the items.
+     */
+    private class CachingIterator implements SequenceIterator, LastPositionFinder, GroundedIterator {
+        private final SequenceIterator base;
+        private final QueryKey key;
+        private final String version;
+        private List<Item> items = new ArrayList<>();
+        private long itemsWeight = 0;
+
+        CachingIterator(SequenceIterator base, QueryKey key, String version) {
+            this.base = base;
+            this.key = key;
+            this.version = version;
+        }
+
+        @Override
+        public Item next() throws XPathException {
+            Item item = base.next();
+            if(items==null) return item;
+            if(item==null) {
+                put(key, new SequenceExtent(items), itemsWeight, version);
+                items = null;
+                return null;
+            }
+            add(item);
+            return item;
+        }
+
+        private void add(Item item) {
+            itemsWeight += weight(item);
+            if(itemsWeight>maxWeight) {
+                // too large to be cached
+                items = null;
+            } else {
+                items.add(item);
+            }
+        }
+
+        @Override
+        public int getLength() throws XPathException {
+            return ((LastPositionFinder)base).getLength();
+        }
+
+        @Override
+        public GroundedValue materialize() throws XPathException {
+            return cache(((GroundedIterator)base).materialize());
+        }
+
+        @Override
+        public GroundedValue getResidue() throws XPathException {
+            return cache(((GroundedIterator)base).getResidue());
+        }
+
+        /**
+         * Caches the items read so far followed by the remaining ones.
+         */
+        private GroundedValue cache(GroundedValue rest) {
+            for(int i=0; items!=null && i<rest.getLength(); i++) {
+                add(rest.itemAt(i));
+            }
+            if(items!=null) {
+                put(key, new SequenceExtent(items), itemsWeight, version);
+                items = null;
+            }
+            return rest;
+        }
+
+        @Override
+        public void close() {
+            items = null;
+            base.close();
+        }
+
+        @Override
+        public int getProperties() {
+            return base.getProperties() & (LAST_POSITION_FINDER | GROUNDED);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Health of the servers of a pool, learnt from the queries they run, and used to
+ * choose the server of a query among a primary server and its replicas.
+ *
+ * A server that can not be reached is ejected for some time : it is not chosen
+ * any more, unless all the others are also ejected. The latency of a server is
+ * a moving average of the time it takes to send the first item of a query.
+ * Updates may race : an average may miss a measure, which does not matter for routing.
+ * This class is thread-safe.
+ *
+ * @author Christophe Marchand
+ */
+final class ServerHealth {
+    /** Weight of a new latency measure in the average. */
+    private static final double WEIGHT = 0.2;
+
+    private final long ejectionTime;
+    private final ConcurrentHashMap<ConnectionKey,State> states = new ConcurrentHashMap<>();
+
+    /**
+     * @param ejectionTime Time, in milliseconds, a failing server is ejected
+     */
+    ServerHealth(long ejectionTime) {
+        super();
+        this.ejectionTime = ejectionTime*1000000L;
+    }
+
+    /**
+     * Ejects a server that could not be reached.
+     * @param key The server account
+     */
+    void failed(ConnectionKey key) {
+        State state = getState(key);
+        state.ejectedAt = System.nanoTime();
+        state.ejected = true;
+    }
+
+    /**
+     * Records the latency of a server.
+     * @param key The server account
+     * @param nanos Time to the first item of a query, in nanoseconds
+     */
+    void latency(ConnectionKey key, long nanos) {
+        State state = getState(key);
+        state.latency = state.latency<0 ? nanos : state.latency+WEIGHT*(nanos-state.latency);
+    }
+
+    /**
+     * @param key The server account
+     * @return <tt>true</tt> if this server is ejected
+     */
+    boolean isEjected(ConnectionKey key) {
+        State state = states.get(key);
+        return state!=null && state.isEjected(System.nanoTime(), ejectionTime);
+    }
+
+    /**
+     * @param key The server account
+     * @return The average latency of this server, in nanoseconds, or -1 if it is unknown
+     */
+    double getLatency(ConnectionKey key) {
+        State state = states.get(key);
+        return state==null ? -1 : state.latency;
+    }
+
+    /**
+     * Chooses the server of a query. Servers that are not ejected come first ; among
+     * them, the one with the fewest borrowed sessions, or with the lowest latency.
+     * Servers whose latency is unknown are tried first, so that it is measured.
+     * @param servers The candidate servers
+     * @param excluded The servers that already failed for this query
+     * @param byLatency <tt>true</tt> to choose by latency only
+     * @param pool The pool, which counts borrowed sessions
+     * @return The server, or <tt>null</tt> if all servers are excluded
+     */
+    ConnectionKey choose(List<ConnectionKey> servers, List<ConnectionKey> excluded, boolean byLatency, BaseXClientPool pool) {
+        long now = System.nanoTime();
+        ConnectionKey best = null;
+        boolean bestEjected = true;
+        long bestCount = 0;
+        double bestLatency = 0;
+        for(ConnectionKey key: servers) {
+            if(excluded.contains(key)) continue;
+            State state = states.get(key);
+            boolean ejected = state!=null && state.isEjected(now, ejectionTime);
+            long count = byLatency ? 0 : pool.getActiveCount(key);
+            double latency = state==null ? -1 : state.latency;
+            boolean better;
+            if(best==null || ejected!=bestEjected) {
+                better = best==null || !ejected;
+            } else if(count!=bestCount) {
+                better = count<bestCount;
+            } else {
+                better = latency<bestLatency;
+            }
+            if(better) {
+                best = key;
+                bestEjected = ejected;
+                bestCount = count;
+                bestLatency = latency;
+            }
+        }
+        return best;
+    }
+
+    private State getState(ConnectionKey key) {
+        State state = states.get(key);
+        if(state==null) {
+            state = new State();
+            State other = states.putIfAbsent(key, state);
+            if(other!=null) state = other;
+        }
+        return state;
+    }
+
+    private static final class State {
+        volatile boolean ejected;
+        volatile long ejectedAt;
+        volatile double latency = -1;
+
+        boolean isEjected(long now, long ejectionTime) {
+            return ejected && now-ejectedAt<ejectionTime;
+        }
+    }
+}
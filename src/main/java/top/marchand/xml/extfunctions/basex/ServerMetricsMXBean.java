@@ -0,0 +1,54 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+/**
+ * Metrics of one BaseX server, exposed with JMX as
+ * <tt>top.marchand.xml.extfunctions.basex:type=ServerMetrics,server="host:port"</tt>.
+ *
+ * @author Christophe Marchand
+ */
+public interface ServerMetricsMXBean {
+
+    /** @return <tt>host:port</tt> */
+    String getServer();
+
+    /** @return Latencies to open a connection */
+    LatencyStatistics getConnect();
+
+    /** @return Latencies to authenticate */
+    LatencyStatistics getAuthenticate();
+
+    /** @return Latencies to prepare a query */
+    LatencyStatistics getPrepare();
+
+    /** @return Latencies between the request of results and the first byte */
+    LatencyStatistics getFirstByte();
+
+    /** @return Time spent to read and build the items of a query */
+    LatencyStatistics getParse();
+
+    /** @return Latencies to close a query and give its session back */
+    LatencyStatistics getClose();
+
+    /** @return Number of queries whose results have been read */
+    long getQueryCount();
+
+    /** @return Number of items built */
+    long getItemCount();
+
+    /** @return Number of bytes received while items were read */
+    long getBytesReceived();
+
+    /** @return Number of sessions that could not be opened, and of queries that failed */
+    long getFailureCount();
+
+    /**
+     * Resets all counters and latencies.
+     */
+    void reset();
+}
@@ -0,0 +1,47 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * Where a query call gets its session from, and gives it back to.
+ *
+ * @author Christophe Marchand
+ */
+interface SessionSource {
+
+    /**
+     * @param key The server account
+     * @return An authenticated session
+     * @throws IOException If no session can be obtained
+     */
+    BaseXClient borrow(ConnectionKey key) throws IOException;
+
+    /**
+     * Gives back a session, once its query has been read to the end or closed.
+     * @param key The key session has been borrowed with
+     * @param session The session
+     */
+    void release(ConnectionKey key, BaseXClient session);
+
+    /**
+     * Gives back a session whose query is still streaming its results.
+     * @param key The key session has been borrowed with
+     * @param session The session
+     * @param query The query that has not been read to the end
+     */
+    void abandon(ConnectionKey key, BaseXClient session, BaseXClient.Query query);
+
+    /**
+     * Gives back a session that is in an unknown state, after an I/O error.
+     * @param key The key session has been borrowed with
+     * @param session The session
+     */
+    void invalidate(ConnectionKey key, BaseXClient session);
+}
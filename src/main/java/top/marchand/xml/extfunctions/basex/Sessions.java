@@ -0,0 +1,62 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.basex.examples.api.BaseXClient;
+
+/**
+ * Gives sessions back after an error. An error reported by the server, i.e. a query
+ * that can not be parsed or fails while it runs, leaves the session in a clean state :
+ * its queries are closed, and it is released. Other errors leave it in an unknown
+ * state, and it is invalidated : a shared session is then closed for all the results
+ * read from it.
+ *
+ * @author Christophe Marchand
+ */
+final class Sessions {
+    private static final Logger LOGGER = Logger.getLogger(Sessions.class.getName());
+
+    private Sessions() {
+        super();
+    }
+
+    /**
+     * @param source Where the session has been borrowed from
+     * @param key The key session has been borrowed with
+     * @param session The session
+     * @param cause The error
+     * @param queries The queries of the session that are still open, may contain <tt>null</tt>
+     */
+    static void failed(SessionSource source, ConnectionKey key, BaseXClient session, Throwable cause, BaseXClient.Query... queries) {
+        if(isServerError(cause)) {
+            try {
+                for(BaseXClient.Query query: queries) {
+                    if(query!=null) query.close();
+                }
+                source.release(key, session);
+                return;
+            } catch(IOException ex) {
+                LOGGER.log(Level.FINE, "while closing BaseX query on "+key, ex);
+            }
+        }
+        source.invalidate(key, session);
+    }
+
+    /**
+     * @param ex An error
+     * @return <tt>true</tt> if the error, or one of its causes, has been reported by the server
+     */
+    static boolean isServerError(Throwable ex) {
+        for(Throwable t = ex; t!=null; t = t.getCause()) {
+            if(t instanceof BaseXClient.ServerException) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.LazySequence;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.SequenceExtent;
+
+/**
+ * The queries that are running : when the same read-only query, with the same
+ * bindings, is called on the same server account while it is already running, the
+ * later calls wait for the first one and share its result, instead of running it again.
+ *
+ * The first call reads its result as soon as the query is run, up to a maximum
+ * weight, so that waiting calls do not depend on how fast it is processed. Results
+ * that are heavier are streamed as usual, and waiting calls then run the query
+ * themselves. Nothing is kept once the query has returned : see {@link ResultCache}
+ * for that.
+ *
+ * It may be enabled with system property
+ * <tt>top.marchand.xml.extfunctions.basex.singleFlight.maxWeight</tt> (bytes).
+ * This class is thread-safe.
+ *
+ * @author Christophe Marchand
+ */
+public class SingleFlight {
+    public static final String PROPERTY_PREFIX = "top.marchand.xml.extfunctions.basex.singleFlight.";
+
+    private final long maxWeight;
+    private final ConcurrentHashMap<QueryKey,Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * @param maxWeight Maximum estimated weight of a shared result, in bytes
+     */
+    public SingleFlight(long maxWeight) {
+        super();
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Builds the registry from system properties.
+     * @return The registry, or <tt>null</tt> if no <tt>maxWeight</tt> is set
+     */
+    public static SingleFlight fromSystemProperties() {
+        long maxWeight = Long.getLong(PROPERTY_PREFIX+"maxWeight", 0L);
+        return maxWeight>0 ? new SingleFlight(maxWeight) : null;
+    }
+
+    public long getMaxWeight() { return maxWeight; }
+
+    /**
+     * @return The number of calls that have been given the result of another one
+     */
+    public long getSharedCount() { return shared.get(); }
+
+    /**
+     * @return The number of queries running
+     */
+    public int size() { return flights.size(); }
+
+    /**
+     * Registers a query that is about to run.
+     * @param key The query key
+     * @param flight The flight of the caller
+     * @return <tt>null</tt> if the caller must run the query, and then call {@link #land(QueryKey, Flight, GroundedValue)},
+     * or the flight of the call that is already running it
+     */
+    Flight takeOff(QueryKey key, Flight flight) {
+        return flights.putIfAbsent(key, flight);
+    }
+
+    /**
+     * Ends a flight, and wakes up the calls that wait for it.
+     * @param key The query key
+     * @param flight The flight registered by {@link #takeOff(QueryKey, Flight)}
+     * @param result The whole result, or <tt>null</tt> if it can not be shared
+     */
+    void land(QueryKey key, Flight flight, GroundedValue result) {
+        flights.remove(key, flight);
+        flight.result = result;
+        flight.landed.countDown();
+    }
+
+    /**
+     * Waits for another call to end.
+     * @param flight The flight of the running call
+     * @return Its result, or <tt>null</tt> if the caller must run the query itself
+     * @throws XPathException If interrupted
+     */
+    GroundedValue await(Flight flight) throws XPathException {
+        try {
+            flight.landed.await();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted while waiting for the same BaseX query");
+        }
+        GroundedValue result = flight.result;
+        if(result!=null) shared.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Reads the result, up to the maximum weight.
+     * @param result The result, as read from the server
+     * @return The whole result, as a {@link GroundedValue}, or a sequence that
+     * returns the items read, then the remaining ones
+     * @throws XPathException If the result can not be read
+     */
+    Sequence readAhead(Sequence result) throws XPathException {
+        SequenceIterator it = result.iterate();
+        List<Item> items = new ArrayList<>();
+        long weight = 0;
+        try {
+            for(Item item = it.next(); item!=null; item = it.next()) {
+                items.add(item);
+                weight += ResultCache.weight(item);
+                if(weight>maxWeight) {
+                    return new LazySequence(new ReadAheadIterator(items, it));
+                }
+            }
+        } catch(XPathException | RuntimeException ex) {
+            it.close();
+            throw ex;
+        }
+        return new SequenceExtent(items);
+    }
+
+    /**
+     * A running query.
+     */
+    static final class Flight {
+        private final CountDownLatch landed = new CountDownLatch(1);
+        private volatile GroundedValue result;
+    }
+
+    /**
+     * Returns the items already read, then the remaining ones.
+     */
+    private static class ReadAheadIterator implements SequenceIterator {
+        private final List<Item> items;
+        private final SequenceIterator base;
+        private int position = 0;
+
+        ReadAheadIterator(List<Item> items, SequenceIterator base) {
+            this.items = items;
+            this.base = base;
+        }
+
+        @Override
+        public Item next() throws XPathException {
+            if(position<items.size()) return items.get(position++);
+            return base.next();
+        }
+
+        @Override
+        public void close() {
+            base.close();
+        }
+
+        @Override
+        public int getProperties() {
+            return 0;
+        }
+    }
+}
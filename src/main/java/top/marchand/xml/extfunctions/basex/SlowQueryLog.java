@@ -0,0 +1,147 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sf.saxon.ma.map.KeyValuePair;
+import net.sf.saxon.ma.map.MapItem;
+import net.sf.saxon.om.Function;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * Logs the queries that are slower than a threshold, with their text, their bindings,
+ * the number of items and bytes received, and the timings measured by the server.
+ *
+ * The time of a query is the time spent in the function call, plus the time spent
+ * to read and build the items. Time spent by the caller between two items is not
+ * counted. Timings of the server (parsing, compiling, evaluating, printing) are
+ * asked after the last item has been read, only for slow queries ; they require
+ * sessions to collect query info, which is enabled when <tt>serverInfo</tt> is set.
+ * Otherwise, only the total time spent by the server is logged.
+ *
+ * Queries are logged with level <tt>WARNING</tt> to the logger of this class.
+ * It may be configured with system properties, prefixed by
+ * <tt>top.marchand.xml.extfunctions.basex.slowQuery.</tt> : <tt>threshold</tt> (ms,
+ * log is disabled if not set), <tt>maxLength</tt> (maximum length of logged query texts,
+ * defaults to 500), and <tt>serverInfo</tt> (defaults to <tt>true</tt>).
+ *
+ * @author Christophe Marchand
+ */
+public class SlowQueryLog {
+    public static final String PROPERTY_PREFIX = "top.marchand.xml.extfunctions.basex.slowQuery.";
+    private static final Logger LOGGER = Logger.getLogger(SlowQueryLog.class.getName());
+
+    private final long threshold;
+    private final int maxLength;
+    private final boolean serverInfo;
+
+    /**
+     * @param threshold Queries that take longer are logged, in milliseconds
+     * @param maxLength Maximum length of query texts and bound values
+     * @param serverInfo Enables the timings of each phase on the server
+     */
+    public SlowQueryLog(long threshold, int maxLength, boolean serverInfo) {
+        super();
+        this.threshold = threshold;
+        this.maxLength = maxLength;
+        this.serverInfo = serverInfo;
+    }
+
+    /**
+     * Builds the log from system properties.
+     * @return The log, or <tt>null</tt> if no <tt>threshold</tt> is set
+     */
+    public static SlowQueryLog fromSystemProperties() {
+        Long threshold = Long.getLong(PROPERTY_PREFIX+"threshold");
+        if(threshold==null) return null;
+        String serverInfo = System.getProperty(PROPERTY_PREFIX+"serverInfo");
+        return new SlowQueryLog(threshold,
+                Integer.getInteger(PROPERTY_PREFIX+"maxLength", 500),
+                serverInfo==null || Boolean.parseBoolean(serverInfo));
+    }
+
+    public long getThreshold() { return threshold; }
+    public int getMaxLength() { return maxLength; }
+    public boolean isServerInfo() { return serverInfo; }
+
+    /**
+     * @param nanos Time of a query, in nanoseconds
+     * @return <tt>true</tt> if the query must be logged
+     */
+    boolean isSlow(long nanos) {
+        return nanos/1000000L>=threshold && LOGGER.isLoggable(Level.WARNING);
+    }
+
+    /**
+     * Logs a slow query.
+     * @param key The server account
+     * @param query The query text
+     * @param bindings The bound variables, or <tt>null</tt>
+     * @param nanos Time of the query
+     * @param items Number of items read
+     * @param bytes Number of bytes received
+     * @param info The query info sent by the server, or <tt>null</tt>
+     */
+    void log(ConnectionKey key, String query, MapItem bindings, long nanos, long items, long bytes, String info) {
+        StringBuilder sb = new StringBuilder("Slow BaseX query on ").append(key).append(": ")
+                .append(nanos/1000000L).append(" ms, ")
+                .append(items).append(" items, ")
+                .append(bytes).append(" bytes");
+        sb.append("\n  query: ").append(truncate(query.replaceAll("\\s+", " ")));
+        if(bindings!=null && bindings.size()>0) {
+            sb.append("\n  bindings: ").append(bindings(bindings));
+        }
+        if(info!=null) {
+            sb.append("\n  server: ").append(timings(info));
+        }
+        LOGGER.warning(sb.toString());
+    }
+
+    /**
+     * Keeps the timings of the query info, without the query text and the compilation steps.
+     * @param info The query info
+     * @return Timings, on one line
+     */
+    static String timings(String info) {
+        int start = info.indexOf("Parsing: ");
+        String timings = start<0 ? info.trim() : info.substring(start).trim();
+        return timings.replaceAll("\\s*[\\r\\n]+\\s*", ", ");
+    }
+
+    private String bindings(MapItem bindings) {
+        StringBuilder sb = new StringBuilder();
+        for(KeyValuePair entry: bindings) {
+            if(sb.length()>0) sb.append(", ");
+            try {
+                sb.append('$').append(Bindings.variableName(entry.key)).append("=(");
+                SequenceIterator it = entry.value.iterate();
+                int count = 0;
+                for(Item item = it.next(); item!=null; item = it.next()) {
+                    if(count++>0) sb.append(", ");
+                    if(item instanceof Function) {
+                        // maps and arrays have no string value
+                        sb.append(item instanceof MapItem ? "map{...}" : "array{...}");
+                    } else {
+                        sb.append(truncate(item.getStringValue()));
+                    }
+                }
+                it.close();
+                sb.append(')');
+            } catch(XPathException ex) {
+                sb.append('?');
+            }
+        }
+        return truncate(sb.toString());
+    }
+
+    private String truncate(String s) {
+        return s.length()<=maxLength ? s : s.substring(0, maxLength)+"...";
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package org.basex.examples.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.basex.BaseXServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class BaseXClientTest {
+    private static BaseXServer server;
+
+    @BeforeClass
+    public static void initServer() throws Exception {
+        server = new BaseXServer();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        if(server!=null) {
+            try {
+                server.stop();
+                server = null;
+            } catch(Exception ex) {
+                // ignore
+            }
+        }
+    }
+
+    @Test
+    public void testInterleavedQueries() throws IOException {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            BaseXClient.Query outer = session.query("for $i in 1 to 3 return $i");
+            StringBuilder sb = new StringBuilder();
+            while(outer.more()) {
+                sb.append(outer.next());
+                // outer results must be buffered to run this one
+                BaseXClient.Query inner = session.query("'-'");
+                sb.append(inner.next());
+                inner.close();
+            }
+            outer.close();
+            assertEquals("1-2-3-", sb.toString());
+        }
+    }
+
+    @Test
+    public void testCloseWhileStreaming() throws IOException {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            BaseXClient.Query query = session.query("1 to 100000");
+            assertEquals("1", query.next());
+            assertTrue(query.isStreaming());
+            query.close();
+            assertFalse(query.isStreaming());
+            assertEquals("2", session.execute("XQUERY 1+1"));
+        }
+    }
+
+    @Test
+    public void testStreamItem() throws IOException {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            BaseXClient.Query query = session.query("(<a>&#xFF;&#xE9;</a>, <b/>)");
+            InputStream input = query.stream();
+            assertEquals('<', input.read());
+            // remaining bytes of the item must be kept when session is used by another query
+            assertEquals("2", session.execute("XQUERY 1+1"));
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            for(int b; (b = input.read()) != -1;) os.write(b);
+            assertEquals("a>\u00FF\u00E9</a>", new String(os.toByteArray(), BaseXClient.UTF8));
+            assertEquals("<b/>", query.next());
+            assertFalse(query.more());
+            query.close();
+        }
+    }
+
+    @Test
+    public void testFinishedQueryIsNotRunAgain() throws IOException {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            BaseXClient.Query query = session.query("1");
+            assertEquals("1", query.next());
+            assertFalse(query.more());
+            assertFalse(query.more());
+            assertNull(query.next());
+            // buffered results are not read again either
+            BaseXClient.Query other = session.query("2");
+            assertTrue(other.more());
+            assertEquals("2", session.execute("XQUERY 2"));
+            assertEquals("2", other.next());
+            assertFalse(other.more());
+            assertFalse(other.more());
+            other.close();
+            query.close();
+        }
+    }
+
+    @Test
+    public void testFullMode() throws IOException {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            BaseXClient.Query query = session.query("(1, attribute z {'1'}, xs:QName('xs:int'))");
+            query.full(true);
+            assertTrue(query.more());
+            assertEquals(52, query.type());
+            // remaining items are buffered with their meta data
+            assertEquals("2", session.execute("XQUERY 1+1"));
+            assertEquals("1", query.next());
+            assertTrue(query.more());
+            assertEquals(14, query.type());
+            assertEquals("", query.uri());
+            assertEquals("z=\"1\"", query.next());
+            assertTrue(query.more());
+            assertEquals(82, query.type());
+            assertEquals("http://www.w3.org/2001/XMLSchema", query.uri());
+            assertEquals("xs:int", query.next());
+            assertFalse(query.more());
+            query.close();
+        }
+    }
+
+    @Test
+    public void testSpilledResults() throws IOException {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            session.spillThreshold(100);
+            BaseXClient.Query query = session.query("for $i in 1 to 2000 return "
+                    + "if($i mod 2 = 0) then attribute a {$i} else string-join(('x', $i, (1 to $i mod 7)!'&#xE9;'))");
+            query.full(true);
+            assertTrue(query.more());
+            // all results are buffered, most of them in a temporary file
+            assertEquals("2", session.execute("XQUERY 1+1"));
+            for(int i=1;i<=2000;i++) {
+                assertTrue(query.more());
+                if(i%2==0) {
+                    assertEquals(14, query.type());
+                    assertEquals("", query.uri());
+                    assertEquals("a=\""+i+"\"", query.next());
+                } else {
+                    StringBuilder sb = new StringBuilder("x").append(i);
+                    for(int j=0;j<i%7;j++) sb.append('\u00E9');
+                    assertEquals(sb.toString(), query.next());
+                }
+            }
+            assertFalse(query.more());
+            query.close();
+        }
+    }
+
+    @Test
+    public void testPreparedQueries() throws IOException {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            String text = "declare variable $x external; $x * 2";
+            BaseXClient.Query query = session.prepare(text);
+            // prepared query is in use, so a new one is prepared
+            BaseXClient.Query other = session.prepare(text);
+            assertNotSame(query, other);
+            query.bind("x", "1", "xs:integer");
+            assertEquals("2", query.next());
+            session.release(query);
+            session.release(other);
+            BaseXClient.Query reused = session.prepare(text);
+            assertTrue(reused == query || reused == other);
+            reused.bind("x", "2", "xs:integer");
+            assertEquals("4", reused.next());
+            assertFalse(reused.more());
+            session.release(reused);
+        }
+    }
+
+    @Test
+    public void testErrorWhileStreaming() throws IOException {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            BaseXClient.Query query = session.query("for $i in (1, 2, 0) return 1 idiv $i");
+            assertEquals("1", query.next());
+            try {
+                while(query.more()) query.next();
+                fail("division by zero expected");
+            } catch(IOException ex) {
+                // expected
+            }
+            query.close();
+            assertEquals("2", session.execute("XQUERY 1+1"));
+        }
+    }
+
+    @Test
+    public void testEscapedBytes() throws IOException {
+        // every byte value, on more than one socket buffer
+        byte[] bytes = new byte[200000];
+        for(int i=0;i<bytes.length;i++) bytes[i] = (byte)i;
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            session.execute("CREATE DB clienttest");
+            try {
+                session.store("bytes.bin", new ByteArrayInputStream(bytes));
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                session.execute("RETRIEVE bytes.bin", out);
+                assertArrayEquals(bytes, out.toByteArray());
+            } finally {
+                session.execute("DROP DB clienttest");
+            }
+        }
+    }
+
+    @Test
+    public void testLargeItems() throws IOException {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            BaseXClient.Query query = session.query("for $i in 1 to 3 return string-join(for $j in 1 to 50000 return 'ab')");
+            assertEquals(100000, query.next().length());
+            InputStream in = query.stream();
+            byte[] buffer = new byte[7];
+            int total = 0;
+            for(int n; (n = in.read(buffer)) != -1;) total += n;
+            assertEquals(100000, total);
+            assertEquals(100000, query.next().length());
+            assertNull(query.next());
+            query.close();
+        }
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            BaseXClient.Query prepared = session.prepare("2");
+            assertEquals("2", prepared.next());
+            session.release(prepared);
+            List<String> queries = new ArrayList<>();
+            for(int i=1;i<=200;i++) queries.add(Integer.toString(i));
+            queries.add("1 to 3");
+            List<BaseXClient.Query> results = session.batch(queries, false);
+            assertEquals(201, results.size());
+            // released query is reused
+            assertSame(prepared, results.get(1));
+            for(int i=0;i<200;i++) {
+                assertEquals(Integer.toString(i+1), results.get(i).next());
+                assertNull(results.get(i).next());
+                session.release(results.get(i));
+            }
+            StringBuilder sb = new StringBuilder();
+            for(String item = results.get(200).next(); item!=null; item = results.get(200).next()) sb.append(item);
+            assertEquals("123", sb.toString());
+            session.release(results.get(200));
+            results = session.batch(Arrays.asList("1 +", "4"), false);
+            try {
+                results.get(0).next();
+                fail("first query can not be parsed");
+            } catch(IOException ex) {
+                // expected
+            }
+            assertEquals("4", results.get(1).next());
+            session.release(results.get(1));
+            // session is still usable
+            assertEquals("1", session.execute("XQUERY 1"));
+        }
+    }
+
+    @Test
+    public void testBatchWithBindings() throws IOException {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            List<String> queries = new ArrayList<>();
+            for(int i=0;i<100;i++) queries.add("declare variable $a external; declare variable $b external; $a * $b");
+            List<BaseXClient.Query> results = session.batch(queries, new BaseXClient.Binder() {
+                @Override
+                public void bind(int index, BaseXClient.Query query) throws IOException {
+                    query.bind("a", Integer.toString(index), "xs:integer");
+                    query.bind("b", "2", "xs:integer");
+                }
+            }, false);
+            for(int i=0;i<100;i++) {
+                assertEquals(Integer.toString(i*2), results.get(i).next());
+                session.release(results.get(i));
+            }
+            try {
+                session.batch(Arrays.asList("declare variable $a external; $a"), new BaseXClient.Binder() {
+                    @Override
+                    public void bind(int index, BaseXClient.Query query) throws IOException {
+                        query.bind("a", "x", "xs:integer");
+                    }
+                }, false);
+                fail("x is not an integer");
+            } catch(BaseXClient.ServerException ex) {
+                // expected
+            }
+            // session is still usable
+            assertEquals("1", session.execute("XQUERY 1"));
+        }
+    }
+}
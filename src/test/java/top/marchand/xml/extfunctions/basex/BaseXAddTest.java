@@ -0,0 +1,166 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import org.basex.examples.api.BaseXClient;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class BaseXAddTest extends BaseXServerTest {
+    private static final ConnectionKey KEY = new ConnectionKey("localhost", 1984, "admin", "admin");
+    private static final String CONNECT = "map{'server': 'localhost', 'port': 1984, 'user': 'admin', 'password': 'admin'}";
+
+    @BeforeClass
+    public static void createDatabase() throws Exception {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            session.execute("CREATE DB add-test");
+        }
+    }
+
+    @AfterClass
+    public static void dropDatabase() throws Exception {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            session.execute("DROP DB add-test");
+        }
+    }
+
+    @Test
+    public void testAddDocuments() throws Exception {
+        File dir = new File("target/generated-test-files/add-docs");
+        dir.mkdirs();
+        for(int i=1;i<=5;i++) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, i+".xml")), "UTF-8")) {
+                writer.write("<doc n=\""+i+"\">é &amp; ü</doc>");
+            }
+        }
+        BaseXAdd add = new BaseXAdd();
+        BaseXQuery query = new BaseXQuery();
+        XPathCompiler xpc = compiler(add, query);
+        XdmValue count = xpc.evaluate("efl-ext:basex-add('add-test/docs/', "
+                + "for $i in 1 to 5 return doc('"+dir.toURI()+"'||$i||'.xml'), "+CONNECT+", 2)", null);
+        assertEquals("5", count.itemAt(0).getStringValue());
+        XdmValue docs = xpc.evaluate("efl-ext:basex-query('for $d in db:open(\"add-test\", \"docs\") order by $d/doc/@n return db:path($d)||\"=\"||$d', "+CONNECT+")", null);
+        assertEquals(5, docs.size());
+        assertEquals("docs/1.xml=é & ü", docs.itemAt(0).getStringValue());
+        assertEquals(0, add.getPool().getActiveCount(KEY));
+        assertEquals(1, add.getPool().getIdleCount(KEY));
+        add.getPool().close();
+        query.getPool().close();
+    }
+
+    @Test
+    public void testDocumentWithoutUri() {
+        BaseXAdd add = new BaseXAdd();
+        try {
+            compiler(add, new BaseXQuery()).evaluate("efl-ext:basex-add('add-test/no-uri/', parse-xml('<a/>'), "+CONNECT+")", null);
+            fail("a document without URI can not be added to a directory");
+        } catch(SaxonApiException ex) {
+            assertTrue(ex.getMessage().contains("full path"));
+        } finally {
+            assertEquals(0, add.getPool().getActiveCount(KEY));
+            add.getPool().close();
+        }
+    }
+
+    @Test
+    public void testDocumentBuiltByStylesheet() throws SaxonApiException {
+        BaseXAdd add = new BaseXAdd();
+        Xslt30Transformer transformer = stylesheet(add,
+                "<xsl:variable name='doc' as='element()'><doc/></xsl:variable>"
+                + "<xsl:sequence select=\"efl-ext:basex-add('add-test/built/', $doc, "+CONNECT+")\"/>");
+        try {
+            transformer.callTemplate(null);
+            fail("a document built by the stylesheet must not be named after it");
+        } catch(SaxonApiException ex) {
+            assertTrue(ex.getMessage().contains("full path"));
+        } finally {
+            add.getPool().close();
+        }
+    }
+
+    @Test
+    public void testResultNotUsed() throws SaxonApiException {
+        BaseXAdd add = new BaseXAdd();
+        BaseXQuery query = new BaseXQuery();
+        Xslt30Transformer transformer = stylesheet(add,
+                "<xsl:variable name='count' select=\"efl-ext:basex-add('add-test/unused.xml', parse-xml('&lt;a/&gt;'), "+CONNECT+")\"/>"
+                + "<done/>");
+        transformer.callTemplate(null);
+        XdmValue count = compiler(add, query).evaluate("efl-ext:basex-query('count(db:open(\"add-test\", \"unused.xml\"))', "+CONNECT+")", null);
+        assertEquals("1", count.itemAt(0).getStringValue());
+        add.getPool().close();
+        query.getPool().close();
+    }
+
+    @Test
+    public void testAddElement() throws SaxonApiException {
+        BaseXAdd add = new BaseXAdd();
+        BaseXQuery query = new BaseXQuery();
+        XPathCompiler xpc = compiler(add, query);
+        xpc.evaluate("efl-ext:basex-add('add-test/one.xml', parse-xml('<a xmlns:x=\"x\"><x:b/></a>')/a/*, "+CONNECT+")", null);
+        XdmValue doc = xpc.evaluate("efl-ext:basex-query('namespace-uri(db:open(\"add-test\", \"one.xml\")/*)', "+CONNECT+")", null);
+        assertEquals("x", doc.itemAt(0).getStringValue());
+        add.getPool().close();
+        query.getPool().close();
+    }
+
+    @Test
+    public void testAutoflushIsRestored() throws Exception {
+        BaseXAdd add = new BaseXAdd();
+        BaseXClient session = add.getPool().borrow(KEY);
+        session.execute("SET AUTOFLUSH false");
+        add.getPool().release(KEY, session);
+        XdmValue count = compiler(add).evaluate("efl-ext:basex-add('add-test/flush.xml', parse-xml('<a/>'), "+CONNECT+", 1)", null);
+        assertEquals("1", count.itemAt(0).getStringValue());
+        // the session has been given back as it was borrowed
+        session = add.getPool().borrow(KEY);
+        assertEquals("false", BaseXAdd.optionValue(session.execute("GET AUTOFLUSH")));
+        session.execute("SET AUTOFLUSH true");
+        add.getPool().release(KEY, session);
+        add.getPool().close();
+    }
+
+    @Test(expected = SaxonApiException.class)
+    public void testUnknownDatabase() throws SaxonApiException {
+        BaseXAdd add = new BaseXAdd();
+        try {
+            compiler(add, new BaseXQuery()).evaluate("efl-ext:basex-add('no-such-db/a.xml', parse-xml('<a/>'), "+CONNECT+")", null);
+        } finally {
+            assertEquals(0, add.getPool().getIdleCount(KEY));
+            add.getPool().close();
+        }
+    }
+
+    private Xslt30Transformer stylesheet(BaseXAdd add, String template) throws SaxonApiException {
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(add);
+        String xsl = "<xsl:stylesheet version='3.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'"
+                + " xmlns:efl-ext='"+BaseXQuery.EXT_NAMESPACE_URI+"'>"
+                + "<xsl:template name='xsl:initial-template'>"+template+"</xsl:template>"
+                + "</xsl:stylesheet>";
+        StreamSource source = new StreamSource(new StringReader(xsl), "file:/add-test/stylesheet.xsl");
+        return new Processor(config).newXsltCompiler().compile(source).load30();
+    }
+}
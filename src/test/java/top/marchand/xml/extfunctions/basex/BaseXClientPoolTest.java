@@ -0,0 +1,148 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.IOException;
+import org.basex.examples.api.BaseXClient;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class BaseXClientPoolTest extends BaseXServerTest {
+    private static final ConnectionKey KEY = new ConnectionKey("localhost", 1984, "admin", "admin");
+
+    @Test
+    public void testDefaultPool() {
+        BaseXClientPool pool = new BaseXQuery().getPool();
+        assertSame(pool, new BaseXQueryBatch().getPool());
+        assertSame(pool, new BaseXQueryAsync().getPool());
+        assertSame(pool, new BaseXAdd().getPool());
+        pool.close();
+        // a closed default pool is replaced
+        assertNotSame(pool, BaseXClientPool.getDefault());
+        assertSame(BaseXClientPool.getDefault(), new BaseXQuery().getPool());
+    }
+
+    @Test
+    public void testSessionIsReused() throws IOException {
+        try (BaseXClientPool pool = new BaseXClientPool(new PoolConfiguration())) {
+            BaseXClient first = pool.borrow(KEY);
+            assertEquals(1, pool.getActiveCount(KEY));
+            pool.release(KEY, first);
+            assertEquals(0, pool.getActiveCount(KEY));
+            assertEquals(1, pool.getIdleCount(KEY));
+            BaseXClient second = pool.borrow(KEY);
+            assertSame(first, second);
+            assertEquals("1", second.execute("XQUERY 1"));
+            pool.release(KEY, second);
+        }
+    }
+
+    @Test
+    public void testNoPooling() throws IOException {
+        PoolConfiguration config = new PoolConfiguration();
+        config.setMaxIdle(0);
+        try (BaseXClientPool pool = new BaseXClientPool(config)) {
+            BaseXClient first = pool.borrow(KEY);
+            pool.release(KEY, first);
+            assertEquals(0, pool.getIdleCount(KEY));
+            BaseXClient second = pool.borrow(KEY);
+            assertNotSame(first, second);
+            pool.release(KEY, second);
+        }
+    }
+
+    @Test
+    public void testBorrowTimeout() throws IOException {
+        PoolConfiguration config = new PoolConfiguration();
+        config.setMaxTotal(1);
+        config.setBorrowTimeout(100);
+        try (BaseXClientPool pool = new BaseXClientPool(config)) {
+            BaseXClient first = pool.borrow(KEY);
+            try {
+                pool.borrow(KEY);
+                fail("maxTotal should have been reached");
+            } catch(BaseXClientPool.BorrowTimeoutException ex) {
+                // expected
+            }
+            pool.release(KEY, first);
+            assertSame(first, pool.borrow(KEY));
+            pool.release(KEY, first);
+        }
+    }
+
+    @Test
+    public void testValidationOnBorrow() throws IOException {
+        PoolConfiguration config = new PoolConfiguration();
+        config.setValidationIdleTime(0);
+        try (BaseXClientPool pool = new BaseXClientPool(config)) {
+            BaseXClient first = pool.borrow(KEY);
+            // simulates a session dropped by server
+            first.close();
+            pool.release(KEY, first);
+            BaseXClient second = pool.borrow(KEY);
+            assertNotSame(first, second);
+            assertEquals("1", second.execute("XQUERY 1"));
+            pool.release(KEY, second);
+        }
+    }
+
+    @Test
+    public void testRecentSessionIsNotValidated() throws IOException {
+        try (BaseXClientPool pool = new BaseXClientPool(new PoolConfiguration())) {
+            BaseXClient first = pool.borrow(KEY);
+            first.close();
+            pool.release(KEY, first);
+            // released less than validationIdleTime ago : no round-trip
+            assertSame(first, pool.borrow(KEY));
+            pool.invalidate(KEY, first);
+        }
+    }
+
+    @Test
+    public void testReleasedTwice() throws IOException {
+        PoolConfiguration config = new PoolConfiguration();
+        config.setMaxTotal(1);
+        config.setBorrowTimeout(100);
+        try (BaseXClientPool pool = new BaseXClientPool(config)) {
+            BaseXClient first = pool.borrow(KEY);
+            pool.release(KEY, first);
+            pool.release(KEY, first);
+            pool.invalidate(KEY, first);
+            assertEquals(0, pool.getActiveCount(KEY));
+            assertEquals(1, pool.getIdleCount(KEY));
+            assertSame(first, pool.borrow(KEY));
+            try {
+                pool.borrow(KEY);
+                fail("maxTotal should still be reached");
+            } catch(IOException ex) {
+                // expected
+            }
+            pool.release(KEY, first);
+        }
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        PoolConfiguration config = new PoolConfiguration();
+        config.setIdleTimeout(0);
+        config.setMinIdle(1);
+        config.setEvictionInterval(0);
+        try (BaseXClientPool pool = new BaseXClientPool(config)) {
+            BaseXClient first = pool.borrow(KEY);
+            BaseXClient second = pool.borrow(KEY);
+            pool.release(KEY, first);
+            pool.release(KEY, second);
+            assertEquals(2, pool.getIdleCount(KEY));
+            pool.evict();
+            assertEquals(1, pool.getIdleCount(KEY));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.openmbean.CompositeData;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XdmValue;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class BaseXMetricsTest extends BaseXServerTest {
+    private static final String CONNECT_ARGS = "'localhost', '1984', 'admin', 'admin'";
+
+    @Test
+    public void testPhases() throws SaxonApiException {
+        BaseXMetrics metrics = new BaseXMetrics(null);
+        BaseXQuery function = new BaseXQuery();
+        function.getPool().setListener(metrics);
+        XPathCompiler xpc = compiler(function);
+        XdmValue ret = xpc.evaluate("efl-ext:basex-query('for $i in 1 to 10 return <test>{$i}</test>', "+CONNECT_ARGS+")", null);
+        assertEquals(10, ret.size());
+        xpc.evaluate("efl-ext:basex-query('1', "+CONNECT_ARGS+")", null);
+        ServerMetricsMXBean server = metrics.getServer("localhost", 1984);
+        assertEquals(1, server.getConnect().getCount());
+        assertEquals(1, server.getAuthenticate().getCount());
+        assertEquals(2, server.getPrepare().getCount());
+        assertEquals(2, server.getFirstByte().getCount());
+        assertEquals(2, server.getQueryCount());
+        assertEquals(11, server.getItemCount());
+        assertTrue(server.getBytesReceived()>0);
+        assertEquals(0, server.getFailureCount());
+        try {
+            xpc.evaluate("efl-ext:basex-query('1 +', "+CONNECT_ARGS+")", null);
+            fail("query should fail");
+        } catch(SaxonApiException ex) {
+            // expected
+        }
+        assertEquals(1, server.getFailureCount());
+        server.reset();
+        assertEquals(0, server.getQueryCount());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        BaseXMetrics metrics = new BaseXMetrics(mbeanServer);
+        BaseXQuery function = new BaseXQuery();
+        function.getPool().setListener(metrics);
+        compiler(function).evaluate("efl-ext:basex-query('1', "+CONNECT_ARGS+")", null);
+        CompositeData connect = (CompositeData)mbeanServer.getAttribute(BaseXMetrics.getObjectName("localhost:1984"), "Connect");
+        assertEquals(1L, connect.get("count"));
+        assertEquals(1L, mbeanServer.getAttribute(BaseXMetrics.getObjectName("localhost:1984"), "QueryCount"));
+        function.getPool().close();
+    }
+
+    @Test
+    public void testHistogram() {
+        BaseXMetrics.Histogram histogram = new BaseXMetrics.Histogram();
+        for(int i=1;i<=100;i++) {
+            histogram.record(i*1000000L);
+        }
+        LatencyStatistics stats = histogram.snapshot();
+        assertEquals(100, stats.getCount());
+        assertEquals(50500, stats.getMean());
+        assertEquals(100000, stats.getMax());
+        // exact to a power of two
+        assertTrue(stats.getMedian()>=50000 && stats.getMedian()<100000);
+        assertTrue(stats.getPercentile99()>=99000 && stats.getPercentile99()<=100000);
+    }
+}
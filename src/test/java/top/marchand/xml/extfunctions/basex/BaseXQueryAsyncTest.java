@@ -0,0 +1,86 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.UnsupportedEncodingException;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmValue;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class BaseXQueryAsyncTest extends BaseXServerTest {
+    private static final ConnectionKey KEY = new ConnectionKey("localhost", 1984, "admin", "admin");
+    private static final String CONNECT_ARGS = "'localhost', '1984', 'admin', 'admin'";
+
+    @Test
+    public void testGetFunctionQName() {
+        BaseXQueryAsync instance = new BaseXQueryAsync();
+        assertEquals("basex-query-async", instance.getFunctionQName().getLocalPart());
+        assertEquals(BaseXQuery.EXT_NAMESPACE_URI, instance.getFunctionQName().getURI());
+    }
+
+    @Test
+    public void testAllResults() throws SaxonApiException, UnsupportedEncodingException {
+        // queue is much smaller than the result
+        BaseXQueryAsync function = new BaseXQueryAsync(new BaseXClientPool(), 2, 4);
+        XdmValue result = evaluate(function,
+                "sum(for $t in efl-ext:basex-query-async('for $i in 1 to 1000 return <test>{$i}</test>', "+CONNECT_ARGS+") return xs:integer($t))");
+        assertEquals("500500", result.itemAt(0).getStringValue());
+        assertEquals(0, function.getPool().getActiveCount(KEY));
+        assertEquals(1, function.getPool().getIdleCount(KEY));
+        function.getPool().close();
+    }
+
+    @Test
+    public void testHeadOfLargeResult() throws Exception {
+        BaseXQueryAsync function = new BaseXQueryAsync(new BaseXClientPool(), 2, 4);
+        XdmValue result = evaluate(function,
+                "head(efl-ext:basex-query-async('for $i in 1 to 1000000 return <test>{$i}</test>', "+CONNECT_ARGS+"))");
+        assertEquals("1", result.itemAt(0).getStringValue());
+        // background thread stops, and cancels the query
+        long deadline = System.currentTimeMillis()+5000;
+        while(function.getPool().getActiveCount(KEY)>0 && System.currentTimeMillis()<deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, function.getPool().getActiveCount(KEY));
+        function.getPool().close();
+    }
+
+    @Test(timeout = 20000)
+    public void testMoreResultsThanThreads() throws SaxonApiException, UnsupportedEncodingException {
+        // the only thread waits for $a to be read, while $b is read first
+        BaseXQueryAsync function = new BaseXQueryAsync(new BaseXClientPool(), 1, 4);
+        XdmValue result = evaluate(function,
+                "let $a := efl-ext:basex-query-async('for $i in 1 to 100 return $i', "+CONNECT_ARGS+") "
+                + "return if(exists($a)) then (count(efl-ext:basex-query-async('1 to 50', "+CONNECT_ARGS+")), count($a)) else ()");
+        assertEquals(2, result.size());
+        assertEquals("50", result.itemAt(0).getStringValue());
+        assertEquals("100", result.itemAt(1).getStringValue());
+        assertEquals(0, function.getPool().getActiveCount(KEY));
+        function.getPool().close();
+    }
+
+    @Test(expected = SaxonApiException.class)
+    public void testErrorInResults() throws SaxonApiException, UnsupportedEncodingException {
+        BaseXQueryAsync function = new BaseXQueryAsync(new BaseXClientPool(), 2, 4);
+        try {
+            evaluate(function,
+                    "count(efl-ext:basex-query-async('for $i in 1 to 100 return if($i=50) then error() else $i', "+CONNECT_ARGS+"))");
+        } finally {
+            assertEquals(0, function.getPool().getActiveCount(KEY));
+            function.getPool().close();
+        }
+    }
+
+    private XdmValue evaluate(BaseXQueryAsync function, String xpath) throws SaxonApiException {
+        return evaluate(compiler(function), xpath);
+    }
+}
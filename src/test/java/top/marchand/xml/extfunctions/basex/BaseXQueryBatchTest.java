@@ -0,0 +1,91 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.UnsupportedEncodingException;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XdmValue;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class BaseXQueryBatchTest extends BaseXServerTest {
+    private static final ConnectionKey KEY = new ConnectionKey("localhost", 1984, "admin", "admin");
+
+    @Test
+    public void testGetFunctionQName() {
+        BaseXQueryBatch instance = new BaseXQueryBatch();
+        assertEquals("basex-query-batch", instance.getFunctionQName().getLocalPart());
+        assertEquals(BaseXQuery.EXT_NAMESPACE_URI, instance.getFunctionQName().getURI());
+    }
+
+    @Test
+    public void testResultsPerQuery() throws SaxonApiException, UnsupportedEncodingException {
+        BaseXQueryBatch function = new BaseXQueryBatch();
+        XdmValue result = evaluate(function,
+                "let $r := efl-ext:basex-query-batch(for $i in 1 to 100 return 'for $j in 1 to '||$i||' return <test>{$j}</test>', $connect) "+
+                "return (array:size($r), count($r(1)), count($r(100)), $r(3)[3]/test/string(), array:size(efl-ext:basex-query-batch((), $connect)))");
+        assertEquals("100", result.itemAt(0).getStringValue());
+        assertEquals("1", result.itemAt(1).getStringValue());
+        assertEquals("100", result.itemAt(2).getStringValue());
+        assertEquals("3", result.itemAt(3).getStringValue());
+        assertEquals("0", result.itemAt(4).getStringValue());
+        assertEquals(0, function.getPool().getActiveCount(KEY));
+        assertEquals(1, function.getPool().getIdleCount(KEY));
+        function.getPool().close();
+    }
+
+    @Test
+    public void test5args() throws SaxonApiException, UnsupportedEncodingException {
+        BaseXQueryBatch function = new BaseXQueryBatch();
+        XdmValue result = evaluate(function,
+                "efl-ext:basex-query-batch(('1', '2 to 3'), 'localhost', '1984', 'admin', 'admin')?*");
+        assertEquals(3, result.size());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testBindings() throws SaxonApiException {
+        BaseXQueryBatch function = new BaseXQueryBatch();
+        XdmValue result = evaluate(function,
+                "efl-ext:basex-query-batch(for $i in 1 to 100 return 'declare variable $i external; $i * 2', $connect, "
+                + "for $i in 1 to 100 return map{'i': $i})?*");
+        assertEquals(100, result.size());
+        assertEquals("2", result.itemAt(0).getStringValue());
+        assertEquals("200", result.itemAt(99).getStringValue());
+        assertEquals(0, function.getPool().getActiveCount(KEY));
+        assertEquals(1, function.getPool().getIdleCount(KEY));
+        try {
+            evaluate(function, "efl-ext:basex-query-batch(('1', '2'), $connect, map{'a': 1})");
+            fail("there must be one map per query");
+        } catch(SaxonApiException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("1 maps for 2 queries"));
+        }
+        function.getPool().close();
+    }
+
+    @Test(expected = SaxonApiException.class)
+    public void testSyntaxError() throws SaxonApiException, UnsupportedEncodingException {
+        BaseXQueryBatch function = new BaseXQueryBatch();
+        try {
+            evaluate(function, "efl-ext:basex-query-batch(('1', '1 +'), $connect)");
+        } finally {
+            assertEquals(0, function.getPool().getActiveCount(KEY));
+            function.getPool().close();
+        }
+    }
+
+    private XdmValue evaluate(BaseXQueryBatch function, String xpath) throws SaxonApiException {
+        XPathCompiler xpc = compiler(function);
+        xpc.declareNamespace("array", "http://www.w3.org/2005/xpath-functions/array");
+        return evaluate(xpc, xpath);
+    }
+}
@@ -15,7 +15,6 @@ import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.value.SequenceType;
-import org.basex.BaseXServer;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -25,15 +24,17 @@ import java.io.UnsupportedEncodingException;
 import javax.xml.transform.stream.StreamSource;
 import net.sf.saxon.om.Item;
 import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.om.TreeModel;
 import net.sf.saxon.s9api.Axis;
 import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XdmSequenceIterator;
 import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltTransformer;
 import net.sf.saxon.trans.XPathException;
 //import org.apache.commons.io.output.NullOutputStream;
-import org.junit.AfterClass;
-import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -41,33 +42,7 @@ import static org.junit.Assert.*;
  *
  * @author ext-cmarchand
  */
-public class BaseXQueryTest {
-    private static final String CONNECT_STRING =
-            "<?xml version='1.0' encoding='UTF-8'?>"+
-            "<basex>"+
-                "<server>localhost</server>"+
-                "<port>1984</port>"+
-                "<user>admin</user>"+
-                "<password>admin</password>"+
-            "</basex>";
-    private static BaseXServer server;
-    
-    @BeforeClass
-    public static void initServer() throws Exception {
-        server = new BaseXServer();
-    }
-    
-    @AfterClass
-    public static void stopServer() throws Exception {
-        if(server!=null) {
-            try {
-                server.stop();
-                server = null;
-            } catch(Exception ex) {
-                // ignore
-            }
-        }
-    }
+public class BaseXQueryTest extends BaseXServerTest {
 
     /**
      * Test of getFunctionQName method, of class BaseXQuery.
@@ -263,13 +238,241 @@ public class BaseXQueryTest {
         }
     }
 
+    @Test
+    public void testHeadOfLargeResult() throws SaxonApiException, UnsupportedEncodingException {
+        Configuration config = new Configuration();
+        BaseXQuery function = new BaseXQuery();
+        config.registerExtensionFunction(function);
+        Processor proc = new Processor(config);
+        XPathCompiler xpc = proc.newXPathCompiler();
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        XPathSelector xp = xpc.compile("head("+BaseXQuery.EXT_NS_COMMON_PREFIX+":"+BaseXQuery.FUNCTION_NAME+"('for $i in 1 to 1000000 return <test>{$i}</test>', 'localhost', '1984', 'admin', 'admin'))").load();
+        DocumentBuilder builder = proc.newDocumentBuilder();
+        xp.setContextItem(builder.build(new StreamSource(new ByteArrayInputStream("<document />".getBytes("UTF-8")))));
+        long start = System.currentTimeMillis();
+        XdmValue result = xp.evaluate();
+        assertEquals(1, result.size());
+        assertEquals("1", result.itemAt(0).getStringValue());
+        assertTrue("first item should not wait for the whole result", System.currentTimeMillis()-start < 5000);
+    }
+
+    @Test
+    public void testTypedResults() throws SaxonApiException, UnsupportedEncodingException {
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(new BaseXQuery());
+        Processor proc = new Processor(config);
+        XPathCompiler xpc = proc.newXPathCompiler();
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        XPathSelector xp = xpc.compile(
+                "let $r := "+BaseXQuery.EXT_NS_COMMON_PREFIX+":"+BaseXQuery.FUNCTION_NAME+
+                "('(count((1,2,3)), \"a&lt;\", xs:date(\"2020-01-01\"), xs:QName(\"xs:int\"), <test>1</test>, "+
+                "attribute z {\"1\"}, text {\"t&lt;\"}, comment {\"c\"}, 1.5, true())', 'localhost', '1984', 'admin', 'admin') "+
+                "return ($r[1] instance of xs:integer and $r[1] eq 3, "+
+                "$r[2] instance of xs:string and $r[2] eq 'a<', "+
+                "$r[3] instance of xs:date, "+
+                "$r[4] instance of xs:QName and namespace-uri-from-QName($r[4]) eq 'http://www.w3.org/2001/XMLSchema', "+
+                "$r[5] instance of document-node() and $r[5]/test eq '1', "+
+                "$r[6] instance of attribute(z) and $r[6] eq '1', "+
+                "$r[7] instance of text() and $r[7] eq 't<', "+
+                "$r[8] instance of comment() and $r[8] eq 'c', "+
+                "$r[9] instance of xs:decimal, "+
+                "$r[10] instance of xs:boolean and $r[10])").load();
+        DocumentBuilder builder = proc.newDocumentBuilder();
+        xp.setContextItem(builder.build(new StreamSource(new ByteArrayInputStream("<document />".getBytes("UTF-8")))));
+        XdmValue result = xp.evaluate();
+        assertEquals(10, result.size());
+        for(int i=0;i<result.size();i++) {
+            assertEquals("item "+(i+1), "true", result.itemAt(i).getStringValue());
+        }
+    }
+
+    @Test
+    public void testMakeCallExpression3argsBindings() throws SaxonApiException, UnsupportedEncodingException {
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(new BaseXQuery());
+        Processor proc = new Processor(config);
+        XPathCompiler xpc = proc.newXPathCompiler();
+        xpc.setLanguageVersion("3.1");
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        QName var = new QName("connect");
+        xpc.declareVariable(var);
+        String query = "'declare variable $max external; declare variable $tag external; for $i in 1 to $max return element {$tag} {$i}'";
+        XPathSelector xp = xpc.compile(
+                "("+BaseXQuery.EXT_NS_COMMON_PREFIX+":"+BaseXQuery.FUNCTION_NAME+"("+query+", $connect, map{'max': 2, 'tag': 'a'}), "+
+                BaseXQuery.EXT_NS_COMMON_PREFIX+":"+BaseXQuery.FUNCTION_NAME+"("+query+", $connect, map{'max': 3, 'tag': 'b'}))").load();
+        DocumentBuilder builder = proc.newDocumentBuilder();
+        XdmNode docConnect = builder.build(new StreamSource(new ByteArrayInputStream(CONNECT_STRING.getBytes("UTF-8"))));
+        XdmNode connect = (XdmNode)docConnect.axisIterator(Axis.DESCENDANT_OR_SELF, new QName("basex")).next();
+        xp.setVariable(var, connect);
+        XdmValue result = xp.evaluate();
+        assertEquals(5, result.size());
+        String[] expected = {"a", "a", "b", "b", "b"};
+        for(int i=0;i<expected.length;i++) {
+            XdmNode doc = (XdmNode)result.itemAt(i);
+            XdmNode root = (XdmNode)doc.axisIterator(Axis.CHILD).next();
+            assertEquals(expected[i], root.getNodeName().getLocalName());
+        }
+    }
+
+    @Test
+    public void testInvalidConstantConnectionIsNotCalled() throws SaxonApiException {
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(new BaseXQuery());
+        XPathCompiler xpc = new Processor(config).newXPathCompiler();
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        XdmValue ret = xpc.evaluate("if(false()) then efl-ext:basex-query('1', 'localhost', 'port', 'admin', 'admin') else 2", null);
+        assertEquals("2", ret.itemAt(0).getStringValue());
+    }
+
+    @Test
+    public void testConnectionChangesBetweenCalls() throws SaxonApiException, UnsupportedEncodingException {
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(new BaseXQuery());
+        Processor proc = new Processor(config);
+        XPathCompiler xpc = proc.newXPathCompiler();
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        QName var = new QName("connect");
+        xpc.declareVariable(var);
+        XPathSelector xp = xpc.compile("efl-ext:basex-query('1', $connect)").load();
+        DocumentBuilder builder = proc.newDocumentBuilder();
+        XdmNode connect = builder.build(new StreamSource(new ByteArrayInputStream(CONNECT_STRING.getBytes("UTF-8"))));
+        xp.setVariable(var, connect.axisIterator(Axis.CHILD).next());
+        assertEquals("1", xp.evaluate().itemAt(0).getStringValue());
+        // same descriptor, resolved once
+        xp.setVariable(var, connect.axisIterator(Axis.CHILD).next());
+        assertEquals("1", xp.evaluate().itemAt(0).getStringValue());
+        XdmNode wrongPort = builder.build(new StreamSource(new ByteArrayInputStream(CONNECT_STRING.replace("1984", "port").getBytes("UTF-8"))));
+        xp.setVariable(var, wrongPort.axisIterator(Axis.CHILD).next());
+        try {
+            xp.evaluate();
+            fail("port is not valid");
+        } catch(SaxonApiException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("port must be an integer"));
+        }
+    }
+
+    @Test
+    public void testLinkedTreeConnection() throws SaxonApiException, UnsupportedEncodingException {
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(new BaseXQuery());
+        Processor proc = new Processor(config);
+        XPathCompiler xpc = proc.newXPathCompiler();
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        QName var = new QName("connect");
+        xpc.declareVariable(var);
+        XPathSelector xp = xpc.compile("efl-ext:basex-query('1 to 3', $connect)").load();
+        DocumentBuilder builder = proc.newDocumentBuilder();
+        builder.setTreeModel(TreeModel.LINKED_TREE);
+        XdmNode connect = builder.build(new StreamSource(new ByteArrayInputStream(CONNECT_STRING.getBytes("UTF-8"))));
+        xp.setVariable(var, connect.axisIterator(Axis.CHILD).next());
+        assertEquals(3, xp.evaluate().size());
+    }
+
+    @Test
+    public void testMapConnection() throws SaxonApiException {
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(new BaseXQuery());
+        XPathCompiler xpc = new Processor(config).newXPathCompiler();
+        xpc.setLanguageVersion("3.1");
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        XdmValue ret = xpc.evaluate("efl-ext:basex-query('1 to 3', "
+                + "map{'server': 'localhost', 'port': 1984, 'user': 'admin', 'password': 'admin'})", null);
+        assertEquals(3, ret.size());
+        try {
+            xpc.evaluate("efl-ext:basex-query('1', map{'host': 'localhost'})", null);
+            fail("host is not a connection entry");
+        } catch(SaxonApiException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("keys of connection map"));
+        }
+    }
+
+    @Test
+    public void testCountWithoutBuildingItems() throws SaxonApiException {
+        BaseXQuery function = new BaseXQuery();
+        RecordingListener listener = new RecordingListener();
+        function.getPool().setListener(listener);
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(function);
+        XPathCompiler xpc = new Processor(config).newXPathCompiler();
+        xpc.setLanguageVersion("3.1");
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        String connect = "map{'server': 'localhost', 'port': 1984, 'user': 'admin', 'password': 'admin'}";
+        XdmValue ret = xpc.evaluate("count(efl-ext:basex-query('for $i in 1 to 1000 return <a>{$i}</a>', "+connect+"))", null);
+        assertEquals("1000", ret.itemAt(0).getStringValue());
+        // items have not been built, and session has been given back
+        assertEquals(0, listener.finished.get());
+        ConnectionKey key = new ConnectionKey("localhost", 1984, "admin", "admin");
+        assertEquals(0, function.getPool().getActiveCount(key));
+        assertEquals(1, function.getPool().getIdleCount(key));
+        ret = xpc.evaluate("let $s := efl-ext:basex-query('for $i in 1 to 1000 return <a>{$i}</a>', "+connect+") "
+                + "return ($s[last()] ! string(), $s[position() gt 998] ! string())", null);
+        assertEquals(3, ret.size());
+        assertEquals("1000", ret.itemAt(0).getStringValue());
+        assertEquals("999", ret.itemAt(1).getStringValue());
+        assertEquals(0, function.getPool().getActiveCount(key));
+        function.getPool().close();
+    }
+
+    @Test
+    public void testPagedQuery() throws SaxonApiException {
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(new BaseXQuery());
+        XPathCompiler xpc = new Processor(config).newXPathCompiler();
+        xpc.setLanguageVersion("3.1");
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        String connect = "map{'server': 'localhost', 'port': 1984, 'user': 'admin', 'password': 'admin', 'page-size': 3}";
+        XdmValue ret = xpc.evaluate("efl-ext:basex-query('(: paged ; :) declare variable $n external; "
+                + "declare function local:f($i) { $i * 10 }; for $i in 1 to $n return local:f($i)', "
+                + connect+", map{'n': 7})", null);
+        assertEquals(7, ret.size());
+        for(int i=0;i<7;i++) {
+            assertEquals(Integer.toString((i+1)*10), ret.itemAt(i).getStringValue());
+        }
+        ret = xpc.evaluate("efl-ext:basex-query('for $i in 1 to 6 return <a>{$i}</a>', "+connect+")", null);
+        assertEquals(6, ret.size());
+        ret = xpc.evaluate("head(efl-ext:basex-query('for $i in 1 to 100 return $i', "+connect+"))", null);
+        assertEquals("1", ret.itemAt(0).getStringValue());
+    }
+
+    @Test
+    public void testNodeBindings() throws SaxonApiException {
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(new BaseXQuery());
+        XPathCompiler xpc = new Processor(config).newXPathCompiler();
+        xpc.setLanguageVersion("3.1");
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        String connect = "map{'server': 'localhost', 'port': 1984, 'user': 'admin', 'password': 'admin'}";
+        XdmValue ret = xpc.evaluate("efl-ext:basex-query('declare variable $doc external; declare variable $ids external; "
+                + "declare variable $m external; declare context item external; "
+                + "($doc instance of document-node(), count($doc//*:id), $ids[1] instance of element(id), "
+                + "$ids[2] instance of xs:integer, string($ids[3]), $m?a, $m?b?2, name(*))', "
+                + connect+", map{'doc': parse-xml('<ids xmlns=\"urn:x\"><id>1</id><id>2&amp;amp;&#xE9;</id></ids>'), "
+                + "'ids': (parse-xml('<r><id>a</id></r>')/r/id, 2, parse-xml('<t>a&lt;b</t>')/t/text()), "
+                + "'m': map{'a': 'x', 'b': [1, 'y']}, '.': parse-xml('<c/>')})", null);
+        String[] expected = {"true", "2", "true", "true", "a<b", "x", "y", "c"};
+        assertEquals(expected.length, ret.size());
+        for(int i=0;i<expected.length;i++) {
+            assertEquals("item "+(i+1), expected[i], ret.itemAt(i).getStringValue());
+        }
+        ret = xpc.evaluate("efl-ext:basex-query('declare variable $e external; $e', "+connect
+                + ", map{'e': parse-xml('<a><b>&#xE9;</b></a>')/a/b})", null);
+        assertEquals("\u00E9", ret.itemAt(0).getStringValue());
+        try {
+            xpc.evaluate("efl-ext:basex-query('declare variable $a external; $a', "+connect
+                    + ", map{'a': parse-xml('<a b=\"1\"/>')/a/@b})", null);
+            fail("attributes can not be bound");
+        } catch(SaxonApiException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("attribute"));
+        }
+    }
+
     /**
      * Test of getArgumentTypes method, of class BaseXQuery.
      */
     @Test
     public void testGetArgumentTypes() {
         BaseXQuery instance = new BaseXQuery();
-        SequenceType[] expResult = new SequenceType[] {SequenceType.SINGLE_STRING, SequenceType.SINGLE_ITEM, SequenceType.OPTIONAL_STRING, SequenceType.OPTIONAL_STRING, SequenceType.OPTIONAL_STRING};
+        SequenceType[] expResult = new SequenceType[] {SequenceType.SINGLE_STRING, SequenceType.SINGLE_ITEM, SequenceType.OPTIONAL_ITEM, SequenceType.OPTIONAL_STRING, SequenceType.OPTIONAL_STRING};
         SequenceType[] result = instance.getArgumentTypes();
         assertEquals(expResult.length, result.length);
         for(int i=0;i<expResult.length;i++)
@@ -338,4 +541,100 @@ public class BaseXQueryTest {
             fail(ex.getMessage());
         }
     }
+    @Test
+    public void testXslSessionPerTransformation() throws SaxonApiException, FileNotFoundException {
+        Configuration config = new Configuration();
+        BaseXQuery function = new BaseXQuery();
+        config.registerExtensionFunction(function);
+        Processor proc = new Processor(config);
+        ConnectionKey key = new ConnectionKey("localhost", 1984, "admin", "admin");
+        try {
+            XdmNode result = transformTest4(proc, false);
+            assertEquals(30, count(result));
+            // nested calls have shared one session, given back once their last result has been read
+            assertEquals(0, function.getPool().getActiveCount(key));
+            assertEquals(1, function.getPool().getIdleCount(key));
+            result = transformTest4(proc, true);
+            assertEquals(31, count(result));
+            // session of a result read in part is given back once that result is closed
+            assertEquals(0, function.getPool().getActiveCount(key));
+        } finally {
+            function.getPool().close();
+        }
+    }
+
+    @Test
+    public void testXslTransformerReused() throws SaxonApiException, FileNotFoundException {
+        Configuration config = new Configuration();
+        BaseXQuery function = new BaseXQuery();
+        config.registerExtensionFunction(function);
+        Processor proc = new Processor(config);
+        ConnectionKey key = new ConnectionKey("localhost", 1984, "admin", "admin");
+        File file = new File(new File(System.getProperty("user.dir")),"src/test/resources/test4.xsl");
+        XsltTransformer t = proc.newXsltCompiler().compile(new StreamSource(new FileInputStream(file))).load();
+        XdmNode source = proc.newDocumentBuilder().build(new StreamSource(file));
+        try {
+            for(int i=0;i<2;i++) {
+                XdmDestination destination = new XdmDestination();
+                t.setDestination(destination);
+                t.setInitialContextNode(source);
+                t.transform();
+                assertEquals(30, count((XdmNode)destination.getXdmNode().axisIterator(Axis.CHILD).next()));
+                assertEquals(0, function.getPool().getActiveCount(key));
+                assertEquals(1, function.getPool().getIdleCount(key));
+                assertFalse(t.getUnderlyingController().isTracing());
+            }
+        } finally {
+            function.getPool().close();
+        }
+    }
+
+    @Test
+    public void testXslQueryErrorKeepsSharedSession() throws SaxonApiException {
+        Configuration config = new Configuration();
+        BaseXQuery function = new BaseXQuery();
+        RecordingListener listener = new RecordingListener();
+        function.getPool().setListener(listener);
+        config.registerExtensionFunction(function);
+        Processor proc = new Processor(config);
+        String xsl = "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' "
+                + "xmlns:efl-ext='top:marchand:xml:extfunctions' version='3.0'>"
+                + "<xsl:variable name='connect' select=\"map{'server': 'localhost', 'port': 1984, 'user': 'admin', 'password': 'admin'}\"/>"
+                + "<xsl:template name='xsl:initial-template'><r>"
+                + "<xsl:for-each select=\"efl-ext:basex-query('1 to 3', $connect)\">"
+                + "<xsl:try><xsl:sequence select=\"efl-ext:basex-query(. || ' +', $connect)\"/><xsl:catch><e/></xsl:catch></xsl:try>"
+                + "<i><xsl:sequence select=\"efl-ext:basex-query('. * 2', $connect, map{'.': .})\"/></i>"
+                + "</xsl:for-each></r></xsl:template></xsl:stylesheet>";
+        XsltTransformer t = proc.newXsltCompiler().compile(new StreamSource(new java.io.StringReader(xsl))).load();
+        t.setInitialTemplate(new QName("http://www.w3.org/1999/XSL/Transform", "initial-template"));
+        XdmDestination destination = new XdmDestination();
+        t.setDestination(destination);
+        try {
+            t.transform();
+            XdmNode root = (XdmNode)destination.getXdmNode().axisIterator(Axis.CHILD).next();
+            assertEquals(6, count(root));
+            assertEquals("246", root.getStringValue());
+            // query errors have not closed the shared session
+            assertEquals(1, listener.connected.get());
+        } finally {
+            function.getPool().close();
+        }
+    }
+
+    private XdmNode transformTest4(Processor proc, boolean head) throws SaxonApiException, FileNotFoundException {
+        File file = new File(new File(System.getProperty("user.dir")),"src/test/resources/test4.xsl");
+        XsltTransformer t = proc.newXsltCompiler().compile(new StreamSource(new FileInputStream(file))).load();
+        t.setParameter(new QName("head"), new XdmAtomicValue(head));
+        XdmDestination destination = new XdmDestination();
+        t.setDestination(destination);
+        t.setInitialContextNode(proc.newDocumentBuilder().build(new StreamSource(new FileInputStream(file))));
+        t.transform();
+        return (XdmNode)destination.getXdmNode().axisIterator(Axis.CHILD).next();
+    }
+
+    private static int count(XdmNode node) {
+        int count = 0;
+        for(XdmSequenceIterator it = node.axisIterator(Axis.CHILD); it.hasNext(); it.next()) count++;
+        return count;
+    }
 }
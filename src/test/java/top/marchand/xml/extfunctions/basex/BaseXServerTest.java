@@ -0,0 +1,91 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.StringReader;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import org.basex.BaseXServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Base of the tests that query a BaseX server : the server is started on port 1984
+ * before the tests of the class, and stopped after them.
+ * @author Christophe Marchand
+ */
+public abstract class BaseXServerTest {
+    protected static final String CONNECT_STRING =
+            "<basex>"+
+                "<server>localhost</server>"+
+                "<port>1984</port>"+
+                "<user>admin</user>"+
+                "<password>admin</password>"+
+            "</basex>";
+    private static final QName CONNECT = new QName("connect");
+    private static BaseXServer server;
+
+    @BeforeClass
+    public static void initServer() throws Exception {
+        server = new BaseXServer();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        // sessions of the default pool are bound to this server
+        BaseXClientPool.getDefault().close();
+        if(server!=null) {
+            try {
+                server.stop();
+                server = null;
+            } catch(Exception ex) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Returns a XPath 3.1 compiler where <tt>functions</tt> are registered.
+     * @param functions The extension functions to register
+     * @return The compiler
+     */
+    protected static XPathCompiler compiler(ExtensionFunctionDefinition... functions) {
+        Configuration config = new Configuration();
+        for(ExtensionFunctionDefinition function: functions) {
+            config.registerExtensionFunction(function);
+        }
+        XPathCompiler xpc = new Processor(config).newXPathCompiler();
+        xpc.setLanguageVersion("3.1");
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        return xpc;
+    }
+
+    /**
+     * Evaluates <tt>xpath</tt>, with <tt>$connect</tt> bound to the <tt>basex</tt> element
+     * of {@link #CONNECT_STRING}.
+     * @param xpc The compiler, from {@link #compiler(ExtensionFunctionDefinition...)}
+     * @param xpath The expression to evaluate
+     * @return The result
+     * @throws SaxonApiException If evaluation fails
+     */
+    protected static XdmValue evaluate(XPathCompiler xpc, String xpath) throws SaxonApiException {
+        xpc.declareVariable(CONNECT);
+        XPathSelector xp = xpc.compile(xpath).load();
+        XdmNode docConnect = xpc.getProcessor().newDocumentBuilder().build(new StreamSource(new StringReader(CONNECT_STRING)));
+        xp.setVariable(CONNECT, (XdmNode)docConnect.axisIterator(Axis.CHILD).next());
+        return xp.evaluate();
+    }
+}
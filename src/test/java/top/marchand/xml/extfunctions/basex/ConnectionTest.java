@@ -0,0 +1,53 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.util.List;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.trans.XPathException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class ConnectionTest {
+
+    @Test
+    public void testServerPort() throws Exception {
+        List<ConnectionKey> keys = servers("'server': ('localhost', 'localhost:1985', '127.0.0.1:1986')");
+        assertEquals(new ConnectionKey("localhost", 1984, "admin", "admin"), keys.get(0));
+        assertEquals(new ConnectionKey("localhost", 1985, "admin", "admin"), keys.get(1));
+        assertEquals(new ConnectionKey("127.0.0.1", 1986, "admin", "admin"), keys.get(2));
+    }
+
+    @Test
+    public void testIPv6() throws Exception {
+        List<ConnectionKey> keys = servers("'server': ('::1', '[::1]', '[::1]:1985', 'fe80::1:1985')");
+        assertEquals(new ConnectionKey("::1", 1984, "admin", "admin"), keys.get(0));
+        assertEquals(new ConnectionKey("::1", 1984, "admin", "admin"), keys.get(1));
+        assertEquals(new ConnectionKey("::1", 1985, "admin", "admin"), keys.get(2));
+        // the last group is part of the address
+        assertEquals(new ConnectionKey("fe80::1:1985", 1984, "admin", "admin"), keys.get(3));
+    }
+
+    @Test(expected = XPathException.class)
+    public void testInvalidIPv6() throws Exception {
+        servers("'server': '[::1:1985'");
+    }
+
+    private List<ConnectionKey> servers(String entries) throws SaxonApiException, XPathException {
+        XPathCompiler xpc = new Processor(false).newXPathCompiler();
+        xpc.setLanguageVersion("3.1");
+        Item connect = xpc.evaluateSingle("map{"+entries+", 'port': 1984, 'user': 'admin', 'password': 'admin'}", null).getUnderlyingValue();
+        return Connection.read(connect, "not a connection").getKeys();
+    }
+}
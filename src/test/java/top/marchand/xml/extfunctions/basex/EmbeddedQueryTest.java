@@ -0,0 +1,125 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.File;
+import java.io.StringReader;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class EmbeddedQueryTest {
+    private static final String CONNECT_STRING =
+            "<basex>"+
+                "<embedded>target/generated-test-files/embedded</embedded>"+
+            "</basex>";
+    private static XPathCompiler xpc;
+
+    @BeforeClass
+    public static void initDatabase() throws SaxonApiException {
+        new File("target/generated-test-files/embedded").mkdirs();
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(new BaseXQuery());
+        config.registerExtensionFunction(new BaseXQueryBatch());
+        Processor proc = new Processor(config);
+        xpc = proc.newXPathCompiler();
+        xpc.setLanguageVersion("3.1");
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        xpc.declareVariable(new QName("connect"));
+        evaluate("efl-ext:basex-query(\"db:create('embedded', <a xmlns:x='x'><x:b c='1'>b1</x:b><!--c--><?p v?></a>, 'a.xml')\", $connect)");
+    }
+
+    @Test
+    public void testDocuments() throws SaxonApiException {
+        XdmValue ret = evaluate("efl-ext:basex-query(\"db:open('embedded')\", $connect)");
+        assertEquals(1, ret.size());
+        XdmNode doc = (XdmNode)ret.itemAt(0);
+        assertEquals("b1", doc.getStringValue());
+        XdmNode b = (XdmNode)evaluate("$connect!efl-ext:basex-query(\"db:open('embedded')\", .)/*/*").itemAt(0);
+        assertEquals(new QName("x", "b"), b.getNodeName());
+        assertEquals("1", b.getAttributeValue(new QName("c")));
+        assertEquals("3", evaluate("count($connect!efl-ext:basex-query(\"db:open('embedded')\", .)/*/node())").itemAt(0).getStringValue());
+    }
+
+    @Test
+    public void testElementsAreDocuments() throws SaxonApiException {
+        XdmValue ret = evaluate("efl-ext:basex-query(\"declare namespace x='x'; db:open('embedded')//x:b\", $connect)/*");
+        assertEquals(1, ret.size());
+        assertEquals("x", ((XdmNode)ret.itemAt(0)).getNodeName().getNamespaceURI());
+    }
+
+    @Test
+    public void testOtherItems() throws SaxonApiException {
+        XdmValue ret = evaluate("efl-ext:basex-query(\"db:open('embedded')//@c, 1, 'a', xs:date('2018-01-01'), QName('u', 'p:l')\", $connect)");
+        assertEquals(5, ret.size());
+        assertEquals("true", evaluate("efl-ext:basex-query(\"db:open('embedded')//@c\", $connect) instance of attribute(c)").itemAt(0).getStringValue());
+        assertEquals("true", evaluate("efl-ext:basex-query(\"1\", $connect) instance of xs:integer").itemAt(0).getStringValue());
+        assertEquals("true", evaluate("efl-ext:basex-query(\"xs:date('2018-01-01')\", $connect) instance of xs:date").itemAt(0).getStringValue());
+        assertEquals("u", evaluate("namespace-uri-from-QName(efl-ext:basex-query(\"QName('u', 'p:l')\", $connect))").itemAt(0).getStringValue());
+    }
+
+    @Test
+    public void testBindings() throws SaxonApiException {
+        XdmValue ret = evaluate("efl-ext:basex-query('declare variable $a external; $a * 2', $connect, map{'a': 21})");
+        assertEquals("42", ret.itemAt(0).getStringValue());
+    }
+
+    @Test
+    public void testNodeBindings() throws SaxonApiException {
+        XdmValue ret = evaluate("efl-ext:basex-query('declare variable $d external; count($d//i), .//@n/string()', $connect, "
+                + "map{'d': parse-xml('<l><i/><i/></l>'), '.': parse-xml('<c n=\"x\"/>')/c})");
+        assertEquals(2, ret.size());
+        assertEquals("2", ret.itemAt(0).getStringValue());
+        assertEquals("x", ret.itemAt(1).getStringValue());
+    }
+
+    @Test
+    public void testBatch() throws SaxonApiException {
+        XdmValue ret = evaluate("efl-ext:basex-query-batch(('1', '2 to 3'), $connect)?*");
+        assertEquals(3, ret.size());
+    }
+
+    @Test
+    public void testBatchBindings() throws SaxonApiException {
+        XdmValue ret = evaluate("efl-ext:basex-query-batch(('declare variable $a external; $a', '2'), $connect, (map{'a': 1}, map{}))?*");
+        assertEquals("1 2", ret.itemAt(0).getStringValue()+" "+ret.itemAt(1).getStringValue());
+    }
+
+    @Test
+    public void testCloseDatabases() throws SaxonApiException {
+        assertEquals("b1", evaluate("efl-ext:basex-query(\"db:open('embedded')\", $connect)").itemAt(0).getStringValue());
+        BaseXQuery.closeEmbeddedDatabases();
+        // opened again
+        assertEquals("b1", evaluate("efl-ext:basex-query(\"db:open('embedded')\", $connect)").itemAt(0).getStringValue());
+    }
+
+    @Test(expected = SaxonApiException.class)
+    public void testError() throws SaxonApiException {
+        evaluate("efl-ext:basex-query('1 +', $connect)");
+    }
+
+    private static XdmValue evaluate(String xpath) throws SaxonApiException {
+        XPathSelector xp = xpc.compile(xpath).load();
+        XdmNode docConnect = xpc.getProcessor().newDocumentBuilder().build(new StreamSource(new StringReader(CONNECT_STRING)));
+        xp.setVariable(new QName("connect"), (XdmNode)docConnect.axisIterator(Axis.CHILD).next());
+        return xp.evaluate();
+    }
+}
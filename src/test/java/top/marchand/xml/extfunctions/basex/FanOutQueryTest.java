@@ -0,0 +1,111 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XdmValue;
+import org.basex.BaseXServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class FanOutQueryTest extends BaseXServerTest {
+    private static final String PORT = "db:system()//*:serverport/string()";
+    private static BaseXServer server2;
+
+    @BeforeClass
+    public static void initSecondServer() throws Exception {
+        server2 = new BaseXServer("-p1985");
+    }
+
+    @AfterClass
+    public static void stopSecondServer() throws Exception {
+        if(server2!=null) {
+            try {
+                server2.stop();
+                server2 = null;
+            } catch(Exception ex) {
+                // ignore
+            }
+        }
+    }
+
+    @Test
+    public void testShardOrder() throws SaxonApiException {
+        BaseXQuery function = new BaseXQuery();
+        XPathCompiler xpc = compiler(function);
+        String xpath = "efl-ext:basex-query('prof:sleep(500), for $i in 1 to 2 return "+PORT+"', "
+                + "parse-xml('<basex><server>localhost:1985</server><server>localhost:1984</server>"
+                + "<user>admin</user><password>admin</password></basex>')/*)";
+        // connect first
+        xpc.evaluate(xpath, null);
+        long start = System.nanoTime();
+        XdmValue ret = xpc.evaluate(xpath, null);
+        long elapsed = (System.nanoTime()-start)/1000000L;
+        assertEquals(4, ret.size());
+        assertEquals("1985", ret.itemAt(0).getStringValue());
+        assertEquals("1985", ret.itemAt(1).getStringValue());
+        assertEquals("1984", ret.itemAt(2).getStringValue());
+        assertTrue("servers have been queried one after the other: "+elapsed+" ms", elapsed<900);
+        function.getPool().close();
+    }
+
+    @Test
+    public void testArrivalOrder() throws SaxonApiException {
+        BaseXQuery function = new BaseXQuery();
+        XdmValue ret = compiler(function).evaluate(
+                "efl-ext:basex-query('let $p := "+PORT+" return (prof:sleep(if($p = \"1985\") then 300 else 0), $p)', "
+                + "map{'server': ('localhost:1985', 'localhost:1984'), 'user': 'admin', 'password': 'admin', 'merge': 'arrival'})", null);
+        assertEquals(2, ret.size());
+        assertEquals("1984", ret.itemAt(0).getStringValue());
+        assertEquals("1985", ret.itemAt(1).getStringValue());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testShardError() {
+        BaseXQuery function = new BaseXQuery();
+        try {
+            compiler(function).evaluate("efl-ext:basex-query('1', "
+                    + "map{'server': ('localhost', 'localhost:1986'), 'port': 1984, 'user': 'admin', 'password': 'admin'})", null);
+            fail("server 1986 is not running");
+        } catch(SaxonApiException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("localhost:1986"));
+        }
+        function.getPool().close();
+    }
+
+    @Test
+    public void testCloseStopsServers() throws Exception {
+        BaseXQuery function = new BaseXQuery();
+        RecordingListener listener = new RecordingListener();
+        function.getPool().setListener(listener);
+        ConnectionKey key1 = new ConnectionKey("localhost", 1984, "admin", "admin");
+        ConnectionKey key2 = new ConnectionKey("localhost", 1985, "admin", "admin");
+        for(String merge: new String[] { "shard", "arrival" }) {
+            listener.items.set(0);
+            XdmValue ret = compiler(function).evaluate("head(efl-ext:basex-query('for $i in 1 to 100000 return <a>{$i}</a>', "
+                    + "map{'server': ('localhost:1984', 'localhost:1985'), 'user': 'admin', 'password': 'admin', 'merge': '"+merge+"'}))", null);
+            assertEquals("1", ret.itemAt(0).getStringValue());
+            long deadline = System.currentTimeMillis()+5000;
+            while(function.getPool().getActiveCount(key1)+function.getPool().getActiveCount(key2)>0 && System.currentTimeMillis()<deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(merge, 0, function.getPool().getActiveCount(key1));
+            assertEquals(merge, 0, function.getPool().getActiveCount(key2));
+            // servers have stopped once their queue was full
+            assertTrue(merge+": "+listener.items.get()+" items", listener.items.get()<1000);
+        }
+        function.getPool().close();
+    }
+}
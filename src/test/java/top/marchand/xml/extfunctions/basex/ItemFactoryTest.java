@@ -0,0 +1,36 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.ByteArrayInputStream;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.tree.tiny.Statistics;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class ItemFactoryTest {
+
+    @Test
+    public void testTreesAreSizedFromItems() throws Exception {
+        ItemFactory factory = new ItemFactory(new Configuration());
+        String shared = Statistics.TEMPORARY_TREE_STATISTICS.toString();
+        for(int i=0;i<200;i++) {
+            factory.parse(new ByteArrayInputStream(("<a n='"+i+"'><b>text</b><b/></a>").getBytes("UTF-8")));
+        }
+        Statistics statistics = factory.getStatistics();
+        // learnt from the items, down to the minimum sizes of Saxon
+        assertTrue(statistics.toString(), statistics.getAverageNodes()<=10);
+        assertTrue(statistics.toString(), statistics.getAverageCharacters()<=100);
+        // trees of the stylesheet are still sized as before
+        assertEquals(shared, Statistics.TEMPORARY_TREE_STATISTICS.toString());
+        assertTrue(Statistics.TEMPORARY_TREE_STATISTICS.getAverageNodes()>100);
+    }
+}
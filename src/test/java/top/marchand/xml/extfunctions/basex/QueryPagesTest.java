@@ -0,0 +1,43 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import net.sf.saxon.trans.XPathException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class QueryPagesTest {
+
+    @Test
+    public void testNoProlog() throws XPathException {
+        assertEquals(0, QueryPages.bodyStart("//declare"));
+        assertEquals(2, QueryPages.bodyStart("  declare-x"));
+    }
+
+    @Test
+    public void testProlog() throws XPathException {
+        String prolog = "xquery version '3.1'; (: a ; comment (: nested ; :) :)\n"
+                + "declare namespace x = 'urn:x;y';\n"
+                + "declare %private function local:f() { let $a := (1; 2) return ';' };\n"
+                + "declare variable $v external := map { 'a': \"b;\" };\n";
+        assertEquals(prolog.length()+1, QueryPages.bodyStart(prolog+" x:y"));
+    }
+
+    @Test(expected = XPathException.class)
+    public void testLibraryModule() throws XPathException {
+        QueryPages.wrap("module namespace m = 'urn:m'; declare function m:f() { 1 };");
+    }
+
+    @Test(expected = XPathException.class)
+    public void testUnterminatedProlog() throws XPathException {
+        QueryPages.wrap("declare variable $v := 1 1");
+    }
+}
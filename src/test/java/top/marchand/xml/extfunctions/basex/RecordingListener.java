@@ -0,0 +1,51 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link QueryListener} that counts what it is told, for tests to check round trips.
+ * @author Christophe Marchand
+ */
+class RecordingListener implements QueryListener {
+    /** Number of sessions opened. */
+    final AtomicInteger connected = new AtomicInteger();
+    /** Number of queries prepared. */
+    final AtomicInteger prepared = new AtomicInteger();
+    /** Number of results read to the end. */
+    final AtomicInteger finished = new AtomicInteger();
+    /** Number of items built by the results read to the end. */
+    final AtomicLong items = new AtomicLong();
+    /** Number of failures. */
+    final AtomicInteger failed = new AtomicInteger();
+
+    @Override
+    public void connected(ConnectionKey key, long connectTime, long authenticateTime) {
+        connected.incrementAndGet();
+    }
+
+    @Override
+    public void prepared(ConnectionKey key, long prepareTime) {
+        prepared.incrementAndGet();
+    }
+
+    @Override
+    public void firstByte(ConnectionKey key, long firstByteTime) { }
+
+    @Override
+    public void finished(ConnectionKey key, long items, long bytes, long parseTime, long closeTime) {
+        finished.incrementAndGet();
+        this.items.addAndGet(items);
+    }
+
+    @Override
+    public void failed(ConnectionKey key, Exception ex) {
+        failed.incrementAndGet();
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XdmValue;
+import org.basex.BaseXServer;
+import org.basex.examples.api.BaseXClient;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class ReplicaTest extends BaseXServerTest {
+    private static final String PORT = "db:system()//*:serverport/string()";
+    private static final String CONNECT = "map{'server': 'localhost:1985', 'replica': 'localhost', 'port': 1984, "
+            + "'user': 'admin', 'password': 'admin'}";
+    private static BaseXServer server2;
+
+    @BeforeClass
+    public static void initSecondServer() throws Exception {
+        server2 = new BaseXServer("-p1985");
+    }
+
+    @AfterClass
+    public static void stopSecondServer() throws Exception {
+        if(server2!=null) {
+            try {
+                server2.stop();
+                server2 = null;
+            } catch(Exception ex) {
+                // ignore
+            }
+        }
+    }
+
+    @Test
+    public void testFailover() throws SaxonApiException {
+        BaseXQuery function = new BaseXQuery();
+        XdmValue ret = compiler(function).evaluate("efl-ext:basex-query('"+PORT+"', "
+                + "map{'server': 'localhost:1986', 'replica': 'localhost', 'port': 1984, 'user': 'admin', 'password': 'admin'})", null);
+        assertEquals("1984", ret.itemAt(0).getStringValue());
+        assertTrue(function.getPool().getHealth().isEjected(new ConnectionKey("localhost", 1986, "admin", "admin")));
+        function.getPool().close();
+    }
+
+    @Test
+    public void testVersionedCacheOnFailedPrimary() throws SaxonApiException {
+        BaseXQuery function = new BaseXQuery();
+        ResultCache cache = new ResultCache(1000000, 0);
+        cache.setInvalidator(new ResultCache.Invalidator() {
+            @Override
+            public String getVersion(BaseXClient session) {
+                return "1";
+            }
+        });
+        function.setResultCache(cache);
+        XPathCompiler xpc = compiler(function);
+        String xpath = "efl-ext:basex-query('"+PORT+"', "
+                + "map{'server': 'localhost:1986', 'replica': 'localhost', 'port': 1984, 'user': 'admin', 'password': 'admin'})";
+        for(int i=0;i<2;i++) {
+            assertEquals("1984", xpc.evaluate(xpath, null).itemAt(0).getStringValue());
+        }
+        // version of data is unknown, results of the replica are not cached
+        assertEquals(0, cache.size());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testLeastOutstanding() throws Exception {
+        BaseXQuery function = new BaseXQuery();
+        ConnectionKey primary = new ConnectionKey("localhost", 1985, "admin", "admin");
+        BaseXClient busy = function.getPool().borrow(primary);
+        try {
+            XdmValue ret = compiler(function).evaluate("efl-ext:basex-query('"+PORT+"', "+CONNECT+")", null);
+            assertEquals("1984", ret.itemAt(0).getStringValue());
+        } finally {
+            function.getPool().release(primary, busy);
+        }
+        function.getPool().close();
+    }
+
+    @Test
+    public void testUpdatingQueryRunsOnPrimary() throws SaxonApiException {
+        BaseXQuery function = new BaseXQuery();
+        // reads go to the replica
+        function.getPool().getHealth().failed(new ConnectionKey("localhost", 1985, "admin", "admin"));
+        XPathCompiler xpc = compiler(function);
+        XdmValue ret = xpc.evaluate("efl-ext:basex-query('"+PORT+"', "+CONNECT+")", null);
+        assertEquals("1984", ret.itemAt(0).getStringValue());
+        ret = xpc.evaluate("efl-ext:basex-query('db:output("+PORT+")', "+CONNECT+")", null);
+        assertEquals("1985", ret.itemAt(0).getStringValue());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testBusyServerIsNotEjected() throws Exception {
+        PoolConfiguration config = new PoolConfiguration();
+        config.setMaxTotal(1);
+        config.setBorrowTimeout(100);
+        BaseXQuery function = new BaseXQuery(new BaseXClientPool(config));
+        ConnectionKey primary = new ConnectionKey("localhost", 1985, "admin", "admin");
+        ConnectionKey replica = new ConnectionKey("localhost", 1984, "admin", "admin");
+        BaseXClient busyPrimary = function.getPool().borrow(primary);
+        BaseXClient busyReplica = function.getPool().borrow(replica);
+        try {
+            compiler(function).evaluate("efl-ext:basex-query('"+PORT+"', "+CONNECT+")", null);
+            fail("all sessions are busy");
+        } catch(SaxonApiException ex) {
+            assertFalse(function.getPool().getHealth().isEjected(primary));
+            assertFalse(function.getPool().getHealth().isEjected(replica));
+        } finally {
+            function.getPool().release(primary, busyPrimary);
+            function.getPool().release(replica, busyReplica);
+        }
+        function.getPool().close();
+    }
+
+    @Test
+    public void testUpdatingQueryOnFailedPrimary() {
+        BaseXQuery function = new BaseXQuery();
+        ConnectionKey primary = new ConnectionKey("localhost", 1986, "admin", "admin");
+        ConnectionKey replica = new ConnectionKey("localhost", 1984, "admin", "admin");
+        function.getPool().getHealth().failed(primary);
+        try {
+            compiler(function).evaluate("efl-ext:basex-query('db:output(1)', "
+                    + "map{'server': 'localhost:1986', 'replica': 'localhost', 'port': 1984, 'user': 'admin', 'password': 'admin'})", null);
+            fail("primary server can not be reached");
+        } catch(SaxonApiException ex) {
+            // the replica has answered, only the primary is at fault
+            assertFalse(function.getPool().getHealth().isEjected(replica));
+            assertTrue(function.getPool().getHealth().isEjected(primary));
+        }
+        function.getPool().close();
+    }
+
+    @Test
+    public void testInvalidRouting() {
+        BaseXQuery function = new BaseXQuery();
+        try {
+            compiler(function).evaluate("efl-ext:basex-query('1', map{'server': 'localhost', 'replica': 'localhost:1985', "
+                    + "'routing': 'random', 'user': 'admin', 'password': 'admin'})", null);
+            fail("routing is not valid");
+        } catch(SaxonApiException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("routing"));
+        }
+        function.getPool().close();
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.io.ByteArrayInputStream;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XdmValue;
+import org.basex.examples.api.BaseXClient;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class ResultCacheTest extends BaseXServerTest {
+    private static final String CONNECT_ARGS = "'localhost', '1984', 'admin', 'admin'";
+
+    @Test
+    public void testSharedResult() throws SaxonApiException {
+        BaseXQuery function = new BaseXQuery();
+        ResultCache cache = new ResultCache(1000000, 0);
+        function.setResultCache(cache);
+        XPathCompiler xpc = compiler(function);
+        String xpath = "efl-ext:basex-query('for $i in 1 to 10 return <test>{$i}</test>', "+CONNECT_ARGS+")";
+        XdmValue first = evaluate(xpc, xpath);
+        XdmValue second = evaluate(xpc, xpath);
+        assertEquals(10, second.size());
+        assertEquals(1, cache.getHitCount());
+        // same tree, not parsed again
+        assertSame(first.itemAt(3).getUnderlyingValue(), second.itemAt(3).getUnderlyingValue());
+        assertTrue(cache.getWeight()>0);
+        function.getPool().close();
+    }
+
+    @Test
+    public void testCountWithoutBuildingItems() throws SaxonApiException {
+        BaseXQuery function = new BaseXQuery();
+        RecordingListener listener = new RecordingListener();
+        function.getPool().setListener(listener);
+        ResultCache cache = new ResultCache(1000000, 0);
+        function.setResultCache(cache);
+        XPathCompiler xpc = compiler(function);
+        String query = "'for $i in 1 to 1000 return <a>{$i}</a>'";
+        assertEquals("1000", evaluate(xpc, "count(efl-ext:basex-query("+query+", "+CONNECT_ARGS+"))").itemAt(0).getStringValue());
+        // items have not been built, and session has been given back
+        assertEquals(0, listener.finished.get());
+        ConnectionKey key = new ConnectionKey("localhost", 1984, "admin", "admin");
+        assertEquals(0, function.getPool().getActiveCount(key));
+        // a result read to the end is still cached
+        evaluate(xpc, "efl-ext:basex-query("+query+", "+CONNECT_ARGS+")");
+        assertEquals(1000, evaluate(xpc, "efl-ext:basex-query("+query+", "+CONNECT_ARGS+")").size());
+        assertEquals(1, cache.getHitCount());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testBindingsAreInKey() throws SaxonApiException {
+        BaseXQuery function = new BaseXQuery();
+        ResultCache cache = new ResultCache(1000000, 0);
+        function.setResultCache(cache);
+        XPathCompiler xpc = compiler(function);
+        String query = "'declare variable $a external; declare variable $b external; $a + $b'";
+        assertEquals("3", evaluate(xpc, "efl-ext:basex-query("+query+", $connect, map{'a': 1, 'b': 2})").itemAt(0).getStringValue());
+        assertEquals("4", evaluate(xpc, "efl-ext:basex-query("+query+", $connect, map{'a': 1, 'b': 3})").itemAt(0).getStringValue());
+        // order of entries does not matter
+        assertEquals("3", evaluate(xpc, "efl-ext:basex-query("+query+", $connect, map{'b': 2, 'a': 1})").itemAt(0).getStringValue());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.size());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testUpdatingQueryIsNotCached() throws SaxonApiException {
+        BaseXQuery function = new BaseXQuery();
+        ResultCache cache = new ResultCache(1000000, 0);
+        function.setResultCache(cache);
+        XPathCompiler xpc = compiler(function);
+        evaluate(xpc, "efl-ext:basex-query('db:output(1)', "+CONNECT_ARGS+")");
+        assertEquals(0, cache.size());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testEviction() throws SaxonApiException {
+        BaseXQuery function = new BaseXQuery();
+        ResultCache cache = new ResultCache(2000, 0);
+        function.setResultCache(cache);
+        XPathCompiler xpc = compiler(function);
+        for(int i=0;i<20;i++) {
+            evaluate(xpc, "efl-ext:basex-query('string-join(1 to 100)||\""+i+"\"', "+CONNECT_ARGS+")");
+        }
+        assertTrue(cache.size()<20);
+        assertTrue(cache.getWeight()<=2000);
+        // too large to be cached
+        evaluate(xpc, "efl-ext:basex-query('string-join(1 to 1000)', "+CONNECT_ARGS+")");
+        evaluate(xpc, "efl-ext:basex-query('string-join(1 to 1000)', "+CONNECT_ARGS+")");
+        assertEquals(0, cache.getHitCount());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        BaseXQuery function = new BaseXQuery();
+        ResultCache cache = new ResultCache(1000000, 50);
+        function.setResultCache(cache);
+        XPathCompiler xpc = compiler(function);
+        evaluate(xpc, "efl-ext:basex-query('1', "+CONNECT_ARGS+")");
+        Thread.sleep(100);
+        evaluate(xpc, "efl-ext:basex-query('1', "+CONNECT_ARGS+")");
+        assertEquals(0, cache.getHitCount());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testDatabaseTimestamps() throws Exception {
+        try (BaseXClient session = new BaseXClient("localhost", 1984, "admin", "admin")) {
+            session.execute("CREATE DB cachetest <a/>");
+            try {
+                BaseXQuery function = new BaseXQuery();
+                RecordingListener listener = new RecordingListener();
+                function.getPool().setListener(listener);
+                ResultCache cache = new ResultCache(1000000, 0);
+                cache.setInvalidator(ResultCache.databaseTimestamps("cachetest"));
+                function.setResultCache(cache);
+                XPathCompiler xpc = compiler(function);
+                String xpath = "efl-ext:basex-query('count(db:open(\"cachetest\"))', "+CONNECT_ARGS+")";
+                assertEquals("1", evaluate(xpc, xpath).itemAt(0).getStringValue());
+                assertEquals(1, listener.prepared.get());
+                assertEquals("1", evaluate(xpc, xpath).itemAt(0).getStringValue());
+                assertEquals(1, cache.getHitCount());
+                // a hit has only asked for the version
+                assertEquals(1, listener.prepared.get());
+                Thread.sleep(10);
+                session.add("b.xml", new ByteArrayInputStream("<b/>".getBytes("UTF-8")));
+                assertEquals("2", evaluate(xpc, xpath).itemAt(0).getStringValue());
+                assertEquals(1, cache.getHitCount());
+                function.getPool().close();
+            } finally {
+                session.execute("DROP DB cachetest");
+            }
+        }
+    }
+}
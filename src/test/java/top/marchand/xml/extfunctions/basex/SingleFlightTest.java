@@ -0,0 +1,107 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XdmValue;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class SingleFlightTest extends BaseXServerTest {
+    private static final String CONNECT_ARGS = "'localhost', '1984', 'admin', 'admin'";
+    private static final int THREADS = 8;
+
+    @Test
+    public void testConcurrentCallsShareResult() throws Exception {
+        BaseXQuery function = new BaseXQuery();
+        SingleFlight flights = new SingleFlight(1000000);
+        function.setSingleFlight(flights);
+        List<XdmValue> results = runConcurrently(function,
+                "efl-ext:basex-query('prof:sleep(500), for $i in 1 to 10 return <test>{$i}</test>', "+CONNECT_ARGS+")");
+        for(XdmValue result: results) {
+            assertEquals(10, result.size());
+        }
+        assertTrue(flights.getSharedCount()>0);
+        // same tree, not parsed again
+        assertSame(results.get(0).itemAt(3).getUnderlyingValue(), results.get(1).itemAt(3).getUnderlyingValue());
+        assertEquals(0, flights.size());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testUpdatingQueryIsNotShared() throws Exception {
+        BaseXQuery function = new BaseXQuery();
+        SingleFlight flights = new SingleFlight(1000000);
+        function.setSingleFlight(flights);
+        List<XdmValue> results = runConcurrently(function,
+                "efl-ext:basex-query('prof:sleep(200), db:output(1)', "+CONNECT_ARGS+")");
+        for(XdmValue result: results) {
+            assertEquals("1", result.itemAt(0).getStringValue());
+        }
+        assertEquals(0, flights.getSharedCount());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testHeavyResultIsNotShared() throws Exception {
+        BaseXQuery function = new BaseXQuery();
+        SingleFlight flights = new SingleFlight(1000);
+        function.setSingleFlight(flights);
+        List<XdmValue> results = runConcurrently(function,
+                "efl-ext:basex-query('prof:sleep(200), for $i in 1 to 1000 return <test>{$i}</test>', "+CONNECT_ARGS+")");
+        for(XdmValue result: results) {
+            assertEquals(1000, result.size());
+        }
+        assertEquals(0, flights.getSharedCount());
+        function.getPool().close();
+    }
+
+    private List<XdmValue> runConcurrently(BaseXQuery function, String xpath) throws Exception {
+        Configuration config = new Configuration();
+        config.registerExtensionFunction(function);
+        Processor proc = new Processor(config);
+        XPathCompiler xpc = proc.newXPathCompiler();
+        xpc.setLanguageVersion("3.1");
+        xpc.declareNamespace(BaseXQuery.EXT_NS_COMMON_PREFIX, BaseXQuery.EXT_NAMESPACE_URI);
+        final XPathExecutable exec = xpc.compile(xpath);
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<XdmValue>> futures = new ArrayList<>();
+            for(int i=0;i<THREADS;i++) {
+                futures.add(executor.submit(new Callable<XdmValue>() {
+                    @Override
+                    public XdmValue call() throws Exception {
+                        barrier.await();
+                        return exec.load().evaluate();
+                    }
+                }));
+            }
+            List<XdmValue> results = new ArrayList<>();
+            for(Future<XdmValue> future: futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
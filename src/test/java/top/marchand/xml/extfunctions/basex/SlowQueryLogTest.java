@@ -0,0 +1,83 @@
+/**
+ * This Source Code Form is subject to the terms of
+ * the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package top.marchand.xml.extfunctions.basex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import net.sf.saxon.s9api.XdmValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Christophe Marchand
+ */
+public class SlowQueryLogTest extends BaseXServerTest {
+    private static final String CONNECT = "<basex><server>localhost</server><port>1984</port><user>admin</user><password>admin</password></basex>";
+    private final Logger logger = Logger.getLogger(SlowQueryLog.class.getName());
+    private final List<String> messages = new ArrayList<>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            messages.add(record.getMessage());
+        }
+        @Override public void flush() { }
+        @Override public void close() { }
+    };
+
+    @Before
+    public void addHandler() {
+        logger.addHandler(handler);
+    }
+
+    @After
+    public void removeHandler() {
+        logger.removeHandler(handler);
+    }
+
+    @Test
+    public void testSlowQueryIsLogged() throws Exception {
+        BaseXQuery function = new BaseXQuery();
+        function.setSlowQueryLog(new SlowQueryLog(100, 500, true));
+        XdmValue ret = compiler(function).evaluate(
+                "efl-ext:basex-query('declare variable $n external; prof:sleep(200), for $i in 1 to $n return <test>{$i}</test>', "
+                        +"parse-xml('"+CONNECT+"')/*, map{'n': 3})", null);
+        assertEquals(3, ret.size());
+        assertEquals(1, messages.size());
+        String message = messages.get(0);
+        assertTrue(message, message.contains("3 items"));
+        assertTrue(message, message.contains("prof:sleep(200)"));
+        assertTrue(message, message.contains("$n=(3)"));
+        assertTrue(message, message.contains("Evaluating: "));
+        function.getPool().close();
+    }
+
+    @Test
+    public void testFastQueryIsNotLogged() throws Exception {
+        BaseXQuery function = new BaseXQuery();
+        function.setSlowQueryLog(new SlowQueryLog(10000, 500, true));
+        XdmValue ret = compiler(function).evaluate(
+                "efl-ext:basex-query('1', parse-xml('"+CONNECT+"')/*)", null);
+        assertEquals(1, ret.size());
+        assertTrue(messages.isEmpty());
+        function.getPool().close();
+    }
+
+    @Test
+    public void testTimings() {
+        String info = "\nQuery:\n1 to 2\nCompiling:\n- pre-evaluate range\nOptimized Query:\n(1 to 2)\n"
+                + "Parsing: 0.1 ms\nCompiling: 0.2 ms\nEvaluating: 0.3 ms\nPrinting: 0.4 ms\nTotal Time: 1.0 ms\n\nHit(s): 2 Items\n";
+        assertEquals("Parsing: 0.1 ms, Compiling: 0.2 ms, Evaluating: 0.3 ms, Printing: 0.4 ms, Total Time: 1.0 ms, Hit(s): 2 Items",
+                SlowQueryLog.timings(info));
+        assertEquals("Query executed in 2.5 ms.", SlowQueryLog.timings("\nQuery executed in 2.5 ms."));
+    }
+}
@@ -0,0 +1,38 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!--
+ This Source Code Form is subject to the terms of 
+ the Mozilla Public License, v. 2.0. If a copy of 
+ the MPL was not distributed with this file, You 
+ can obtain one at https://mozilla.org/MPL/2.0/.
+-->
+<xsl:stylesheet 
+    xmlns:xsl="http://www.w3.org/1999/XSL/Transform" 
+    xmlns:efl-ext="top:marchand:xml:extfunctions"
+    xmlns:xs="http://www.w3.org/2001/XMLSchema"
+    exclude-result-prefixes="#all"
+    version="2.0">
+    <xsl:output method="xml"/>
+
+    <xsl:param name="head" as="xs:boolean" select="false()"/>
+
+    <xsl:variable name="connect" as="element()">
+        <basex>
+            <server>localhost</server>
+            <port>1984</port>
+            <user>admin</user>
+            <password>admin</password>
+        </basex>
+    </xsl:variable>
+    
+    <xsl:template match="/">
+        <result>
+            <xsl:for-each select="efl-ext:basex-query('for $i in 1 to 3 return &lt;test&gt;{$i}&lt;/test&gt;',$connect)">
+                <xsl:copy-of select="efl-ext:basex-query('for $i in 1 to 10 return &lt;test&gt;{$i}&lt;/test&gt;', 'localhost', '1984', 'admin', 'admin')"/>
+            </xsl:for-each>
+            <xsl:if test="$head">
+                <xsl:copy-of select="efl-ext:basex-query('for $i in 1 to 1000000 return &lt;test&gt;{$i}&lt;/test&gt;',$connect)[1]"/>
+            </xsl:if>
+        </result>
+    </xsl:template>
+
+</xsl:stylesheet>